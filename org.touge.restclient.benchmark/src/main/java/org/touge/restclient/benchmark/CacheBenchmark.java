@@ -0,0 +1,68 @@
+package org.touge.restclient.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.touge.restclient.RestClient;
+
+/**
+ * GETs through the content cache.  A hit is served by CachedConnectionProvider without contacting the server;
+ * a miss makes the request and stores the response.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+	@Param({"1024", "65536"})
+	public int size;
+	
+	private LocalHttpServer server;
+	private RestClient client;
+	private RestClient.LRUCache cache;
+	private String url;
+	
+	@Setup
+	public void setUp() throws IOException {
+		server = new LocalHttpServer();
+		cache = new RestClient.LRUCache(64L * 1024 * 1024);
+		client = new RestClient();
+		client.setCache(cache);
+		url = server.url("/bytes/" + size);
+		
+		client.call(RestClient.HttpMethod.GET, url, CallBenchmark.BYTES, null, null).getContent();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		server.stop();
+	}
+	
+	@Benchmark
+	public byte[] hit() throws IOException {
+		return client.call(RestClient.HttpMethod.GET, url, CallBenchmark.BYTES, null, null).getContent();
+	}
+	
+	@Benchmark
+	public byte[] miss() throws IOException {
+		cache.put(url, null);
+		
+		return client.call(RestClient.HttpMethod.GET, url, CallBenchmark.BYTES, null, null).getContent();
+	}
+}
@@ -0,0 +1,92 @@
+package org.touge.restclient.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.touge.restclient.RestClient;
+
+/**
+ * Complete request/response round trips through RestClient.call().
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallBenchmark {
+
+	@Param({"0", "1024", "65536"})
+	public int size;
+	
+	private LocalHttpServer server;
+	private RestClient client;
+	private RestClient streamingClient;
+	private String getUrl;
+	private String postUrl;
+	private byte[] body;
+	
+	@Setup
+	public void setUp() throws IOException {
+		server = new LocalHttpServer();
+		client = new RestClient();
+		streamingClient = new RestClient();
+		streamingClient.setStreamingMode(true);
+		getUrl = server.url("/bytes/" + size);
+		postUrl = server.url("/upload");
+		body = new byte[size];
+	}
+	
+	@TearDown
+	public void tearDown() {
+		server.stop();
+	}
+	
+	@Benchmark
+	public byte[] get() throws IOException {
+		return client.call(RestClient.HttpMethod.GET, getUrl, BYTES, null, null).getContent();
+	}
+	
+	@Benchmark
+	public int post() throws IOException {
+		return client.call(RestClient.HttpMethod.POST, postUrl, RestClient.HTTP_CODE_DESERIALIZER, 
+				new ByteArrayInputStream(body), null).getContent();
+	}
+	
+	/**
+	 * Streams the body, so that it is copied to the connection rather than buffered first.
+	 */
+	@Benchmark
+	public int put() throws IOException {
+		return streamingClient.callPut(postUrl, new ByteArrayInputStream(body)).getContent();
+	}
+	
+	/**
+	 * Reads the complete response so that the transfer is part of the measurement.
+	 */
+	static final RestClient.ResponseDeserializer<byte[]> BYTES = new RestClient.ResponseDeserializer<byte[]>() {
+		
+		@Override
+		public byte[] deserialize(InputStream input, int responseCode, Map<String, List<String>> headers) 
+				throws IOException {
+			return RestClient.readStream(input);
+		}
+	};
+}
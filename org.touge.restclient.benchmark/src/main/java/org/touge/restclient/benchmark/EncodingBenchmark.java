@@ -0,0 +1,89 @@
+package org.touge.restclient.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.touge.restclient.RestClient;
+
+/**
+ * Request building work that does not touch the network: URL building, Base64 encoding and multipart bodies.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+
+	private RestClient client;
+	private byte[] credentials;
+	private Map<String, Object> form;
+	private byte[] drain;
+	private File file;
+	
+	@Setup
+	public void setUp() throws IOException {
+		client = new RestClient();
+		credentials = "someuser:a rather long password".getBytes();
+		drain = new byte[8192];
+		
+		form = new HashMap<String, Object>();
+		form.put("name", "value");
+		form.put("description", "a longer form value with some spaces in it");
+		
+		file = File.createTempFile("multipart", ".bin");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[16 * 1024]);
+		out.close();
+		form.put("file", new RestClient.FormFile(file.getAbsolutePath(), "application/octet-stream"));
+	}
+	
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+	
+	@Benchmark
+	public String urlBuilder() {
+		return client.buildURL("example.com", "api", "v1")
+				.append("items", "42")
+				.addParameter("q", "some query")
+				.addParameter("page", "2")
+				.toString();
+	}
+	
+	@Benchmark
+	public String encodeBytes() {
+		return RestClient.encodeBytes(credentials);
+	}
+	
+	@Benchmark
+	public long multipartBody() throws IOException {
+		InputStream body = RestClient.createMultipartPostBody("---------------------------boundary", form);
+		long size = 0;
+		int read;
+		while ((read = body.read(drain)) > 0)
+			size += read;
+		body.close();
+		
+		return size;
+	}
+}
@@ -0,0 +1,76 @@
+package org.touge.restclient.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server that the benchmarks run against, so that results do not depend on the network.
+ * 
+ * GET /bytes/{n} responds with n bytes.  POST and PUT to any path consume the request body and respond with 
+ * an empty 200.
+ *
+ */
+public class LocalHttpServer {
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * Start a server on a free port of the loopback interface.
+	 * @throws IOException on I/O error
+	 */
+	public LocalHttpServer() throws IOException {
+		// Without TCP_NODELAY the separate writes of headers and body hit delayed ACKs and every GET takes ~40ms.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		
+		executor = Executors.newCachedThreadPool();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				byte[] buff = new byte[8192];
+				while (in.read(buff) > 0)
+					;
+				
+				String path = exchange.getRequestURI().getPath();
+				int size = 0;
+				if (exchange.getRequestMethod().equals("GET") && path.startsWith("/bytes/"))
+					size = Integer.parseInt(path.substring(7));
+				
+				exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+				if (size > 0) {
+					OutputStream os = exchange.getResponseBody();
+					for (int remaining = size; remaining > 0; remaining -= buff.length)
+						os.write(buff, 0, Math.min(remaining, buff.length));
+					os.close();
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+	}
+	
+	/**
+	 * @param path path of resource
+	 * @return absolute URL of resource on this server
+	 */
+	public String url(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+	
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,56 @@
+package org.touge.restclient.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.touge.restclient.RestClient;
+
+/**
+ * Buffering of streams by RestClient.readStream(), with a known and an unknown length.  Copying of request bodies
+ * is measured by CallBenchmark.put().
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+	
+	private byte[] data;
+	
+	@Setup
+	public void setUp() {
+		data = new byte[size];
+		for (int i = 0; i < data.length; ++i)
+			data[i] = (byte) i;
+	}
+	
+	@Benchmark
+	public byte[] readStream() throws IOException {
+		return RestClient.readStream(new ByteArrayInputStream(data));
+	}
+	
+	@Benchmark
+	public byte[] readStreamUnknownLength() throws IOException {
+		// A FilterInputStream hides the length of the array, like a response without Content-Length.
+		return RestClient.readStream(new FilterInputStream(new ByteArrayInputStream(data)) { }, -1);
+	}
+}
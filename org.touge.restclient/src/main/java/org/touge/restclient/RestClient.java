@@ -6,27 +6,102 @@
 package org.touge.restclient;
 
 import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
 import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.text.SimpleDateFormat;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.SSLException;
 
 /**
  * A client library for accessing resources via HTTP.
@@ -39,6 +114,13 @@ public class RestClient {
 	private static final String APPLICATION_X_WWW_FORM_URLENCODED = "application/x-www-form-urlencoded";
 	
 	private static final int COPY_BUFFER_SIZE = 1024 * 4;
+	private static final int POOLED_BUFFER_SIZE = 1024 * 16;
+	private static final int POOLED_BUFFER_COUNT = 32;
+	private static final int MAX_PRESIZED_LENGTH = 1024 * 1024 * 16;
+	private static final int MAX_REPLAY_BUFFER_LENGTH = 1024 * 1024 * 16;
+	private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+	private static final int DEFAULT_CHUNK_SIZE = 1024 * 8;
+	private static final int DEFAULT_BATCH_PARALLELISM = 5;
 	private static final int RANDOM_CHAR_COUNT = 15;
 	private static final String HEADER_TYPE = HEADER_CONTENT_TYPE;
 	private static final String HEADER_PARA = "Content-Disposition: form-data";
@@ -47,6 +129,11 @@ public class RestClient {
 	private static final String LINE_ENDING = "\r\n";
 	private static final String BOUNDARY = "boundary=";
 	private static final String PARA_NAME = "name";	
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+	private static final String ACCEPT_ENCODING = "gzip, deflate";
+	private static final int MIN_COMPRESSED_SIZE = 256;
 	
 	/**
 	 * HTTP methods supported by REST client.
@@ -74,6 +161,19 @@ public class RestClient {
 		HttpURLConnection getConnection(String urlStr) throws IOException;
 	}
 	
+	/**
+	 * Resolves host names to addresses for ResolvingConnectionProvider.  Implement to replace the JVM's resolution,
+	 * e.g. with a cache of a different TTL or with fixed addresses in tests.
+	 */
+	public interface HostResolver {
+		/**
+		 * @param host host name
+		 * @return addresses of the host, in the order they should be tried
+		 * @throws UnknownHostException if the host cannot be resolved
+		 */
+		InetAddress[] resolve(String host) throws UnknownHostException;
+	}
+	
 	/**
 	 * A caching interface clients may set to enable caching of GETs.
 	 * Client implementation must handle caching logic such as expiring entries and managing resources.
@@ -108,6 +208,28 @@ public class RestClient {
 		 */
 		int getResponseCode();
 	}
+	
+	/**
+	 * A cache entry whose content can be read without copying it onto the heap.  When a cache returns such an
+	 * entry, cache hits are read from getContentBuffer() rather than getContent().
+	 */
+	public interface ByteBufferCacheEntry extends HttpGETCacheEntry {
+		/**
+		 * @return a new read-only buffer of the content, positioned at the start of the content.
+		 */
+		ByteBuffer getContentBuffer();
+	}
+	
+	/**
+	 * A cache entry that knows the local time its response was received.  HttpCachePolicy computes the age of 
+	 * such entries from that time rather than from the Date of the response.
+	 */
+	public interface TimedCacheEntry extends HttpGETCacheEntry {
+		/**
+		 * @return local time in milliseconds the response was received, or -1 if unknown.
+		 */
+		long getResponseTime();
+	}
 
 	/**
 	 * Implementors can configure the http connection before every call is made.
@@ -198,6 +320,207 @@ public class RestClient {
 		T deserialize(InputStream input, int responseCode, Map<String, List<String>> headers) throws IOException;
 	}
 	
+	/**
+	 * A deserializer that receives the response body in chunks as it arrives, rather than as a stream it 
+	 * must read itself.  Memory use is independent of the size of the response if the chunks are processed 
+	 * incrementally.  Use with RestClient through StreamingDeserializerAdapter.
+	 * 
+	 * @param <T> type to deserialize to
+	 */
+	public interface StreamingResponseDeserializer<T> {
+		/**
+		 * Called before the first chunk.
+		 * 
+		 * @param responseCode HTTP response from server
+		 * @param headers HTTP response headers
+		 * @throws IOException to abort the response
+		 */
+		void start(int responseCode, Map<String, List<String>> headers) throws IOException;
+		
+		/**
+		 * Called for each chunk of the body.  The buffer is only valid for the duration of the call and its
+		 * content must be consumed or copied before returning.
+		 * 
+		 * @param buffer chunk, between position and limit
+		 * @throws IOException to abort the response
+		 */
+		void chunk(ByteBuffer buffer) throws IOException;
+		
+		/**
+		 * Called after the last chunk.
+		 * 
+		 * @return deserialized representation of response
+		 * @throws IOException on error
+		 */
+		T finish() throws IOException;
+	}
+	
+	/**
+	 * Adapts a StreamingResponseDeserializer to a ResponseDeserializer.  The response stream is read into a 
+	 * single reused buffer that is passed to the deserializer chunk by chunk.  Responses served from a cache
+	 * entry that provides a ByteBuffer are passed as a single chunk without copying.
+	 * 
+	 * @param <T> type to deserialize to
+	 */
+	public static class StreamingDeserializerAdapter<T> implements ResponseDeserializer<T> {
+		private static final int DEFAULT_BUFFER_SIZE = POOLED_BUFFER_SIZE;
+		
+		private final StreamingResponseDeserializer<T> deserializer;
+		private final int bufferSize;
+		
+		/**
+		 * @param deserializer deserializer receiving the chunks
+		 */
+		public StreamingDeserializerAdapter(StreamingResponseDeserializer<T> deserializer) {
+			this(deserializer, DEFAULT_BUFFER_SIZE);
+		}
+		
+		/**
+		 * @param deserializer deserializer receiving the chunks
+		 * @param bufferSize maximum size of chunks read from the network
+		 */
+		public StreamingDeserializerAdapter(StreamingResponseDeserializer<T> deserializer, int bufferSize) {
+			validateArguments(deserializer);
+			if (bufferSize < 1)
+				throw new IllegalArgumentException("Buffer size must be positive.");
+			
+			this.deserializer = deserializer;
+			this.bufferSize = bufferSize;
+		}
+		
+		@Override
+		public T deserialize(InputStream input, int responseCode, Map<String, List<String>> headers) throws IOException {
+			deserializer.start(responseCode, headers);
+			
+			if (input instanceof ByteBufferInputStream) {
+				ByteBuffer content = ((ByteBufferInputStream) input).buffer.asReadOnlyBuffer();
+				if (content.hasRemaining())
+					deserializer.chunk(content);
+			} else if (input != null) {
+				byte[] buff = bufferSize == POOLED_BUFFER_SIZE ? acquireBuffer() : new byte[bufferSize];
+				try {
+					ByteBuffer chunk = ByteBuffer.wrap(buff);
+					int read;
+					while ((read = input.read(buff)) != -1) {
+						if (read == 0)
+							continue;
+					
+						chunk.clear().limit(read);
+						deserializer.chunk(chunk);
+					}
+				} finally {
+					if (bufferSize == POOLED_BUFFER_SIZE)
+						releaseBuffer(buff);
+				}
+			}
+			
+			return deserializer.finish();
+		}
+	}
+	
+	/**
+	 * A StreamingResponseDeserializer that splits the body into lines and passes them to a handler as they 
+	 * arrive, e.g. the records of an NDJSON (newline-delimited JSON) response.  Only the current line is held
+	 * in memory.  Lines end with LF or CRLF, and empty lines are skipped.  The charset must encode LF as a single 
+	 * byte 0x0A, as UTF-8, US-ASCII and ISO-8859-1 do.
+	 */
+	public static class LineDeserializer implements StreamingResponseDeserializer<Long> {
+		
+		/**
+		 * Receives the lines of a response.
+		 */
+		public interface LineHandler {
+			/**
+			 * @param line line without line ending
+			 * @throws IOException to abort the response
+			 */
+			void line(String line) throws IOException;
+		}
+		
+		private final LineHandler handler;
+		private final Charset charset;
+		private byte[] line = new byte[256];
+		private int length;
+		private long count;
+		
+		/**
+		 * @param handler handler of UTF-8 encoded lines
+		 */
+		public LineDeserializer(LineHandler handler) {
+			this(handler, StandardCharsets.UTF_8);
+		}
+		
+		/**
+		 * @param handler handler of lines
+		 * @param charset charset of body
+		 */
+		public LineDeserializer(LineHandler handler, Charset charset) {
+			validateArguments(handler, charset);
+			this.handler = handler;
+			this.charset = charset;
+		}
+		
+		@Override
+		public void start(int responseCode, Map<String, List<String>> headers) throws IOException {
+			length = 0;
+			count = 0;
+		}
+		
+		@Override
+		public void chunk(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				int start = buffer.position();
+				int end = start;
+				int limit = buffer.limit();
+				while (end < limit && buffer.get(end) != '\n')
+					end++;
+				
+				append(buffer, end - start);
+				if (end == limit)
+					return;
+				
+				buffer.get();
+				emit();
+			}
+		}
+		
+		@Override
+		public Long finish() throws IOException {
+			emit();
+			
+			return count;
+		}
+		
+		/**
+		 * @param buffer buffer to copy from its position
+		 * @param n number of bytes to copy
+		 */
+		private void append(ByteBuffer buffer, int n) {
+			if (length + n > line.length)
+				line = Arrays.copyOf(line, Math.max(line.length * 2, length + n));
+			
+			buffer.get(line, length, n);
+			length += n;
+		}
+		
+		/**
+		 * Pass the current line to the handler.
+		 * 
+		 * @throws IOException if thrown by the handler
+		 */
+		private void emit() throws IOException {
+			int n = length;
+			if (n > 0 && line[n - 1] == '\r')
+				n--;
+			length = 0;
+			
+			if (n > 0) {
+				count++;
+				handler.line(new String(line, 0, n, charset));
+			}
+		}
+	}
+	
 	/**
 	 * A HTTPResponseDeserializer that returns the entire response as a String.
 	 */
@@ -207,7 +530,7 @@ public class RestClient {
 		public String deserialize(InputStream input, int responseCode, Map<String, 
 				List<String>> headers) throws IOException {			
 			if (input != null)
-				return new String(readStream(input));
+				return new String(readStream(input, getContentLength(headers)));
 			
 			return null;
 		}
@@ -265,7 +588,7 @@ public class RestClient {
 	/**
 	 * Time format for debug messages.
 	 */
-	private static final String DEBUG_TIME_FORMAT = "H:mm:ss:SSS";
+	private static final DateTimeFormatter DEBUG_TIME_FORMAT = DateTimeFormatter.ofPattern("H:mm:ss:SSS");
 	
 	/**
 	 * The response from the server for a given request.
@@ -327,6 +650,192 @@ public class RestClient {
 		public abstract String getErrorMessage();				
 	}
 	
+	/**
+	 * A Response for a request that executes asynchronously.  Continuations can be attached to the
+	 * deserialized content rather than blocking in getContent().
+	 * 
+	 * @param <T>
+	 */
+	public interface AsyncResponse<T> extends Response<T> {
+		/**
+		 * The returned stage completes with the deserialized content, or exceptionally with the
+		 * IOException that getContent() would throw.  Dependent stages are executed by the thread that
+		 * completes the request unless an async variant (e.g. thenApplyAsync) is used.  Completing or 
+		 * cancelling the stage's toCompletableFuture() does not affect the response; use cancel() instead.
+		 * If the response is cancelled before its content is available, the stage completes exceptionally 
+		 * with a CancellationException.  Dependent stages receive either exception wrapped in a 
+		 * CompletionException.
+		 * 
+		 * @return CompletionStage of the response content.
+		 */
+		CompletionStage<T> toCompletionStage();
+	}
+	
+	/**
+	 * Describes one request of a batch.  See RestClient.batch().
+	 * 
+	 * @param <T> type the response is deserialized to
+	 */
+	public static final class BatchRequest<T> {
+		private final HttpMethod method;
+		private final String url;
+		private final ResponseDeserializer<T> deserializer;
+		private final InputStream content;
+		private final Map<String, String> headers;
+		
+		/**
+		 * @param method HTTP method
+		 * @param url url of server.  If not String, toString() will be called.
+		 * @param deserializer deserializer for the response.  If null then response is deserialized to a String.
+		 */
+		public BatchRequest(HttpMethod method, Object url, ResponseDeserializer<T> deserializer) {
+			this(method, url, deserializer, null, null);
+		}
+		
+		/**
+		 * @param method HTTP method
+		 * @param url url of server.  If not String, toString() will be called.
+		 * @param deserializer deserializer for the response.  If null then response is deserialized to a String.
+		 * @param content request body or null
+		 * @param headers additional headers or null
+		 */
+		public BatchRequest(HttpMethod method, Object url, ResponseDeserializer<T> deserializer, 
+				InputStream content, Map<String, String> headers) {
+			validateArguments(method, url);
+			this.method = method;
+			this.url = url.toString();
+			this.deserializer = deserializer;
+			this.content = content;
+			this.headers = headers;
+		}
+		
+		/**
+		 * @return HTTP method
+		 */
+		public HttpMethod getMethod() {
+			return method;
+		}
+		
+		/**
+		 * @return url of server
+		 */
+		public String getUrl() {
+			return url;
+		}
+	}
+	
+	/**
+	 * The responses of a batch of requests.  Responses can be accessed in the order of the requests with
+	 * get() or getResponses(), or in the order they complete with take().  The accessors of a response block 
+	 * until it has completed.
+	 * 
+	 * @param <T> type the responses are deserialized to
+	 */
+	public final class Batch<T> {
+		private final List<FutureResponse<T>> responses;
+		private final BlockingQueue<AsyncResponse<T>> completed;
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicInteger taken = new AtomicInteger();
+		
+		/**
+		 * @param executor executor to run the workers on
+		 * @param requests requests of the batch
+		 * @param parallelism maximum number of requests executed at the same time
+		 */
+		private Batch(ExecutorService executor, List<? extends BatchRequest<T>> requests, int parallelism) {
+			responses = new ArrayList<FutureResponse<T>>(requests.size());
+			for (BatchRequest<T> request : requests)
+				responses.add(new FutureResponse<T>(null, request.method, request.url, request.deserializer, 
+						request.content, request.headers));
+			completed = new ArrayBlockingQueue<AsyncResponse<T>>(Math.max(1, responses.size()));
+			
+			Runnable worker = new Runnable() {
+				
+				@Override
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < responses.size()) {
+						FutureResponse<T> response = responses.get(i);
+						try {
+							response.run();
+						} finally {
+							completed.add(response);
+						}
+					}
+				}
+			};
+			
+			for (int i = Math.min(parallelism, responses.size()); i > 0; --i)
+				executor.execute(worker);
+		}
+		
+		/**
+		 * @return number of requests in the batch
+		 */
+		public int size() {
+			return responses.size();
+		}
+		
+		/**
+		 * @param index index of the request
+		 * @return response to the request with the given index
+		 */
+		public AsyncResponse<T> get(int index) {
+			return responses.get(index);
+		}
+		
+		/**
+		 * @return responses in the order of the requests
+		 */
+		public List<AsyncResponse<T>> getResponses() {
+			return Collections.<AsyncResponse<T>>unmodifiableList(responses);
+		}
+		
+		/**
+		 * Wait for the next response to complete.  Each response is returned once.
+		 * 
+		 * @return next completed response, or null if all responses have been taken
+		 * @throws InterruptedIOException if interrupted while waiting
+		 */
+		public AsyncResponse<T> take() throws InterruptedIOException {
+			if (taken.getAndIncrement() >= responses.size()) {
+				taken.decrementAndGet();
+				return null;
+			}
+			
+			try {
+				return completed.take();
+			} catch (InterruptedException e) {
+				taken.decrementAndGet();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for batch response.");
+			}
+		}
+		
+		/**
+		 * @return true if all requests have completed
+		 */
+		public boolean isDone() {
+			for (FutureResponse<T> response : responses)
+				if (!response.isDone())
+					return false;
+			
+			return true;
+		}
+		
+		/**
+		 * Cancel requests that have not completed.  Requests that have not started are not sent, and the connections
+		 * of requests in flight are disconnected.
+		 * 
+		 * @param mayInterruptIfRunning true if threads executing requests should be interrupted, e.g. while they 
+		 * wait for a connection of a PooledConnectionProvider or for a retry
+		 */
+		public void cancel(boolean mayInterruptIfRunning) {
+			for (FutureResponse<T> response : responses)
+				response.cancel(mayInterruptIfRunning);
+		}
+	}
+	
 	/**
 	 * The ErrorHander does something based on an HTTP or I/O error.
 	 *
@@ -365,7 +874,8 @@ public class RestClient {
 	}
 	
 	/**
-	 * Simple cache implementation using a HashMap backend.
+	 * Simple cache implementation using a HashMap backend.  This cache is unbounded and not thread safe,
+	 * see LRUCache for a cache that can be shared by concurrent requests.
 	 */
 	public static class HashMapCache implements RestClient.HttpGETCache {
 		protected final int CONTENT_INDEX = 0;
@@ -375,22 +885,24 @@ public class RestClient {
 
 		@Override
 		public HttpGETCacheEntry get(final String key) {		
-			if (cache.containsKey(key)) {
+			final Object[] ov = cache.get(key);
+			
+			if (ov != null) {
 				return new RestClient.HttpGETCacheEntry() {
 					
 					@Override
 					public int getResponseCode() {
-						return ((Integer) cache.get(key)[CODE_INDEX]).intValue();
+						return ((Integer) ov[CODE_INDEX]).intValue();
 					}
 										
 					@Override
 					public Map<String, List<String>> getHeaders() {						
-						return (Map<String, List<String>>) cache.get(key)[HEADERS_INDEX];
+						return (Map<String, List<String>>) ov[HEADERS_INDEX];
 					}
 
 					@Override
 					public byte[] getContent() {
-						return (byte []) cache.get(key)[CONTENT_INDEX];
+						return (byte []) ov[CONTENT_INDEX];
 					}
 				};
 			}
@@ -421,1089 +933,7402 @@ public class RestClient {
 	}
 	
 	/**
-	 * Used to specify a file to upload in a multipart POST.
-	 *
+	 * An immutable HttpGETCacheEntry.
 	 */
-	public static class FormInputStream extends InputStream {
-		private static final long serialVersionUID = 2957338960806476533L;
-		private final String mimeType;
-		private final InputStream parent;
-		private final String name;
-
+	public static class BasicCacheEntry implements HttpGETCacheEntry {
+		private final byte[] content;
+		private final Map<String, List<String>> headers;
+		private final int responseCode;
+		
 		/**
-		 * @param parent Input stream of file
-		 * @param name name of file
-		 * @param mimeType mimetype for content of file
+		 * @param content body of response
+		 * @param headers headers of response
+		 * @param responseCode HTTP response code
 		 */
-		public FormInputStream(InputStream parent, String name, String mimeType) {
-
-			this.parent = parent;
-			this.name = name;
-			this.mimeType = mimeType;					
+		public BasicCacheEntry(byte[] content, Map<String, List<String>> headers, int responseCode) {
+			this.content = content;
+			this.headers = headers;
+			this.responseCode = responseCode;
 		}
 		
 		/**
-		 * @return Mime type of file.
+		 * @param entry entry to copy
 		 */
-		public String getMimeType() {
-			return mimeType;
+		public BasicCacheEntry(HttpGETCacheEntry entry) {
+			this(entry.getContent(), entry.getHeaders(), entry.getResponseCode());
 		}
-
+		
 		@Override
-		public int read() throws IOException {			
-			return parent.read();
+		public byte[] getContent() {
+			return content;
 		}
 		
 		@Override
-		public int read(byte[] b) throws IOException {		
-			return parent.read(b);
+		public Map<String, List<String>> getHeaders() {
+			return headers;
 		}
 		
 		@Override
-		public int read(byte[] b, int off, int len) throws IOException {
-			return parent.read(b, off, len);
-		}
-
-		/**
-		 * @return name of content
-		 */
-		public String getName() {
-			return name;
+		public int getResponseCode() {
+			return responseCode;
 		}
 	}
 	
 	/**
-	 * A ConnectionIntializer for timeouts.
-	 *
+	 * A thread safe cache that holds at most a fixed number of body bytes.  When the limit is reached the least 
+	 * recently used entries are evicted.  Entries whose body alone is larger than the limit are not stored.
 	 */
-	public static class TimeoutConnectionInitializer implements ConnectionInitializer {
-
-		private final int connectTimeout;
-		private final int readTimeout;
-
+	public static class LRUCache implements RestClient.HttpGETCache {
+		private final long maxWeight;
+		private final LinkedHashMap<String, BasicCacheEntry> cache;
+		private long weight;
+		private long hits;
+		private long misses;
+		private long evictions;
+		
 		/**
-		 * @param connectTimeout
-		 * @param readTimeout
+		 * @param maxWeight maximum number of body bytes held by the cache.
 		 */
-		public TimeoutConnectionInitializer(int connectTimeout, int readTimeout) {
-			this.connectTimeout = connectTimeout;
-			this.readTimeout = readTimeout;
+		public LRUCache(long maxWeight) {
+			if (maxWeight < 1)
+				throw new IllegalArgumentException("Maximum weight must be positive.");
 			
+			this.maxWeight = maxWeight;
+			this.cache = new LinkedHashMap<String, BasicCacheEntry>(16, 0.75f, true);
 		}
 		
 		@Override
-		public void initialize(HttpURLConnection connection) {
-			connection.setConnectTimeout(connectTimeout);
-			connection.setReadTimeout(readTimeout);
+		public HttpGETCacheEntry get(String key) {
+			synchronized (cache) {
+				BasicCacheEntry entry = cache.get(key);
+				
+				if (entry == null)
+					misses++;
+				else
+					hits++;
+				
+				return entry;
+			}
 		}
-	}
-	
-	/**
-	 * A Connection Initializer that sends Basic Authentication header in the request.
-	 *
-	 */
-	public static class BasicAuthConnectionInitializer implements ConnectionInitializer {
-
-		private final String field;
-
+		
+		@Override
+		public void put(String key, HttpGETCacheEntry entry) {
+			BasicCacheEntry value = null;
+			if (entry != null)
+				value = entry instanceof BasicCacheEntry ? (BasicCacheEntry) entry : new BasicCacheEntry(entry);
+			
+			synchronized (cache) {
+				BasicCacheEntry previous = value == null ? cache.remove(key) : cache.put(key, value);
+				if (previous != null)
+					weight -= weigh(previous);
+				
+				if (value == null)
+					return;
+				
+				long w = weigh(value);
+				if (w > maxWeight) {
+					cache.remove(key);
+					return;
+				}
+				
+				weight += w;
+				for (Iterator<BasicCacheEntry> i = cache.values().iterator(); weight > maxWeight && i.hasNext();) {
+					weight -= weigh(i.next());
+					i.remove();
+					evictions++;
+				}
+			}
+		}
+		
 		/**
-		 * @param username
-		 * @param password
+		 * @param entry cache entry
+		 * @return weight of entry
 		 */
-		public BasicAuthConnectionInitializer(String username, String password) {
-			String userpass = username + ":" + password;
-			field = "Basic " + encodeBytes(userpass.getBytes()); 
+		private static long weigh(HttpGETCacheEntry entry) {
+			byte[] content = entry.getContent();
+			
+			return content == null ? 0 : content.length;
 		}
 		
-		@Override
-		public void initialize(HttpURLConnection connection) {
-			connection.addRequestProperty("Authorization", field);
-		}		
-	}
-
-	private static Random RNG;
-
-	private ConnectionProvider connectionProvider;
-
-	private final List<ConnectionInitializer> connectionInitializers;
-	
-	private HttpGETCache contentCache;
-	
-	private ErrorHandler errorHandler;
-	private PrintWriter debugStream;
-	private SimpleDateFormat debugTimeFormat;
+		/**
+		 * Remove all entries.
+		 */
+		public void clear() {
+			synchronized (cache) {
+				cache.clear();
+				weight = 0;
+			}
+		}
 		
-	/**
-	 * Default constructor.
-	 */
-	public RestClient() {
-		this.connectionProvider = new DefaultConnectionProvider();
-		this.connectionInitializers = new ArrayList<ConnectionInitializer>();
-		this.errorHandler = null;
-		this.contentCache = null;
-	}
-	
-	/**
-	 * @param connectionProvider ConnectionProvider
-	 */
-	public RestClient(ConnectionProvider connectionProvider) {
-		this.connectionProvider = connectionProvider;
-		this.connectionInitializers = new ArrayList<ConnectionInitializer>();
-		this.errorHandler = null;
-		this.contentCache = null;
-	}
-	
-	/**
-	 * @param initializer ConnectionInitializer
-	 */
-	public RestClient(ConnectionInitializer initializer) {
-		this();
-		connectionInitializers.add(initializer);
-	}
+		/**
+		 * @return number of entries in the cache
+		 */
+		public int size() {
+			synchronized (cache) {
+				return cache.size();
+			}
+		}
 		
-	/**
-	 * Creates a ReSTClient with basic authentication credentials.
-	 * @param username
-	 * @param password
-	 */
-	public RestClient(String username, String password) {
-		this();
-		connectionInitializers.add(new BasicAuthConnectionInitializer(username, password));
+		/**
+		 * @return number of body bytes held by the cache
+		 */
+		public long getWeight() {
+			synchronized (cache) {
+				return weight;
+			}
+		}
+		
+		/**
+		 * @return maximum number of body bytes held by the cache
+		 */
+		public long getMaxWeight() {
+			return maxWeight;
+		}
+		
+		/**
+		 * @return number of lookups that found an entry
+		 */
+		public long getHitCount() {
+			synchronized (cache) {
+				return hits;
+			}
+		}
+		
+		/**
+		 * @return number of lookups that did not find an entry
+		 */
+		public long getMissCount() {
+			synchronized (cache) {
+				return misses;
+			}
+		}
+		
+		/**
+		 * @return number of entries removed to stay within the maximum weight
+		 */
+		public long getEvictionCount() {
+			synchronized (cache) {
+				return evictions;
+			}
+		}
 	}
 	
 	/**
-	 * @param connectionProvider ConnectionProvider
-	 * @param initializer ConnectionInitializer
+	 * A persistent cache that stores each entry in a file of a directory.  Entries survive restarts of the
+	 * application and are read through memory-mapped buffers, so cache hits are served without copying the body
+	 * onto the heap.  When the total size of the entries exceeds the maximum size, the least recently used 
+	 * entries are deleted.  The size and use order of the entries are kept in memory, loaded from the directory 
+	 * when the cache is created.
 	 */
-	public RestClient(ConnectionProvider connectionProvider, ConnectionInitializer initializer) {
-		this(connectionProvider);
-		connectionInitializers.add(initializer);
+	public static class DiskCache implements RestClient.HttpGETCache {
+		private static final int MAGIC = 0x54434832;
+		private static final String ENTRY_SUFFIX = ".entry";
+		private static final String TEMP_SUFFIX = ".tmp";
+		
+		private final File directory;
+		private final long maxSize;
+		/**
+		 * Length of each entry file by name, least recently used first.
+		 */
+		private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		private long size;
+		
+		/**
+		 * @param directory directory to store entries in.  Created if it does not exist.
+		 * @throws IOException if the directory cannot be created
+		 */
+		public DiskCache(File directory) throws IOException {
+			this(directory, Long.MAX_VALUE);
+		}
+		
+		/**
+		 * @param directory directory to store entries in.  Created if it does not exist.
+		 * @param maxSize maximum number of bytes of all entry files.
+		 * @throws IOException if the directory cannot be created
+		 */
+		public DiskCache(File directory, long maxSize) throws IOException {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Unable to create cache directory " + directory);
+			
+			this.directory = directory;
+			this.maxSize = maxSize;
+			
+			List<File> entries = new ArrayList<File>();
+			for (File file : listFiles()) {
+				if (file.getName().endsWith(TEMP_SUFFIX))
+					file.delete();
+				else if (file.getName().endsWith(ENTRY_SUFFIX))
+					entries.add(file);
+			}
+			
+			// Entries are touched when they are read, so the modification time gives their use order.
+			Collections.sort(entries, new Comparator<File>() {
+				
+				@Override
+				public int compare(File a, File b) {
+					long la = a.lastModified();
+					long lb = b.lastModified();
+					
+					return la < lb ? -1 : (la == lb ? 0 : 1);
+				}
+			});
+			
+			for (File file : entries) {
+				long length = file.length();
+				index.put(file.getName(), length);
+				size += length;
+			}
+		}
+		
+		@Override
+		public HttpGETCacheEntry get(String key) {
+			File file = getFile(key);
+			if (!file.isFile())
+				return null;
+			
+			try {
+				MappedByteBuffer buffer;
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				} finally {
+					raf.close();
+				}
+				
+				DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+				if (in.readInt() != MAGIC || !key.equals(in.readUTF()))
+					return null;
+				
+				int responseCode = in.readInt();
+				long responseTime = in.readLong();
+				int headerCount = in.readInt();
+				Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+				for (int i = 0; i < headerCount; ++i) {
+					String name = in.readBoolean() ? in.readUTF() : null;
+					int valueCount = in.readInt();
+					List<String> values = new ArrayList<String>(valueCount);
+					for (int j = 0; j < valueCount; ++j)
+						values.add(in.readUTF());
+					
+					headers.put(name, Collections.unmodifiableList(values));
+				}
+				
+				long length = in.readLong();
+				if (length != buffer.remaining())
+					throw new EOFException("Truncated cache entry " + file);
+				
+				file.setLastModified(System.currentTimeMillis());
+				synchronized (this) {
+					index.get(file.getName());
+				}
+				
+				return new MappedCacheEntry(buffer.slice(), Collections.unmodifiableMap(headers), responseCode, responseTime);
+			} catch (IOException e) {
+				// Unreadable entries are treated as misses and replaced on the next put.
+				return null;
+			}
+		}
+		
+		@Override
+		public void put(String key, HttpGETCacheEntry entry) {
+			File file = getFile(key);
+			
+			if (entry == null) {
+				synchronized (this) {
+					Long length = index.remove(file.getName());
+					if (length != null)
+						size -= length;
+					file.delete();
+				}
+				return;
+			}
+			
+			File temp = null;
+			try {
+				temp = File.createTempFile("entry", TEMP_SUFFIX, directory);
+				write(temp, key, entry);
+				
+				synchronized (this) {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+							StandardCopyOption.ATOMIC_MOVE);
+					long length = file.length();
+					Long previous = index.put(file.getName(), length);
+					size += length - (previous == null ? 0 : previous);
+					
+					if (size > maxSize)
+						evict();
+				}
+			} catch (IOException e) {
+				// The entry is not cached.
+				if (temp != null)
+					temp.delete();
+			}
+		}
+		
+		/**
+		 * Write an entry to a file.
+		 * 
+		 * @param file file to write to
+		 * @param key key of entry
+		 * @param entry entry to write
+		 * @throws IOException on I/O error
+		 */
+		private void write(File file, String key, HttpGETCacheEntry entry) throws IOException {
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(MAGIC);
+				out.writeUTF(key);
+				out.writeInt(entry.getResponseCode());
+				out.writeLong(entry instanceof TimedCacheEntry ? ((TimedCacheEntry) entry).getResponseTime() : -1);
+				
+				Map<String, List<String>> headers = entry.getHeaders();
+				if (headers == null)
+					headers = Collections.emptyMap();
+				
+				out.writeInt(headers.size());
+				for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+					out.writeBoolean(header.getKey() != null);
+					if (header.getKey() != null)
+						out.writeUTF(header.getKey());
+					
+					out.writeInt(header.getValue().size());
+					for (String value : header.getValue())
+						out.writeUTF(value);
+				}
+				
+				if (entry instanceof ByteBufferCacheEntry) {
+					ByteBuffer content = ((ByteBufferCacheEntry) entry).getContentBuffer();
+					out.writeLong(content.remaining());
+					out.flush();
+					
+					FileChannel channel = fos.getChannel();
+					while (content.hasRemaining())
+						channel.write(content);
+				} else {
+					byte[] content = entry.getContent();
+					out.writeLong(content.length);
+					out.write(content);
+				}
+				out.flush();
+			} finally {
+				fos.close();
+			}
+		}
+		
+		/**
+		 * Delete the least recently used entries until the cache is within its maximum size.
+		 */
+		private void evict() {
+			for (Iterator<Map.Entry<String, Long>> i = index.entrySet().iterator(); i.hasNext() && size > maxSize;) {
+				Map.Entry<String, Long> entry = i.next();
+				File file = new File(directory, entry.getKey());
+				
+				if (file.delete() || !file.exists()) {
+					size -= entry.getValue();
+					i.remove();
+				}
+			}
+		}
+		
+		/**
+		 * @return files in the cache directory
+		 */
+		private File[] listFiles() {
+			File[] files = directory.listFiles();
+			
+			return files == null ? new File[0] : files;
+		}
+		
+		/**
+		 * @param key cache key
+		 * @return file that stores the entry of key
+		 */
+		private File getFile(String key) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-1");
+				byte[] hash = digest.digest(key.getBytes("UTF-8"));
+				StringBuilder sb = new StringBuilder(hash.length * 2 + ENTRY_SUFFIX.length());
+				
+				for (byte b : hash) {
+					sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+					sb.append(Character.forDigit(b & 0xf, 16));
+				}
+				sb.append(ENTRY_SUFFIX);
+				
+				return new File(directory, sb.toString());
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		/**
+		 * Remove all entries.
+		 */
+		public synchronized void clear() {
+			for (String name : index.keySet())
+				new File(directory, name).delete();
+			
+			index.clear();
+			size = 0;
+		}
+		
+		/**
+		 * @return number of bytes of all entry files
+		 */
+		public synchronized long getSize() {
+			return size;
+		}
+		
+		/**
+		 * @return directory entries are stored in
+		 */
+		public File getDirectory() {
+			return directory;
+		}
 	}
 	
 	/**
-	 * @param initializer ConnectionInitializer
-	 * @param deserializer ResponseDeserializer<T>
+	 * An entry read from a DiskCache.  The content is a memory-mapped view of the entry file.
 	 */
-	public RestClient(ConnectionInitializer initializer, ResponseDeserializer<?> deserializer) {
-		this(initializer);
+	private static final class MappedCacheEntry implements ByteBufferCacheEntry, TimedCacheEntry {
+		private final ByteBuffer content;
+		private final Map<String, List<String>> headers;
+		private final int responseCode;
+		private final long responseTime;
+		
+		public MappedCacheEntry(ByteBuffer content, Map<String, List<String>> headers, int responseCode, 
+				long responseTime) {
+			this.content = content;
+			this.headers = headers;
+			this.responseCode = responseCode;
+			this.responseTime = responseTime;
+		}
+		
+		@Override
+		public ByteBuffer getContentBuffer() {
+			return content.asReadOnlyBuffer();
+		}
+		
+		@Override
+		public byte[] getContent() {
+			ByteBuffer buffer = content.duplicate();
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			
+			return bytes;
+		}
+		
+		@Override
+		public Map<String, List<String>> getHeaders() {
+			return headers;
+		}
+		
+		@Override
+		public int getResponseCode() {
+			return responseCode;
+		}
+		
+		@Override
+		public long getResponseTime() {
+			return responseTime;
+		}
 	}
 	
 	/**
-	 * @param connectionProvider ConnectionProvider
-	 * @param initializer ConnectionInitializer
-	 * @param deserializer ResponseDeserializer<T>
+	 * An entry created by HttpCachePolicy for a response just received.
 	 */
-	public RestClient(ConnectionProvider connectionProvider, ConnectionInitializer initializer, ResponseDeserializer<?> deserializer) {
-		this(connectionProvider, initializer);
+	private static final class TimedBasicCacheEntry extends BasicCacheEntry implements TimedCacheEntry {
+		private final long responseTime;
+		
+		public TimedBasicCacheEntry(byte[] content, Map<String, List<String>> headers, int responseCode, 
+				long responseTime) {
+			super(content, headers, responseCode);
+			this.responseTime = responseTime;
+		}
+		
+		@Override
+		public long getResponseTime() {
+			return responseTime;
+		}
 	}
 	
 	/**
-	 * @param connectionProvider ConnectionProvider
-	 * @param initializer ConnectionInitializer
-	 * @param deserializer ResponseDeserializer<T>
-	 * @param errorHandler ErrorHandler
+	 * Applies HTTP caching semantics (RFC 7234) to the responses stored in an HttpGETCache.
+	 * 
+	 * Responses are stored unless they carry Cache-Control: no-store.  A stored response is fresh while its age is 
+	 * less than the lifetime given by Cache-Control max-age or Expires, or the default time to live if the server 
+	 * gave neither.  Stale responses are revalidated with If-None-Match and If-Modified-Since using the ETag and
+	 * Last-Modified of the stored response; a 304 (Not Modified) updates the stored headers and keeps the body.
+	 * 
+	 * A stale response may be served while it is revalidated in the background (RFC 5861) for the window given by
+	 * the stale-while-revalidate directive of the response, or the default window of the policy if the server 
+	 * gave none.  Responses with must-revalidate or no-cache are never served stale.
 	 */
-	public RestClient(ConnectionProvider connectionProvider, ConnectionInitializer initializer, 
-			ResponseDeserializer<?> deserializer, ErrorHandler errorHandler) {
-		this.connectionProvider = connectionProvider;
-		this.connectionInitializers = new ArrayList<ConnectionInitializer>();
-		this.errorHandler = errorHandler;
-		this.contentCache = null;
-		connectionInitializers.add(initializer);		
-	}
-	
-	/**
-	 * @param connectionProvider ConnectionProvider
-	 * @param initializer ConnectionInitializer
-	 * @param deserializer ResponseDeserializer<T>
-	 * @param errorHandler ErrorHandler
-	 * @param debugStream OutputStream to pass debug messages to.  If null, no debug output.
-	 */
-	public RestClient(ConnectionProvider connectionProvider, ConnectionInitializer initializer, 
-			ResponseDeserializer<?> deserializer, ErrorHandler errorHandler, PrintWriter debugStream) {
-		this.connectionProvider = connectionProvider;
-		this.connectionInitializers = new ArrayList<ConnectionInitializer>();
-		this.errorHandler = errorHandler;
-		this.debugStream = debugStream;
-		this.contentCache = null;
-		connectionInitializers.add(initializer);		
-	}
-	
-	// Public methods
-	/**
-	 * Set a content cache for the client.  Will be used to cache GET methods only.
-	 * @param cache
-	 */
-	public void setCache(HttpGETCache cache) {
-		this.contentCache = cache;
-	}
-	
-	/**
-	 * @return current ContentCache or null if not previously set.
-	 */
-	public HttpGETCache getCache() {
-		return contentCache;
-	}
-	
-	/**
-	 * @return ErrorHandler
-	 */
-	public ErrorHandler getErrorHandler() {
-		return errorHandler;
-	}
-	
-	/**
-	 * Sets an error handler for the client.  If no error handler is set, HTTP (application level) errors will be ignored 
-	 * by the client.
-	 * 
-	 * Creating a custom ErrorHandler let's the client handle specific errors from the server in an application specific way.
-	 * 
-	 * See also: THROW_ALL_ERRORS, THROW_5XX_ERRORS
-	 * 
-	 * @param handler ErrorHandler
-	 */
-	public void setErrorHandler(ErrorHandler handler) {
-		this.errorHandler = handler;
-	}
-	
-	/**
-	 * Sets a debug OutputStream for the client.  If null is passed, no debug output
-	 * will be generated.
-	 * 
-	 * @param debugStream OutputStream
-	 */
-	public void setDebugWriter(PrintWriter writer) {
-		this.debugStream = writer;
+	public static class HttpCachePolicy {
+		private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+		private static final String HEADER_DATE = "Date";
+		private static final String HEADER_AGE = "Age";
+		private static final String HEADER_EXPIRES = "Expires";
+		private static final String HEADER_ETAG = "ETag";
+		private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+		
+		private final long defaultTtl;
+		private final long defaultStaleWhileRevalidate;
 		
-		if (writer != null && debugTimeFormat == null) {
-			debugTimeFormat = new SimpleDateFormat(DEBUG_TIME_FORMAT);
+		/**
+		 * Create a policy that revalidates responses without explicit freshness information on every request.
+		 */
+		public HttpCachePolicy() {
+			this(0);
 		}
-	}
-	
-	/**
-	 * @param provider ConnectionProvider
-	 */
-	public void setConnectionProvider(ConnectionProvider provider) {
-		this.connectionProvider = provider;
-	}
-	
-	/**
-	 * @return ConnectionProvider
-	 */
-	public ConnectionProvider getConnectionProvider() {
-		return connectionProvider;
-	}
-	
-	/**
-	 * @param initializer
-	 */
-	public ConnectionInitializer addConnectionInitializer(ConnectionInitializer initializer) {
-		if (!connectionInitializers.contains(initializer))
-			connectionInitializers.add(initializer);
 		
-		return initializer;
-	}
-	
-	/**
-	 * @param initializer ConnectionInitializer
-	 * @return ConnectionInitializer
-	 */
-	public boolean removeConnectionInitializer(ConnectionInitializer initializer) {
-		return connectionInitializers.remove(initializer);
-	}
-	
-	/**
-	 * This is the primary call in RestClient.  All other HTTP method calls call this method with some specific parameters.
-	 * For flexibility this method is exposed to clients but should not be used in a majority of cases.  See callGet(), 
-	 * callPost() etc. for the simplest usage.  This call is asynchronous, the Response works like a Future.
-	 * 
-	 * This method handles errors based on how the client is configured.  If no Deserializer or ErrorHander is specified
-	 * the response content will produce null.  The response class will contain the HTTP error information.
-	 * 
-	 * @param method HTTP method.  Cannot be null.
-	 * @param url url of server.  Cannot be null.
-	 * @param deserializer class to deserialize the response body.  If null then response is deserialized to a String.
-	 * @param content Optional content to pass to server, can be null.
-	 * @param headers HTTP headers that should be appended to the call.  These are in addition to any headers set 
-	 * 			in any ConnectionInitializers associated with client.
-	 * @param <T> type to deserialize to
-	 * @return deserialized response
-	 * @throws IOException on I/O error
-	 */
-	public <T> Response<T> call(final HttpMethod method, final String url, final ResponseDeserializer<T> deserializer, 
-			InputStream content, Map<String, String> headers) throws IOException {
+		/**
+		 * @param defaultTtl time in milliseconds a response without Cache-Control max-age or Expires is fresh.
+		 */
+		public HttpCachePolicy(long defaultTtl) {
+			this(defaultTtl, 0);
+		}
 		
-		validateArguments(method, url);		
+		/**
+		 * @param defaultTtl time in milliseconds a response without Cache-Control max-age or Expires is fresh.
+		 * @param defaultStaleWhileRevalidate time in milliseconds after a response has become stale that it may still
+		 * be served while it is revalidated in the background, for responses without a stale-while-revalidate directive.
+		 */
+		public HttpCachePolicy(long defaultTtl, long defaultStaleWhileRevalidate) {
+			this.defaultTtl = defaultTtl;
+			this.defaultStaleWhileRevalidate = defaultStaleWhileRevalidate;
+		}
 		
-		String httpUrl = url;
-		if (!httpUrl.startsWith("http://") && !httpUrl.startsWith("https://"))
-			httpUrl = "http://" + url;
+		/**
+		 * @param responseCode HTTP response code
+		 * @param headers response headers
+		 * @return true if the response may be stored.
+		 */
+		public boolean isStorable(int responseCode, Map<String, List<String>> headers) {
+			if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_NOT_AUTHORITATIVE
+					&& responseCode != HttpURLConnection.HTTP_MOVED_PERM)
+				return false;
+			
+			return !hasDirective(headers, "no-store");
+		}
 		
-		StringBuilder debugBuffer = null;
-		if (debugStream != null)
-			debugBuffer = debugStart(httpUrl, method.toString());
-				
-		final HttpURLConnection connection;
+		/**
+		 * @param entry stored response
+		 * @return true if the stored response can be used without contacting the server.
+		 */
+		public boolean isFresh(HttpGETCacheEntry entry) {
+			return isFresh(entry, System.currentTimeMillis());
+		}
 		
-		HttpGETCacheEntry cacheEntry = null;
-		if (method == HttpMethod.GET && contentCache != null && (cacheEntry = contentCache.get(url)) != null) {
-			connection = new CachedConnectionProvider(cacheEntry.getContent(), cacheEntry.getHeaders(), cacheEntry.getResponseCode());
+		/**
+		 * @param entry stored response
+		 * @param now current time in milliseconds
+		 * @return true if the stored response can be used without contacting the server.
+		 */
+		public boolean isFresh(HttpGETCacheEntry entry, long now) {
+			return getFreshnessLifetime(entry.getHeaders()) > getAge(entry, now);
+		}
+		
+		/**
+		 * @param entry stored response
+		 * @return true if the stored response is stale but may be served while it is revalidated in the background.
+		 */
+		public boolean canServeStale(HttpGETCacheEntry entry) {
+			return canServeStale(entry, System.currentTimeMillis());
+		}
+		
+		/**
+		 * @param entry stored response
+		 * @param now current time in milliseconds
+		 * @return true if the stored response is stale but may be served while it is revalidated in the background.
+		 */
+		public boolean canServeStale(HttpGETCacheEntry entry, long now) {
+			long window = getStaleWhileRevalidate(entry.getHeaders());
+			if (window <= 0)
+				return false;
 			
-			if (debugStream != null)
-				debugMid(debugBuffer, "[CACHE HIT]");
-		} else {
-			connection = connectionProvider.getConnection(httpUrl);
-			connection.setRequestMethod(method.toString());
+			long staleness = getAge(entry, now) - getFreshnessLifetime(entry.getHeaders());
+			
+			return staleness >= 0 && staleness < window;
 		}
 		
-		for (ConnectionInitializer initializer : connectionInitializers)
-			initializer.initialize(connection);
+		/**
+		 * @param headers response headers
+		 * @return time in milliseconds after the response has become stale that it may be served while it is revalidated.
+		 */
+		public long getStaleWhileRevalidate(Map<String, List<String>> headers) {
+			if (hasDirective(headers, "must-revalidate") || hasDirective(headers, "no-cache"))
+				return 0;
+			
+			String cacheControl = getHeaderValue(headers, HEADER_CACHE_CONTROL);
+			
+			if (cacheControl != null) {
+				for (String directive : cacheControl.split(",")) {
+					directive = directive.trim().toLowerCase(Locale.US);
+					
+					if (directive.startsWith("stale-while-revalidate=")) {
+						try {
+							return Long.parseLong(unquote(directive.substring(23))) * 1000;
+						} catch (NumberFormatException e) {
+							return 0;
+						}
+					}
+				}
+			}
+			
+			return defaultStaleWhileRevalidate;
+		}
 		
-		if (headers != null && headers.size() > 0)
-			for (Map.Entry<String, String> entry : headers.entrySet())
-				connection.addRequestProperty(entry.getKey(), entry.getValue());
-
-		ByteArrayOutputStream baos;
-		switch(method) {
-		case GET:			
-			connection.setDoInput(true);
-			connection.setDoOutput(false);
-			break;
-		case POST:
-			if (content != null) {
-				connection.setDoOutput(true);	
-				baos = new ByteArrayOutputStream();
-				copy(content, baos);					
-				writeRequestBody(connection, baos.toByteArray());	
-				baos.close();			
+		/**
+		 * @param headers response headers
+		 * @return time in milliseconds the response is fresh for after it was generated.
+		 */
+		public long getFreshnessLifetime(Map<String, List<String>> headers) {
+			// no-cache forces revalidation wherever it appears relative to max-age.
+			if (hasDirective(headers, "no-cache"))
+				return 0;
 			
-				if (debugStream != null)
-					debugMid(debugBuffer, new String(baos.toByteArray()));
+			String cacheControl = getHeaderValue(headers, HEADER_CACHE_CONTROL);
+			
+			if (cacheControl != null) {
+				for (String directive : cacheControl.split(",")) {
+					directive = directive.trim().toLowerCase(Locale.US);
+					
+					if (directive.startsWith("max-age=")) {
+						try {
+							return Long.parseLong(unquote(directive.substring(8))) * 1000;
+						} catch (NumberFormatException e) {
+							return 0;
+						}
+					}
+				}
 			}
-			break;
-		case PUT:
-			if (content != null) {
-				connection.setDoOutput(true);
-				baos = new ByteArrayOutputStream();
-				copy(content, baos);
-				writeRequestBody(connection, baos.toByteArray());
-				baos.close();
-						
-				if (debugStream != null)
-					debugMid(debugBuffer, new String(baos.toByteArray()));
+			
+			String expires = getHeaderValue(headers, HEADER_EXPIRES);
+			if (expires != null) {
+				long date = parseDate(getHeaderValue(headers, HEADER_DATE));
+				long expiry = parseDate(expires);
+				
+				if (date < 0 || expiry < 0)
+					return 0;
+				
+				return Math.max(0, expiry - date);
 			}
-			break;
-		case DELETE:
-			connection.setDoInput(true);			
-			break;
-		case HEAD:
-			connection.setDoInput(true);
-			connection.setDoOutput(false);
-			break;
-		default:
-			throw new RuntimeException("Unhandled HTTP method.");
-		}	
+			
+			return defaultTtl;
+		}
 		
-		if (debugStream != null) 
-			debugEnd(debugBuffer);
+		/**
+		 * The age of a TimedCacheEntry, such as those created by createEntry(), is computed as in RFC 7234 section 
+		 * 4.2.3 from the local time it was received, so that a server clock ahead of or behind the local clock does 
+		 * not change it.  Otherwise the Date of the response is taken as the time it was received.
+		 * 
+		 * @param entry stored response
+		 * @param now current time in milliseconds
+		 * @return age of the response in milliseconds
+		 */
+		public long getAge(HttpGETCacheEntry entry, long now) {
+			long responseTime = entry instanceof TimedCacheEntry ? ((TimedCacheEntry) entry).getResponseTime() : -1;
+			
+			return getAge(entry.getHeaders(), responseTime, now);
+		}
 		
-		return new Response<T>() {
-
-			private boolean done;
-			private boolean cancelled;
-			private StringBuilder responseBuffer;
-
-			@Override
-			public int getCode() throws IOException {	
-				int code = connection.getResponseCode();
-				
-				if (debugStream != null) {					
-					responseBuffer = debugStart(code, connection.getResponseMessage());
+		/**
+		 * @param headers response headers
+		 * @param now current time in milliseconds
+		 * @return age of the response in milliseconds, taking its Date as the time it was received.
+		 */
+		public long getAge(Map<String, List<String>> headers, long now) {
+			return getAge(headers, -1, now);
+		}
+		
+		/**
+		 * @param headers response headers
+		 * @param responseTime local time in milliseconds the response was received, or -1 if unknown
+		 * @param now current time in milliseconds
+		 * @return age of the response in milliseconds
+		 */
+		private static long getAge(Map<String, List<String>> headers, long responseTime, long now) {
+			long date = parseDate(getHeaderValue(headers, HEADER_DATE));
+			long age = 0;
+			
+			String ageValue = getHeaderValue(headers, HEADER_AGE);
+			if (ageValue != null) {
+				try {
+					age = Long.parseLong(ageValue.trim()) * 1000;
+				} catch (NumberFormatException e) {
+					// Ignore invalid Age.
 				}
-					
-				return code;
 			}
 			
-			@Override
-			public String getRequestUrl() {
-				return url;
+			if (responseTime < 0) {
+				if (date < 0)
+					return Long.MAX_VALUE;
+				
+				return Math.max(0, now - date) + age;
 			}
 			
-			@Override
-			public HttpMethod getRequestMethod() {
-				return method;			
-			}
+			long apparentAge = date < 0 ? 0 : Math.max(0, responseTime - date);
 			
-			@Override
-			public HttpURLConnection getConnection() {
-				return connection;			
-			}
-
-			@Override
-			public boolean isError() {
-				try {
-					int code = getCode();
-					return code >= HttpURLConnection.HTTP_BAD_REQUEST && code < HttpURLConnection.HTTP_VERSION;
-				} catch (IOException e) {
-					e.printStackTrace();
-					return true;
-				}		
-			}
-
-			@Override
-			public boolean cancel(boolean flag) {
-				connection.disconnect();
-				cancelled = true;
+			return Math.max(apparentAge, age) + Math.max(0, now - responseTime);
+		}
+		
+		/**
+		 * Add conditional request headers for a stored response.
+		 * 
+		 * @param connection connection of request
+		 * @param entry stored response
+		 * @return true if the request was made conditional.
+		 */
+		public boolean addValidators(HttpURLConnection connection, HttpGETCacheEntry entry) {
+			String etag = getHeaderValue(entry.getHeaders(), HEADER_ETAG);
+			String lastModified = getHeaderValue(entry.getHeaders(), HEADER_LAST_MODIFIED);
+			
+			if (etag != null)
+				connection.setRequestProperty("If-None-Match", etag);
+			if (lastModified != null)
+				connection.setRequestProperty("If-Modified-Since", lastModified);
+			
+			return etag != null || lastModified != null;
+		}
+		
+		/**
+		 * Create an entry to be stored for a response just received.  The entry records the local time it was
+		 * received; its headers are those of the response, with a Date added if the server sent none.
+		 * 
+		 * @param content response body
+		 * @param headers response headers
+		 * @param responseCode HTTP response code
+		 * @return entry to store
+		 */
+		public HttpGETCacheEntry createEntry(byte[] content, Map<String, List<String>> headers, int responseCode) {
+			long now = System.currentTimeMillis();
+			Map<String, List<String>> dated = new LinkedHashMap<String, List<String>>(headers);
+			
+			if (getHeaderValue(headers, HEADER_DATE) == null)
+				dated.put(HEADER_DATE, Collections.singletonList(formatDate(now)));
+			
+			return new TimedBasicCacheEntry(content, dated, responseCode, now);
+		}
+		
+		/**
+		 * Update a stored response with the headers of a 304 (Not Modified) response.
+		 * 
+		 * @param entry stored response
+		 * @param headers headers of 304 response
+		 * @return entry to store
+		 */
+		public HttpGETCacheEntry refresh(HttpGETCacheEntry entry, Map<String, List<String>> headers) {
+			Map<String, List<String>> merged = new LinkedHashMap<String, List<String>>(entry.getHeaders());
+			
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				String name = header.getKey();
+				if (name == null || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding"))
+					continue;
 				
-				if (responseBuffer != null) {
-					debugMid(responseBuffer, "[CANCELLED]");
-					debugEnd(responseBuffer);
+				for (Iterator<String> i = merged.keySet().iterator(); i.hasNext();) {
+					String key = i.next();
+					if (key != null && key.equalsIgnoreCase(name))
+						i.remove();
 				}
-				
-				return cancelled;
+				merged.put(name, header.getValue());
 			}
-
-			@Override
-			public boolean isCancelled() {			
-				return cancelled;				
+			
+			return createEntry(entry.getContent(), merged, entry.getResponseCode());
+		}
+		
+		/**
+		 * @param headers response headers
+		 * @param directive Cache-Control directive without value
+		 * @return true if directive is present
+		 */
+		protected static boolean hasDirective(Map<String, List<String>> headers, String directive) {
+			String cacheControl = getHeaderValue(headers, HEADER_CACHE_CONTROL);
+			
+			if (cacheControl != null) {
+				for (String d : cacheControl.split(",")) {
+					int eq = d.indexOf('=');
+					if ((eq < 0 ? d : d.substring(0, eq)).trim().equalsIgnoreCase(directive))
+						return true;
+				}
 			}
-
-			@Override
-			public boolean isDone() {
-				return done;				
+			
+			return false;
+		}
+		
+		/**
+		 * @param value directive value
+		 * @return value without quotes
+		 */
+		private static String unquote(String value) {
+			if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\""))
+				return value.substring(1, value.length() - 1);
+			
+			return value;
+		}
+		
+		/**
+		 * @param value HTTP date
+		 * @return time in milliseconds or -1 if value is null or invalid.
+		 */
+		protected static long parseDate(String value) {
+			if (value == null)
+				return -1;
+			
+			try {
+				return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				return -1;
 			}
-
-			@Override
-			public T getContent() throws IOException {									
-				if (isError()) {
-					String serverMessage = getErrorMessage();
-					
-					if (responseBuffer != null) {
-						debugMid(responseBuffer, serverMessage);						
-						debugEnd(responseBuffer);
-					}
-					
-					if (errorHandler != null) 
-						errorHandler.handleError(getCode(), serverMessage);
-						
-					if (deserializer != null)
-						return deserializer.deserialize(connection.getErrorStream(), connection.getResponseCode(), 
-								connection.getHeaderFields());
-					
-					return null;
-				}
-				
-				InputStream inputStream = connection.getInputStream();
-				final int responseCode = connection.getResponseCode();
-				final Map<String, List<String>> headerFields = connection.getHeaderFields();
-				HttpGETCacheEntry entry = null;				
-				if (contentCache != null) {
-					final byte[] buf = readStream(connection.getInputStream());
-				
-					
-					entry = new HttpGETCacheEntry() {
-						
-						@Override
-						public int getResponseCode() {
-							return responseCode;
-						}											
-						
-						@Override
-						public Map<String, List<String>> getHeaders() {
-							return headerFields;
-						}
-
-						@Override
-						public byte[] getContent() {							
-							return buf;
-						}
-					};
-					contentCache.put(url, entry);
-					
-					inputStream = new ByteArrayInputStream(buf);
-					
-					if (responseBuffer != null) 
-						debugMid(responseBuffer, "[CACHED RESPONSE]");
-				} else if (responseBuffer != null) {
-					debugMid(responseBuffer, "[NOT CACHING, INVALID RESPONSE]");					
-				}
-				
-				if (entry != null)
-				
-				if (deserializer == null) {
-					// If no deserializer is specified, use String.
-					T response = (T) RestClient.STRING_DESERIALIZER.deserialize(inputStream, 0, null);
-					done = true;
-					
-					if (responseBuffer != null) {
-						debugMid(responseBuffer, response.toString());
-						debugEnd(responseBuffer);
+		}
+		
+		/**
+		 * @param time time in milliseconds
+		 * @return HTTP date
+		 */
+		protected static String formatDate(long time) {
+			return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC));
+		}
+	}
+	
+	/**
+	 * Thrown when a request is refused by the client before it is sent, for example because no connection 
+	 * could be obtained from a PooledConnectionProvider in time.
+	 */
+	public static class RequestRejectedException extends IOException {
+		private static final long serialVersionUID = -3618502219843052379L;
+		
+		/**
+		 * @param message reason the request was rejected
+		 */
+		public RequestRejectedException(String message) {
+			super(message);
+		}
+	}
+	
+	/**
+	 * Decides which failed requests are retried and how long to wait before each retry.  Set with 
+	 * RestClient.setRetryPolicy().
+	 * 
+	 * A request is retried if it failed with an I/O error or a retryable response code, it has attempts left, and
+	 * the retry budget of its host allows it:
+	 * - Connection failures, where the request was never sent, and 429 (Too Many Requests) and 503 (Service 
+	 * Unavailable) responses, where the server did not process it, are retried for all methods.
+	 * - Other I/O errors, e.g. read timeouts, and 502 and 504 responses are only retried for idempotent methods 
+	 * (GET, HEAD, PUT, DELETE) because a POST may already have been processed.
+	 * - Requests rejected by the client (RequestRejectedException), unknown hosts and SSL errors are not retried.
+	 * 
+	 * The delay before a retry is chosen at random between zero and an exponentially growing limit (full jitter),
+	 * so that clients failing together do not retry together.  A Retry-After header of a 429 or 503 response is 
+	 * used as the delay instead; if it is longer than the maximum delay the response is returned without retrying.
+	 * 
+	 * The budget of each host holds up to maxTokens tokens.  A retry takes one token, and a request that succeeds
+	 * on its first attempt returns tokenRatio of a token.  Retries stop while no more than half of the tokens
+	 * are left, so a host that is down is not hit with a multiple of the normal load.
+	 * 
+	 * Policies can be shared by clients and are thread safe.  Subclasses can override isRetryable() to change 
+	 * which failures are retried.
+	 */
+	public static class RetryPolicy {
+		private static final int DEFAULT_MAX_ATTEMPTS = 3;
+		private static final long DEFAULT_BASE_DELAY = 100;
+		private static final long DEFAULT_MAX_DELAY = 10000;
+		private static final int DEFAULT_BUDGET_TOKENS = 10;
+		private static final double DEFAULT_TOKEN_RATIO = 0.1;
+		
+		private final int maxAttempts;
+		private final long baseDelay;
+		private final long maxDelay;
+		private volatile int maxTokens = DEFAULT_BUDGET_TOKENS;
+		private volatile double tokenRatio = DEFAULT_TOKEN_RATIO;
+		private final Map<String, double[]> budgets = new HashMap<String, double[]>();
+		
+		private final AtomicLong retries = new AtomicLong();
+		private final AtomicLong recovered = new AtomicLong();
+		private final AtomicLong exhausted = new AtomicLong();
+		private final AtomicLong throttled = new AtomicLong();
+		
+		/**
+		 * Create a policy making up to 3 attempts, with delays starting at 100ms and limited to 10 seconds.
+		 */
+		public RetryPolicy() {
+			this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+		}
+		
+		/**
+		 * @param maxAttempts maximum number of attempts, including the first
+		 * @param baseDelay limit of the delay before the first retry in milliseconds, doubled for each further retry
+		 * @param maxDelay maximum delay before a retry in milliseconds
+		 */
+		public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+			if (maxAttempts < 1)
+				throw new IllegalArgumentException("At least one attempt must be made.");
+			if (baseDelay < 0 || maxDelay < baseDelay)
+				throw new IllegalArgumentException("Invalid delays.");
+			
+			this.maxAttempts = maxAttempts;
+			this.baseDelay = baseDelay;
+			this.maxDelay = maxDelay;
+		}
+		
+		/**
+		 * Configure the retry budget of each host.  The default is 10 tokens with a ratio of 0.1, which allows
+		 * roughly one retry per ten successful requests once the initial tokens are spent.
+		 * 
+		 * @param maxTokens tokens of each host, or 0 to retry without limit
+		 * @param tokenRatio tokens returned by a request that succeeds on its first attempt
+		 */
+		public void setBudget(int maxTokens, double tokenRatio) {
+			if (maxTokens < 0 || tokenRatio < 0)
+				throw new IllegalArgumentException("Invalid budget.");
+			
+			this.maxTokens = maxTokens;
+			this.tokenRatio = tokenRatio;
+			synchronized (budgets) {
+				budgets.clear();
+			}
+		}
+		
+		/**
+		 * @param method HTTP method of request
+		 * @param responseCode response code
+		 * @return true if a request that received the response code may be retried
+		 */
+		protected boolean isRetryable(HttpMethod method, int responseCode) {
+			if (responseCode == 429 || responseCode == HttpURLConnection.HTTP_UNAVAILABLE)
+				return true;
+			
+			return isIdempotent(method) && (responseCode == HttpURLConnection.HTTP_BAD_GATEWAY 
+					|| responseCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT);
+		}
+		
+		/**
+		 * @param method HTTP method of request
+		 * @param e failure of request
+		 * @return true if a request that failed with the exception may be retried
+		 */
+		protected boolean isRetryable(HttpMethod method, IOException e) {
+			if (e instanceof RequestRejectedException || e instanceof UnknownHostException 
+					|| e instanceof MalformedURLException || e instanceof SSLException)
+				return false;
+			
+			if (e instanceof ConnectException || e instanceof NoRouteToHostException 
+					|| e instanceof HttpConnectTimeoutException)
+				return true;
+			
+			if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException))
+				return false;
+			
+			return isIdempotent(method);
+		}
+		
+		/**
+		 * @param method HTTP method
+		 * @return true if repeating the request has the same effect as sending it once
+		 */
+		protected boolean isIdempotent(HttpMethod method) {
+			return method != HttpMethod.POST;
+		}
+		
+		/**
+		 * @param attempt number of the attempt that failed, starting at 1
+		 * @return delay in milliseconds before the next attempt
+		 */
+		protected long getDelay(int attempt) {
+			long limit = baseDelay << Math.min(attempt - 1, 30);
+			if (limit > maxDelay || limit < 0)
+				limit = maxDelay;
+			
+			return limit == 0 ? 0 : ThreadLocalRandom.current().nextLong(limit + 1);
+		}
+		
+		/**
+		 * Decide whether to retry a failed attempt, taking a token from the budget of the host if so.
+		 * 
+		 * @param host host of request
+		 * @param attempt number of the attempt that failed, starting at 1
+		 * @param retryAfter delay requested by the server in milliseconds, or -1
+		 * @return delay in milliseconds before the next attempt, or -1 if the request must not be retried
+		 */
+		private long retry(String host, int attempt, long retryAfter) {
+			if (attempt >= maxAttempts) {
+				exhausted.incrementAndGet();
+				return -1;
+			}
+			if (retryAfter > maxDelay)
+				return -1;
+			
+			int max = maxTokens;
+			if (max > 0) {
+				synchronized (budgets) {
+					double[] tokens = getTokens(host, max);
+					if (tokens[0] <= max / 2.0) {
+						throttled.incrementAndGet();
+						return -1;
 					}
 					
-					return response;
-				}
-				
-				T response = deserializer.deserialize(inputStream, responseCode, headerFields);
-				
-				done = true;
-				
-				if (responseBuffer != null) {				
-					debugEnd(responseBuffer);
+					tokens[0] -= 1;
 				}
-				
-				return response;				
 			}
-
-			@Override
-			public String getErrorMessage() {
-				try {
-					String errorMessage = connection.getResponseMessage();
-					byte[] serverMessage = readStream(connection.getErrorStream());
-					if (serverMessage != null && serverMessage.length > 0) {
-						if (connection.getContentEncoding() != null)
-							errorMessage = new String(serverMessage, connection.getContentEncoding());
-						else 
-							errorMessage = new String(serverMessage, "UTF-8");
-					}
-					
-					return errorMessage;
-				} catch (IOException e) {
-					return null;
+			
+			retries.incrementAndGet();
+			
+			return retryAfter > -1 ? retryAfter : getDelay(attempt);
+		}
+		
+		/**
+		 * Record the final outcome of a request.
+		 * 
+		 * @param host host of request
+		 * @param attempts number of attempts made
+		 * @param success true if the request did not end with a retryable failure
+		 */
+		private void completed(String host, int attempts, boolean success) {
+			if (!success)
+				return;
+			
+			if (attempts > 1) {
+				recovered.incrementAndGet();
+				return;
+			}
+			
+			int max = maxTokens;
+			if (max > 0) {
+				synchronized (budgets) {
+					double[] tokens = getTokens(host, max);
+					tokens[0] = Math.min(max, tokens[0] + tokenRatio);
 				}
 			}
+		}
+		
+		/**
+		 * @param host host of request
+		 * @param max maximum tokens
+		 * @return tokens of host, a new full budget if it has none yet.  Called while holding the lock of budgets.
+		 */
+		private double[] getTokens(String host, int max) {
+			String key = host == null ? "" : host;
+			double[] tokens = budgets.get(key);
+			if (tokens == null) {
+				tokens = new double[] { max };
+				budgets.put(key, tokens);
+			}
 			
-		};				
-	}
-	
-	private StringBuilder debugStart(String httpUrl, String httpMethod) {
-		StringBuilder debugBuffer = new StringBuilder();
-		debugBuffer.append(debugTimeFormat.format(new Date(System.currentTimeMillis())));
-		debugBuffer.append(' ');
-		debugBuffer.append(httpMethod.subSequence(0, 3));
-		debugBuffer.append(' ');
-		debugBuffer.append(httpUrl);
-		debugBuffer.append(' ');
+			return tokens;
+		}
 		
-		return debugBuffer;
-	}
-	
-	private StringBuilder debugStart(int responseCode, String responseMessage) {
-		StringBuilder debugBuffer = new StringBuilder();
-		debugBuffer.append(debugTimeFormat.format(new Date(System.currentTimeMillis())));
-		debugBuffer.append(' ');
-		debugBuffer.append("<-- ");
-		debugBuffer.append(responseCode);
-		debugBuffer.append(" ");
-		debugBuffer.append(responseMessage);
+		/**
+		 * @param host host name
+		 * @return tokens left in the retry budget of the host
+		 */
+		public double getBudget(String host) {
+			synchronized (budgets) {
+				double[] tokens = budgets.get(host);
+				
+				return tokens == null ? maxTokens : tokens[0];
+			}
+		}
 		
-		debugBuffer.append(' ');
+		/**
+		 * @return number of retries made
+		 */
+		public long getRetryCount() {
+			return retries.get();
+		}
 		
-		return debugBuffer;
-	}
-	
-	private void debugMid(StringBuilder debugBuffer, String element) {		
-		debugBuffer.append(element);
-		debugBuffer.append(' ');
-	}
-	
+		/**
+		 * @return number of requests that succeeded after being retried
+		 */
+		public long getRecoveredCount() {
+			return recovered.get();
+		}
+		
+		/**
+		 * @return number of requests that failed on their last attempt
+		 */
+		public long getExhaustedCount() {
+			return exhausted.get();
+		}
+		
+		/**
+		 * @return number of retries not made because the retry budget of the host was spent
+		 */
+		public long getThrottledCount() {
+			return throttled.get();
+		}
+		
+		/**
+		 * @return maximum number of attempts, including the first
+		 */
+		public int getMaxAttempts() {
+			return maxAttempts;
+		}
+		
+		/**
+		 * @param value value of a Retry-After header, in seconds or as an HTTP date
+		 * @param now current time in milliseconds
+		 * @return delay in milliseconds, or -1 if the value is missing or invalid
+		 */
+		protected static long parseRetryAfter(String value, long now) {
+			if (value == null)
+				return -1;
+			
+			try {
+				long seconds = Long.parseLong(value.trim());
+				
+				return seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+			} catch (NumberFormatException e) {
+				long date = HttpCachePolicy.parseDate(value);
+				
+				return date < 0 ? -1 : Math.max(0, date - now);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return "RetryPolicy [maxAttempts=" + maxAttempts + ", retries=" + retries + ", recovered=" + recovered 
+					+ ", exhausted=" + exhausted + ", throttled=" + throttled + "]";
+		}
+	}
+	
+	/**
+	 * Policy for hedging GET requests to reduce tail latency.  If no response to a GET has arrived within the hedge
+	 * delay, a second identical request is sent, to the same server or to an alternate base URL, and the first
+	 * response to arrive is returned.  The other request is cancelled: immediately if it has already been answered,
+	 * otherwise as soon as its response arrives.
+	 * 
+	 * The hedge delay is a percentile of the observed latencies of the first requests, e.g. the 95th, so that only 
+	 * the slowest few percent of requests are hedged.  Until enough latencies have been observed the maximum delay
+	 * is used.  Hedging is only safe for idempotent requests, so it is never applied to other methods.
+	 */
+	public static class HedgingPolicy {
+		private static final double DEFAULT_PERCENTILE = 95;
+		private static final int MIN_SAMPLES = 20;
+		private static final long DEFAULT_TIMEOUT = 60000;
+		
+		private final double percentile;
+		private final long minDelay;
+		private final long maxDelay;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final Map<String, String> alternates = new ConcurrentHashMap<String, String>();
+		private volatile long timeout = DEFAULT_TIMEOUT;
+		
+		private final AtomicLong hedged = new AtomicLong();
+		private final AtomicLong won = new AtomicLong();
+		
+		/**
+		 * Create a policy hedging after a fixed delay.
+		 * 
+		 * @param delay delay in milliseconds
+		 */
+		public HedgingPolicy(long delay) {
+			this(DEFAULT_PERCENTILE, delay, delay);
+		}
+		
+		/**
+		 * @param percentile percentile of the latencies of the first requests to use as the delay, between 0 and 100
+		 * @param minDelay minimum delay in milliseconds
+		 * @param maxDelay maximum delay in milliseconds, used until enough latencies have been observed
+		 */
+		public HedgingPolicy(double percentile, long minDelay, long maxDelay) {
+			if (percentile <= 0 || percentile > 100)
+				throw new IllegalArgumentException("Invalid percentile.");
+			if (minDelay < 0 || maxDelay < minDelay)
+				throw new IllegalArgumentException("Invalid delays.");
+			
+			this.percentile = percentile;
+			this.minDelay = minDelay;
+			this.maxDelay = maxDelay;
+		}
+		
+		/**
+		 * Send hedged requests for URLs that start with baseUrl to an alternate server, e.g. another replica.
+		 * 
+		 * @param baseUrl base URL of the primary server
+		 * @param alternateUrl base URL replacing baseUrl in hedged requests
+		 */
+		public void addAlternate(String baseUrl, String alternateUrl) {
+			validateArguments(baseUrl, alternateUrl);
+			
+			alternates.put(baseUrl, alternateUrl);
+		}
+		
+		/**
+		 * @return delay in milliseconds before a request is hedged
+		 */
+		protected long getDelay() {
+			if (minDelay == maxDelay || latency.getCount() < MIN_SAMPLES)
+				return maxDelay;
+			
+			return Math.max(minDelay, Math.min(maxDelay, TimeUnit.NANOSECONDS.toMillis(latency.getPercentile(percentile))));
+		}
+		
+		/**
+		 * @param timeout time in milliseconds to wait for the response code of either request before the call fails 
+		 * with a SocketTimeoutException
+		 */
+		public void setTimeout(long timeout) {
+			if (timeout <= 0)
+				throw new IllegalArgumentException("Invalid timeout.");
+			
+			this.timeout = timeout;
+		}
+		
+		/**
+		 * @return time in milliseconds to wait for the response code of either request
+		 */
+		public long getTimeout() {
+			return timeout;
+		}
+		
+		/**
+		 * @param url url of the first request
+		 * @return url of the hedged request
+		 */
+		protected String getHedgeUrl(String url) {
+			for (Map.Entry<String, String> entry : alternates.entrySet())
+				if (isBaseOf(entry.getKey(), url))
+					return entry.getValue() + url.substring(entry.getKey().length());
+			
+			return url;
+		}
+		
+		/**
+		 * @return latencies of the first requests
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+		
+		/**
+		 * @return number of hedged requests sent
+		 */
+		public long getHedgedCount() {
+			return hedged.get();
+		}
+		
+		/**
+		 * @return number of hedged requests answered before the first request
+		 */
+		public long getWonCount() {
+			return won.get();
+		}
+		
+		@Override
+		public String toString() {
+			return "HedgingPolicy [delay=" + getDelay() + ", timeout=" + timeout + ", hedged=" + hedged + ", won=" + won + "]";
+		}
+	}
+	
+	/**
+	 * An HttpURLConnection that forwards all calls to another connection.  Subclasses override the calls they
+	 * need to observe or change.
+	 */
+	public static class DelegatingConnection extends HttpURLConnection {
+		private volatile HttpURLConnection delegate;
+		
+		/**
+		 * @param delegate connection calls are forwarded to
+		 */
+		public DelegatingConnection(HttpURLConnection delegate) {
+			super(delegate.getURL());
+			this.delegate = delegate;
+		}
+		
+		/**
+		 * @return connection calls are forwarded to
+		 */
+		public HttpURLConnection getDelegate() {
+			return delegate;
+		}
+		
+		/**
+		 * Replace the connection calls are forwarded to, e.g. by a new connection to retry a failed one.
+		 * 
+		 * @param delegate connection calls are forwarded to
+		 */
+		protected void setDelegate(HttpURLConnection delegate) {
+			this.delegate = delegate;
+		}
+		
+		@Override
+		public void connect() throws IOException {
+			delegate.connect();
+		}
+		
+		@Override
+		public void disconnect() {
+			delegate.disconnect();
+		}
+		
+		@Override
+		public boolean usingProxy() {
+			return delegate.usingProxy();
+		}
+		
+		@Override
+		public URL getURL() {
+			return delegate.getURL();
+		}
+		
+		@Override
+		public void setRequestMethod(String method) throws ProtocolException {
+			delegate.setRequestMethod(method);
+		}
+		
+		@Override
+		public String getRequestMethod() {
+			return delegate.getRequestMethod();
+		}
+		
+		@Override
+		public void setRequestProperty(String key, String value) {
+			delegate.setRequestProperty(key, value);
+		}
+		
+		@Override
+		public void addRequestProperty(String key, String value) {
+			delegate.addRequestProperty(key, value);
+		}
+		
+		@Override
+		public String getRequestProperty(String key) {
+			return delegate.getRequestProperty(key);
+		}
+		
+		@Override
+		public Map<String, List<String>> getRequestProperties() {
+			return delegate.getRequestProperties();
+		}
+		
+		@Override
+		public void setDoInput(boolean doinput) {
+			delegate.setDoInput(doinput);
+		}
+		
+		@Override
+		public boolean getDoInput() {
+			return delegate.getDoInput();
+		}
+		
+		@Override
+		public void setDoOutput(boolean dooutput) {
+			delegate.setDoOutput(dooutput);
+		}
+		
+		@Override
+		public boolean getDoOutput() {
+			return delegate.getDoOutput();
+		}
+		
+		@Override
+		public void setUseCaches(boolean usecaches) {
+			delegate.setUseCaches(usecaches);
+		}
+		
+		@Override
+		public boolean getUseCaches() {
+			return delegate.getUseCaches();
+		}
+		
+		@Override
+		public void setAllowUserInteraction(boolean allowuserinteraction) {
+			delegate.setAllowUserInteraction(allowuserinteraction);
+		}
+		
+		@Override
+		public boolean getAllowUserInteraction() {
+			return delegate.getAllowUserInteraction();
+		}
+		
+		@Override
+		public void setIfModifiedSince(long ifmodifiedsince) {
+			delegate.setIfModifiedSince(ifmodifiedsince);
+		}
+		
+		@Override
+		public long getIfModifiedSince() {
+			return delegate.getIfModifiedSince();
+		}
+		
+		@Override
+		public void setConnectTimeout(int timeout) {
+			delegate.setConnectTimeout(timeout);
+		}
+		
+		@Override
+		public int getConnectTimeout() {
+			return delegate.getConnectTimeout();
+		}
+		
+		@Override
+		public void setReadTimeout(int timeout) {
+			delegate.setReadTimeout(timeout);
+		}
+		
+		@Override
+		public int getReadTimeout() {
+			return delegate.getReadTimeout();
+		}
+		
+		@Override
+		public void setInstanceFollowRedirects(boolean followRedirects) {
+			delegate.setInstanceFollowRedirects(followRedirects);
+		}
+		
+		@Override
+		public boolean getInstanceFollowRedirects() {
+			return delegate.getInstanceFollowRedirects();
+		}
+		
+		@Override
+		public void setChunkedStreamingMode(int chunklen) {
+			delegate.setChunkedStreamingMode(chunklen);
+		}
+		
+		@Override
+		public void setFixedLengthStreamingMode(int contentLength) {
+			delegate.setFixedLengthStreamingMode(contentLength);
+		}
+		
+		@Override
+		public void setFixedLengthStreamingMode(long contentLength) {
+			delegate.setFixedLengthStreamingMode(contentLength);
+		}
+		
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return delegate.getOutputStream();
+		}
+		
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return delegate.getInputStream();
+		}
+		
+		@Override
+		public InputStream getErrorStream() {
+			return delegate.getErrorStream();
+		}
+		
+		@Override
+		public int getResponseCode() throws IOException {
+			return delegate.getResponseCode();
+		}
+		
+		@Override
+		public String getResponseMessage() throws IOException {
+			return delegate.getResponseMessage();
+		}
+		
+		@Override
+		public Map<String, List<String>> getHeaderFields() {
+			return delegate.getHeaderFields();
+		}
+		
+		@Override
+		public String getHeaderField(String name) {
+			return delegate.getHeaderField(name);
+		}
+		
+		@Override
+		public String getHeaderField(int n) {
+			return delegate.getHeaderField(n);
+		}
+		
+		@Override
+		public String getHeaderFieldKey(int n) {
+			return delegate.getHeaderFieldKey(n);
+		}
+		
+		@Override
+		public int getHeaderFieldInt(String name, int defaultValue) {
+			return delegate.getHeaderFieldInt(name, defaultValue);
+		}
+		
+		@Override
+		public long getHeaderFieldLong(String name, long defaultValue) {
+			return delegate.getHeaderFieldLong(name, defaultValue);
+		}
+		
+		@Override
+		public long getHeaderFieldDate(String name, long defaultValue) {
+			return delegate.getHeaderFieldDate(name, defaultValue);
+		}
+		
+		@Override
+		public String getContentType() {
+			return delegate.getContentType();
+		}
+		
+		@Override
+		public String getContentEncoding() {
+			return delegate.getContentEncoding();
+		}
+		
+		@Override
+		public int getContentLength() {
+			return delegate.getContentLength();
+		}
+		
+		@Override
+		public long getContentLengthLong() {
+			return delegate.getContentLengthLong();
+		}
+		
+		@Override
+		public long getDate() {
+			return delegate.getDate();
+		}
+		
+		@Override
+		public long getExpiration() {
+			return delegate.getExpiration();
+		}
+		
+		@Override
+		public long getLastModified() {
+			return delegate.getLastModified();
+		}
+		
+		@Override
+		public java.security.Permission getPermission() throws IOException {
+			return delegate.getPermission();
+		}
+		
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+	}
+	
+	/**
+	 * A ConnectionProvider that limits the number of connections in use per host and in total.  A request that
+	 * would exceed a limit waits until a connection is released, and fails with a RequestRejectedException if 
+	 * none is released within the wait timeout.  Waiters are served in order of arrival.
+	 * 
+	 * A connection is in use from getConnection() until its response stream is read to the end or closed, its 
+	 * response code shows the response has no body (HEAD, 204, 304 or Content-Length: 0), it is disconnected, or it
+	 * fails.  RestClient closes the response stream once it is deserialized, unless the deserializer returns the 
+	 * stream, and reads the body of the short-form calls returning the response code (e.g. callPost(url, body)) as
+	 * soon as the code is checked.  Other Responses whose content is never read, and returned streams, must be 
+	 * closed or cancelled by the caller to release the connection.
+	 * 
+	 * Sockets of released connections are kept alive by the JDK keep-alive cache (see the http.keepAlive and 
+	 * http.maxConnections system properties), which closes them when the server's keep-alive timeout expires.  
+	 * This provider evicts the bookkeeping of hosts that have been idle for longer than the idle timeout.
+	 */
+	public static class PooledConnectionProvider implements ConnectionProvider {
+		private final ConnectionProvider provider;
+		private final int maxPerHost;
+		private final int maxTotal;
+		private final long waitTimeout;
+		private final Semaphore total;
+		private final Map<String, HostPool> hosts = new HashMap<String, HostPool>();
+		private final AtomicInteger waiting = new AtomicInteger();
+		private final AtomicLong acquired = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private volatile long idleTimeout = 60000;
+		private long lastEviction = System.currentTimeMillis();
+		
+		/**
+		 * @param maxPerHost maximum number of connections in use to a single host
+		 * @param maxTotal maximum number of connections in use to all hosts
+		 * @param waitTimeout time in milliseconds to wait for a connection to be released
+		 */
+		public PooledConnectionProvider(int maxPerHost, int maxTotal, long waitTimeout) {
+			this(null, maxPerHost, maxTotal, waitTimeout);
+		}
+		
+		/**
+		 * @param provider provider of the connections, or null to open them with URL.openConnection()
+		 * @param maxPerHost maximum number of connections in use to a single host
+		 * @param maxTotal maximum number of connections in use to all hosts
+		 * @param waitTimeout time in milliseconds to wait for a connection to be released
+		 */
+		public PooledConnectionProvider(ConnectionProvider provider, int maxPerHost, int maxTotal, long waitTimeout) {
+			if (maxPerHost < 1 || maxTotal < 1)
+				throw new IllegalArgumentException("Connection limits must be positive.");
+			
+			this.provider = provider;
+			this.maxPerHost = maxPerHost;
+			this.maxTotal = maxTotal;
+			this.waitTimeout = waitTimeout;
+			this.total = new Semaphore(maxTotal, true);
+		}
+		
+		@Override
+		public HttpURLConnection getConnection(String urlStr) throws IOException {
+			URL url = new URL(urlStr);
+			String key = url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+			
+			evictIdle(false);
+			HostPool pool = checkOut(key);
+			
+			try {
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+				waiting.incrementAndGet();
+				try {
+					if (!pool.permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS)) 
+						throw reject("Timed out waiting for a connection to " + key);
+					
+					if (!total.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+						pool.permits.release();
+						throw reject("Timed out waiting for a connection, " + maxTotal + " in use.");
+					}
+				} finally {
+					waiting.decrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				checkIn(pool);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a connection to " + key);
+			} catch (RequestRejectedException e) {
+				checkIn(pool);
+				throw e;
+			}
+			
+			HttpURLConnection connection;
+			try {
+				connection = provider == null ? (HttpURLConnection) url.openConnection() : provider.getConnection(urlStr);
+			} catch (IOException e) {
+				release(pool);
+				throw e;
+			} catch (RuntimeException e) {
+				release(pool);
+				throw e;
+			}
+			
+			acquired.incrementAndGet();
+			pool.active.incrementAndGet();
+			
+			return new PooledConnection(connection, pool);
+		}
+		
+		/**
+		 * @param message reason
+		 * @return exception to throw
+		 */
+		private RequestRejectedException reject(String message) {
+			rejected.incrementAndGet();
+			
+			return new RequestRejectedException(message);
+		}
+		
+		/**
+		 * @param key host key
+		 * @return pool of host, marked as used so that it is not evicted
+		 */
+		private HostPool checkOut(String key) {
+			synchronized (hosts) {
+				HostPool pool = hosts.get(key);
+				if (pool == null) {
+					pool = new HostPool(maxPerHost);
+					hosts.put(key, pool);
+				}
+				
+				pool.users++;
+				
+				return pool;
+			}
+		}
+		
+		/**
+		 * @param pool pool that is no longer used by a request
+		 */
+		private void checkIn(HostPool pool) {
+			synchronized (hosts) {
+				pool.users--;
+				pool.lastUsed = System.currentTimeMillis();
+			}
+		}
+		
+		/**
+		 * Release the permits of a connection.
+		 * 
+		 * @param pool pool of connection
+		 */
+		private void release(HostPool pool) {
+			total.release();
+			pool.permits.release();
+			checkIn(pool);
+		}
+		
+		/**
+		 * Remove hosts without connections in use that have been idle for longer than the idle timeout.
+		 */
+		public void evictIdle() {
+			evictIdle(true);
+		}
+		
+		/**
+		 * @param force if false, hosts are only checked once per half idle timeout
+		 */
+		private void evictIdle(boolean force) {
+			long now = System.currentTimeMillis();
+			long timeout = idleTimeout;
+			
+			synchronized (hosts) {
+				if (!force && now - lastEviction < timeout / 2)
+					return;
+				
+				lastEviction = now;
+				for (Iterator<HostPool> i = hosts.values().iterator(); i.hasNext();) {
+					HostPool pool = i.next();
+					if (pool.users == 0 && now - pool.lastUsed >= timeout)
+						i.remove();
+				}
+			}
+		}
+		
+		/**
+		 * @param idleTimeout time in milliseconds after which a host without connections in use is evicted
+		 */
+		public void setIdleTimeout(long idleTimeout) {
+			this.idleTimeout = idleTimeout;
+		}
+		
+		public long getIdleTimeout() {
+			return idleTimeout;
+		}
+		
+		public int getMaxPerHost() {
+			return maxPerHost;
+		}
+		
+		public int getMaxTotal() {
+			return maxTotal;
+		}
+		
+		/**
+		 * @return number of connections in use
+		 */
+		public int getActiveCount() {
+			return maxTotal - total.availablePermits();
+		}
+		
+		/**
+		 * @param host host key in the form scheme://host:port
+		 * @return number of connections in use to host
+		 */
+		public int getActiveCount(String host) {
+			synchronized (hosts) {
+				HostPool pool = hosts.get(host);
+				
+				return pool == null ? 0 : pool.active.get();
+			}
+		}
+		
+		/**
+		 * @return number of requests waiting for a connection
+		 */
+		public int getWaitingCount() {
+			return waiting.get();
+		}
+		
+		/**
+		 * @return number of hosts tracked by the pool
+		 */
+		public int getHostCount() {
+			synchronized (hosts) {
+				return hosts.size();
+			}
+		}
+		
+		/**
+		 * @return number of connections handed out
+		 */
+		public long getAcquiredCount() {
+			return acquired.get();
+		}
+		
+		/**
+		 * @return number of requests rejected because no connection was released in time
+		 */
+		public long getRejectedCount() {
+			return rejected.get();
+		}
+		
+		@Override
+		public String toString() {
+			return "PooledConnectionProvider[active=" + getActiveCount() + "/" + maxTotal + ", waiting=" + getWaitingCount() 
+					+ ", hosts=" + getHostCount() + ", acquired=" + getAcquiredCount() + ", rejected=" + getRejectedCount() + "]";
+		}
+		
+		/**
+		 * Connection limit and usage of one host.
+		 */
+		private static final class HostPool {
+			private final Semaphore permits;
+			private final AtomicInteger active = new AtomicInteger();
+			private int users;
+			private long lastUsed = System.currentTimeMillis();
+			
+			public HostPool(int maxPerHost) {
+				this.permits = new Semaphore(maxPerHost, true);
+			}
+		}
+		
+		/**
+		 * A connection that releases its permits when the exchange is complete.
+		 */
+		private final class PooledConnection extends DelegatingConnection {
+			private final HostPool pool;
+			private final AtomicBoolean released = new AtomicBoolean();
+			
+			public PooledConnection(HttpURLConnection delegate, HostPool pool) {
+				super(delegate);
+				this.pool = pool;
+			}
+			
+			/**
+			 * Release the permits of the connection, once.
+			 */
+			private void release() {
+				if (released.compareAndSet(false, true)) {
+					pool.active.decrementAndGet();
+					PooledConnectionProvider.this.release(pool);
+				}
+			}
+			
+			@Override
+			public void connect() throws IOException {
+				try {
+					super.connect();
+				} catch (IOException e) {
+					release();
+					throw e;
+				}
+			}
+			
+			@Override
+			public void disconnect() {
+				super.disconnect();
+				release();
+			}
+			
+			@Override
+			public int getResponseCode() throws IOException {
+				try {
+					int code = super.getResponseCode();
+					// Without a body there is no stream whose end would release the connection.
+					if (!hasBody(code))
+						release();
+					
+					return code;
+				} catch (IOException e) {
+					release();
+					throw e;
+				}
+			}
+			
+			/**
+			 * @param code response code
+			 * @return true if the response may have a body
+			 */
+			private boolean hasBody(int code) {
+				if ("HEAD".equals(getRequestMethod()) || code == HttpURLConnection.HTTP_NO_CONTENT 
+						|| code == HttpURLConnection.HTTP_NOT_MODIFIED || (code >= 100 && code < 200))
+					return false;
+				
+				return !"0".equals(getDelegate().getHeaderField("Content-Length"));
+			}
+			
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				try {
+					return new ReleasingOutputStream(super.getOutputStream());
+				} catch (IOException e) {
+					release();
+					throw e;
+				}
+			}
+			
+			@Override
+			public InputStream getInputStream() throws IOException {
+				try {
+					return new ReleasingInputStream(super.getInputStream());
+				} catch (IOException e) {
+					// Error responses with a body are released when their error stream is consumed.
+					if (getDelegate().getErrorStream() == null)
+						release();
+					throw e;
+				}
+			}
+			
+			@Override
+			public InputStream getErrorStream() {
+				InputStream in = super.getErrorStream();
+				
+				if (in == null) {
+					// An error response without a body has nothing left to consume.
+					if (isErrorResponse())
+						release();
+					
+					return null;
+				}
+				
+				return new ReleasingInputStream(in);
+			}
+			
+			/**
+			 * @return true if the response has been received and is an error response
+			 */
+			private boolean isErrorResponse() {
+				try {
+					return getDelegate().getResponseCode() >= 400;
+				} catch (IOException e) {
+					return false;
+				}
+			}
+			
+			/**
+			 * Releases the connection when the stream is closed, reaches the end, or fails.
+			 */
+			private final class ReleasingInputStream extends FilterInputStream {
+				public ReleasingInputStream(InputStream in) {
+					super(in);
+				}
+				
+				@Override
+				public int read() throws IOException {
+					try {
+						int b = super.read();
+						if (b == -1)
+							release();
+						
+						return b;
+					} catch (IOException e) {
+						release();
+						throw e;
+					}
+				}
+				
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					try {
+						int read = super.read(b, off, len);
+						if (read == -1)
+							release();
+						
+						return read;
+					} catch (IOException e) {
+						release();
+						throw e;
+					}
+				}
+				
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						release();
+					}
+				}
+			}
+			
+			/**
+			 * Releases the connection if the request body cannot be written.
+			 */
+			private final class ReleasingOutputStream extends FilterOutputStream {
+				public ReleasingOutputStream(OutputStream out) {
+					super(out);
+				}
+				
+				@Override
+				public void write(int b) throws IOException {
+					try {
+						out.write(b);
+					} catch (IOException e) {
+						release();
+						throw e;
+					}
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					try {
+						out.write(b, off, len);
+					} catch (IOException e) {
+						release();
+						throw e;
+					}
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					try {
+						out.flush();
+					} catch (IOException e) {
+						release();
+						throw e;
+					}
+				}
+				
+				@Override
+				public void close() throws IOException {
+					try {
+						out.close();
+					} catch (IOException e) {
+						release();
+						throw e;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Thrown when a request is refused by a CircuitBreakerConnectionProvider because the circuit to its host is open.
+	 */
+	public static class CircuitOpenException extends RequestRejectedException {
+		private static final long serialVersionUID = 4809216390217784417L;
+		private final String host;
+		
+		/**
+		 * @param host host key of the open circuit
+		 * @param message reason the request was rejected
+		 */
+		public CircuitOpenException(String host, String message) {
+			super(message);
+			this.host = host;
+		}
+		
+		/**
+		 * @return host key of the open circuit in the form scheme://host:port
+		 */
+		public String getHost() {
+			return host;
+		}
+	}
+	
+	/**
+	 * A ConnectionProvider that stops sending requests to a host that is failing, so that callers fail fast with a
+	 * CircuitOpenException instead of each waiting for a connect or read timeout.
+	 * 
+	 * Each host has a circuit that is closed while requests succeed.  It opens when a number of consecutive requests 
+	 * fail, or when the failure rate of the last requests reaches a threshold.  While open, all requests to the host are
+	 * rejected.  After the open duration the circuit becomes half-open and lets a single probe request through: if it
+	 * succeeds the circuit closes, otherwise it opens again.
+	 * 
+	 * A request fails if it cannot connect or send its body, if reading the response code fails, or if the response 
+	 * code is a failure according to isFailure() (by default 5xx).  A request that is cancelled or never reads its
+	 * response is not counted.  To keep open circuits from holding connection permits, wrap a 
+	 * PooledConnectionProvider with this provider rather than the other way around.
+	 */
+	public static class CircuitBreakerConnectionProvider implements ConnectionProvider {
+		
+		/**
+		 * State of the circuit of a host.
+		 */
+		public enum State {
+			CLOSED, OPEN, HALF_OPEN
+		}
+		
+		private final ConnectionProvider provider;
+		private final int failureThreshold;
+		private final double failureRate;
+		private final int windowSize;
+		private final long openDuration;
+		private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong opened = new AtomicLong();
+		
+		/**
+		 * @param failureThreshold number of consecutive failures that open the circuit
+		 * @param openDuration time in milliseconds the circuit stays open before a probe is allowed
+		 */
+		public CircuitBreakerConnectionProvider(int failureThreshold, long openDuration) {
+			this(null, failureThreshold, 1, 0, openDuration);
+		}
+		
+		/**
+		 * @param provider provider of the connections, or null to open them with URL.openConnection()
+		 * @param failureThreshold number of consecutive failures that open the circuit
+		 * @param openDuration time in milliseconds the circuit stays open before a probe is allowed
+		 */
+		public CircuitBreakerConnectionProvider(ConnectionProvider provider, int failureThreshold, long openDuration) {
+			this(provider, failureThreshold, 1, 0, openDuration);
+		}
+		
+		/**
+		 * @param provider provider of the connections, or null to open them with URL.openConnection()
+		 * @param failureThreshold number of consecutive failures that open the circuit
+		 * @param failureRate fraction of failed requests in the window that opens the circuit, between 0 and 1
+		 * @param windowSize number of most recent requests the failure rate is computed over, or 0 to only count
+		 * consecutive failures.  The rate is not checked until the window is full.
+		 * @param openDuration time in milliseconds the circuit stays open before a probe is allowed
+		 */
+		public CircuitBreakerConnectionProvider(ConnectionProvider provider, int failureThreshold, double failureRate, 
+				int windowSize, long openDuration) {
+			if (failureThreshold < 1 || failureRate <= 0 || failureRate > 1 || windowSize < 0 || openDuration < 0)
+				throw new IllegalArgumentException("Invalid circuit breaker settings.");
+			
+			this.provider = provider;
+			this.failureThreshold = failureThreshold;
+			this.failureRate = failureRate;
+			this.windowSize = windowSize;
+			this.openDuration = openDuration;
+		}
+		
+		@Override
+		public HttpURLConnection getConnection(String urlStr) throws IOException {
+			URL url = new URL(urlStr);
+			String key = url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+			
+			Circuit circuit = circuits.get(key);
+			if (circuit == null) {
+				Circuit created = new Circuit(key);
+				circuit = circuits.putIfAbsent(key, created);
+				if (circuit == null)
+					circuit = created;
+			}
+			
+			boolean probe;
+			try {
+				probe = circuit.acquire(System.currentTimeMillis());
+			} catch (CircuitOpenException e) {
+				rejected.incrementAndGet();
+				throw e;
+			}
+			
+			HttpURLConnection connection;
+			try {
+				connection = provider == null ? (HttpURLConnection) url.openConnection() : provider.getConnection(urlStr);
+			} catch (RequestRejectedException e) {
+				circuit.abandon(probe);
+				throw e;
+			} catch (IOException e) {
+				circuit.record(false, probe);
+				throw e;
+			} catch (RuntimeException e) {
+				circuit.abandon(probe);
+				throw e;
+			}
+			
+			return new CircuitConnection(connection, circuit, probe);
+		}
+		
+		/**
+		 * @param responseCode response code
+		 * @return true if the response counts as a failure of the host
+		 */
+		protected boolean isFailure(int responseCode) {
+			return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+		}
+		
+		/**
+		 * @param host host key in the form scheme://host:port
+		 * @return state of the circuit of the host
+		 */
+		public State getState(String host) {
+			Circuit circuit = circuits.get(host);
+			if (circuit == null)
+				return State.CLOSED;
+			
+			synchronized (circuit) {
+				return circuit.state;
+			}
+		}
+		
+		/**
+		 * Close all circuits and forget their history.
+		 */
+		public void reset() {
+			circuits.clear();
+		}
+		
+		/**
+		 * @return number of requests rejected because a circuit was open
+		 */
+		public long getRejectedCount() {
+			return rejected.get();
+		}
+		
+		/**
+		 * @return number of times a circuit was opened
+		 */
+		public long getOpenedCount() {
+			return opened.get();
+		}
+		
+		@Override
+		public String toString() {
+			return "CircuitBreakerConnectionProvider[hosts=" + circuits.size() + ", opened=" + getOpenedCount() 
+					+ ", rejected=" + getRejectedCount() + "]";
+		}
+		
+		/**
+		 * Circuit of one host.
+		 */
+		private final class Circuit {
+			private final String key;
+			private final boolean[] window;
+			private State state = State.CLOSED;
+			private int consecutiveFailures;
+			private int windowCount;
+			private int windowIndex;
+			private int windowFailures;
+			private long openedAt;
+			private boolean probing;
+			private long probeStart;
+			
+			public Circuit(String key) {
+				this.key = key;
+				this.window = new boolean[windowSize];
+			}
+			
+			/**
+			 * @param now current time in milliseconds
+			 * @return true if the request is the probe of a half-open circuit
+			 * @throws CircuitOpenException if the request must not be sent
+			 */
+			public synchronized boolean acquire(long now) throws CircuitOpenException {
+				if (state == State.CLOSED)
+					return false;
+				
+				if (state == State.OPEN) {
+					if (now - openedAt < openDuration)
+						throw new CircuitOpenException(key, "Circuit to " + key + " is open for another " 
+								+ (openDuration - (now - openedAt)) + "ms.");
+					
+					state = State.HALF_OPEN;
+					probing = false;
+				}
+				
+				// A probe that never completes is replaced after the open duration.
+				if (probing && now - probeStart < openDuration)
+					throw new CircuitOpenException(key, "Circuit to " + key + " is half-open, waiting for a probe.");
+				
+				probing = true;
+				probeStart = now;
+				
+				return true;
+			}
+			
+			/**
+			 * @param success true if the request succeeded
+			 * @param probe true if the request was the probe of a half-open circuit
+			 */
+			public synchronized void record(boolean success, boolean probe) {
+				if (probe) {
+					probing = false;
+					if (success)
+						close();
+					else
+						open();
+					
+					return;
+				}
+				
+				// Requests sent before the circuit opened do not count.
+				if (state != State.CLOSED)
+					return;
+				
+				consecutiveFailures = success ? 0 : consecutiveFailures + 1;
+				if (windowSize > 0) {
+					if (windowCount == windowSize && window[windowIndex])
+						windowFailures--;
+					else if (windowCount < windowSize)
+						windowCount++;
+					
+					window[windowIndex] = !success;
+					if (!success)
+						windowFailures++;
+					windowIndex = (windowIndex + 1) % windowSize;
+				}
+				
+				if (consecutiveFailures >= failureThreshold 
+						|| (windowSize > 0 && windowCount == windowSize && windowFailures >= failureRate * windowSize))
+					open();
+			}
+			
+			/**
+			 * @param probe true if the abandoned request was the probe of a half-open circuit
+			 */
+			public synchronized void abandon(boolean probe) {
+				if (probe)
+					probing = false;
+			}
+			
+			private void open() {
+				state = State.OPEN;
+				openedAt = System.currentTimeMillis();
+				opened.incrementAndGet();
+			}
+			
+			private void close() {
+				state = State.CLOSED;
+				consecutiveFailures = 0;
+				windowCount = 0;
+				windowIndex = 0;
+				windowFailures = 0;
+			}
+		}
+		
+		/**
+		 * A connection that records the outcome of its request in the circuit of its host.
+		 */
+		private final class CircuitConnection extends DelegatingConnection {
+			private final Circuit circuit;
+			private final boolean probe;
+			private final AtomicBoolean recorded = new AtomicBoolean();
+			
+			public CircuitConnection(HttpURLConnection delegate, Circuit circuit, boolean probe) {
+				super(delegate);
+				this.circuit = circuit;
+				this.probe = probe;
+			}
+			
+			/**
+			 * @param success true if the request succeeded
+			 */
+			private void record(boolean success) {
+				if (recorded.compareAndSet(false, true))
+					circuit.record(success, probe);
+			}
+			
+			@Override
+			public void connect() throws IOException {
+				try {
+					super.connect();
+				} catch (IOException e) {
+					record(false);
+					throw e;
+				}
+			}
+			
+			@Override
+			public void disconnect() {
+				super.disconnect();
+				if (recorded.compareAndSet(false, true))
+					circuit.abandon(probe);
+			}
+			
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				try {
+					return super.getOutputStream();
+				} catch (IOException e) {
+					record(false);
+					throw e;
+				}
+			}
+			
+			@Override
+			public int getResponseCode() throws IOException {
+				try {
+					int code = super.getResponseCode();
+					record(!isFailure(code));
+					
+					return code;
+				} catch (IOException e) {
+					record(false);
+					throw e;
+				}
+			}
+			
+			@Override
+			public InputStream getInputStream() throws IOException {
+				try {
+					return super.getInputStream();
+				} catch (IOException e) {
+					// Error responses are recorded by their response code.
+					if (getDelegate().getErrorStream() == null) {
+						record(false);
+					} else {
+						try {
+							getResponseCode();
+						} catch (IOException ignored) {
+							// Recorded by getResponseCode().
+						}
+					}
+					throw e;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A ConnectionProvider that spreads requests to a base URL over a pool of replicated endpoints, so that a client 
+	 * can address a replicated service by a single name:
+	 * 
+	 * client.setConnectionProvider(new LoadBalancingConnectionProvider("http://backend", 
+	 * 		Arrays.asList("http://10.0.0.1:8080", "http://10.0.0.2:8080"), Strategy.POWER_OF_TWO));
+	 * client.callGet(client.buildURL("backend", "api", "items"));
+	 * 
+	 * Requests to URLs with the scheme, host and port of the base URL, and a path below its path, are sent to an 
+	 * endpoint chosen by the strategy, with the base URL replaced by the endpoint.  Other requests, including those to
+	 * hosts whose names merely start with the same characters, are passed through unchanged.  A request is 
+	 * outstanding from the time its connection is opened until its response code has been read or it fails.
+	 * 
+	 * An endpoint is ejected for the ejection duration when a number of consecutive requests to it fail, i.e. they
+	 * cannot connect or send their body, reading the response code fails, or the response code is a failure according 
+	 * to isFailure() (by default 5xx).  If all endpoints are ejected, requests are spread over all of them.
+	 */
+	public static class LoadBalancingConnectionProvider implements ConnectionProvider {
+		private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+		private static final long DEFAULT_EJECT_DURATION = 30000;
+		
+		/**
+		 * How an endpoint is chosen for a request.
+		 */
+		public enum Strategy {
+			/**
+			 * Each endpoint in turn.
+			 */
+			ROUND_ROBIN, 
+			/**
+			 * The endpoint with the fewest outstanding requests.
+			 */
+			LEAST_OUTSTANDING, 
+			/**
+			 * The endpoint with fewer outstanding requests of two chosen at random.
+			 */
+			POWER_OF_TWO
+		}
+		
+		private final ConnectionProvider provider;
+		private final String baseUrl;
+		private final URL base;
+		private final String basePath;
+		private final Endpoint[] endpoints;
+		private final Strategy strategy;
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicLong ejected = new AtomicLong();
+		private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+		private volatile long ejectDuration = DEFAULT_EJECT_DURATION;
+		
+		/**
+		 * @param baseUrl base URL that addresses the pool, e.g. http://backend
+		 * @param endpoints base URLs of the endpoints, e.g. http://10.0.0.1:8080
+		 * @param strategy how an endpoint is chosen for a request
+		 */
+		public LoadBalancingConnectionProvider(String baseUrl, List<String> endpoints, Strategy strategy) {
+			this(null, baseUrl, endpoints, strategy);
+		}
+		
+		/**
+		 * @param provider provider of the connections, or null to open them with URL.openConnection()
+		 * @param baseUrl base URL that addresses the pool, e.g. http://backend
+		 * @param endpoints base URLs of the endpoints, e.g. http://10.0.0.1:8080
+		 * @param strategy how an endpoint is chosen for a request
+		 */
+		public LoadBalancingConnectionProvider(ConnectionProvider provider, String baseUrl, List<String> endpoints, Strategy strategy) {
+			validateArguments(baseUrl, endpoints, strategy);
+			if (endpoints.isEmpty())
+				throw new IllegalArgumentException("At least one endpoint is required.");
+			
+			try {
+				this.base = new URL(baseUrl);
+			} catch (MalformedURLException e) {
+				throw new IllegalArgumentException("Invalid base URL " + baseUrl, e);
+			}
+			
+			String path = base.getPath();
+			this.provider = provider;
+			this.baseUrl = baseUrl;
+			this.basePath = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+			this.strategy = strategy;
+			this.endpoints = new Endpoint[endpoints.size()];
+			for (int i = 0; i < this.endpoints.length; ++i)
+				this.endpoints[i] = new Endpoint(endpoints.get(i));
+		}
+		
+		/**
+		 * @param failureThreshold number of consecutive failures that eject an endpoint
+		 * @param ejectDuration time in milliseconds an ejected endpoint receives no requests
+		 */
+		public void setEjection(int failureThreshold, long ejectDuration) {
+			if (failureThreshold < 1 || ejectDuration < 0)
+				throw new IllegalArgumentException("Invalid ejection settings.");
+			
+			this.failureThreshold = failureThreshold;
+			this.ejectDuration = ejectDuration;
+		}
+		
+		@Override
+		public HttpURLConnection getConnection(String urlStr) throws IOException {
+			URL url = new URL(urlStr);
+			if (!isPooled(url))
+				return provider == null ? (HttpURLConnection) url.openConnection() : provider.getConnection(urlStr);
+			
+			Endpoint endpoint = choose(System.currentTimeMillis());
+			String endpointUrl = endpoint.url + url.getFile().substring(basePath.length());
+			
+			endpoint.outstanding.incrementAndGet();
+			HttpURLConnection connection;
+			try {
+				connection = provider == null ? (HttpURLConnection) new URL(endpointUrl).openConnection() : provider.getConnection(endpointUrl);
+			} catch (RequestRejectedException e) {
+				endpoint.outstanding.decrementAndGet();
+				throw e;
+			} catch (IOException e) {
+				endpoint.complete(false);
+				throw e;
+			} catch (RuntimeException e) {
+				endpoint.outstanding.decrementAndGet();
+				throw e;
+			}
+			
+			return new BalancedConnection(connection, endpoint);
+		}
+		
+		/**
+		 * @param url url of a request
+		 * @return true if url has the scheme, host and port of the base URL and a path below its path
+		 */
+		private boolean isPooled(URL url) {
+			if (!url.getProtocol().equalsIgnoreCase(base.getProtocol()) || !url.getHost().equalsIgnoreCase(base.getHost()))
+				return false;
+			if ((url.getPort() == -1 ? url.getDefaultPort() : url.getPort()) != (base.getPort() == -1 ? base.getDefaultPort() : base.getPort()))
+				return false;
+			
+			return isBaseOf(basePath, url.getFile());
+		}
+		
+		/**
+		 * @param now current time in milliseconds
+		 * @return endpoint for the next request
+		 */
+		private Endpoint choose(long now) {
+			List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.length);
+			for (Endpoint endpoint : endpoints)
+				if (endpoint.ejectedUntil <= now)
+					candidates.add(endpoint);
+			
+			if (candidates.isEmpty())
+				candidates = Arrays.asList(endpoints);
+			
+			int n = candidates.size();
+			switch (strategy) {
+			case ROUND_ROBIN:
+				return candidates.get(Math.floorMod(next.getAndIncrement(), n));
+			case LEAST_OUTSTANDING:
+				// Start at a rotating index so that ties are spread over the endpoints.
+				int start = Math.floorMod(next.getAndIncrement(), n);
+				Endpoint least = null;
+				for (int i = 0; i < n; ++i) {
+					Endpoint endpoint = candidates.get((start + i) % n);
+					if (least == null || endpoint.outstanding.get() < least.outstanding.get())
+						least = endpoint;
+				}
+				
+				return least;
+			case POWER_OF_TWO:
+				if (n == 1)
+					return candidates.get(0);
+				
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				int a = random.nextInt(n);
+				int b = random.nextInt(n - 1);
+				if (b >= a)
+					b++;
+				
+				Endpoint first = candidates.get(a);
+				Endpoint second = candidates.get(b);
+				
+				return second.outstanding.get() < first.outstanding.get() ? second : first;
+			default:
+				throw new RuntimeException("Unhandled strategy.");
+			}
+		}
+		
+		/**
+		 * @param responseCode response code
+		 * @return true if the response counts as a failure of the endpoint
+		 */
+		protected boolean isFailure(int responseCode) {
+			return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+		}
+		
+		/**
+		 * @return base URLs of the endpoints
+		 */
+		public List<String> getEndpoints() {
+			List<String> urls = new ArrayList<String>(endpoints.length);
+			for (Endpoint endpoint : endpoints)
+				urls.add(endpoint.url);
+			
+			return urls;
+		}
+		
+		/**
+		 * @param endpointUrl base URL of an endpoint
+		 * @return number of outstanding requests to the endpoint
+		 */
+		public int getOutstanding(String endpointUrl) {
+			return getEndpoint(endpointUrl).outstanding.get();
+		}
+		
+		/**
+		 * @param endpointUrl base URL of an endpoint
+		 * @return true if the endpoint is currently ejected
+		 */
+		public boolean isEjected(String endpointUrl) {
+			return getEndpoint(endpointUrl).ejectedUntil > System.currentTimeMillis();
+		}
+		
+		/**
+		 * @return number of times an endpoint was ejected
+		 */
+		public long getEjectedCount() {
+			return ejected.get();
+		}
+		
+		/**
+		 * @param endpointUrl base URL of an endpoint
+		 * @return endpoint
+		 */
+		private Endpoint getEndpoint(String endpointUrl) {
+			for (Endpoint endpoint : endpoints)
+				if (endpoint.url.equals(endpointUrl))
+					return endpoint;
+			
+			throw new IllegalArgumentException("Unknown endpoint " + endpointUrl);
+		}
+		
+		@Override
+		public String toString() {
+			return "LoadBalancingConnectionProvider[" + baseUrl + ", endpoints=" + endpoints.length + ", strategy=" + strategy 
+					+ ", ejected=" + getEjectedCount() + "]";
+		}
+		
+		/**
+		 * An endpoint of the pool.
+		 */
+		private final class Endpoint {
+			private final String url;
+			private final AtomicInteger outstanding = new AtomicInteger();
+			private int consecutiveFailures;
+			private volatile long ejectedUntil;
+			
+			public Endpoint(String url) {
+				this.url = url;
+			}
+			
+			/**
+			 * @param success true if the request succeeded
+			 */
+			public void complete(boolean success) {
+				outstanding.decrementAndGet();
+				
+				synchronized (this) {
+					if (success) {
+						consecutiveFailures = 0;
+						return;
+					}
+					
+					// An endpoint returning from ejection is ejected again by its next failure.
+					if (++consecutiveFailures >= failureThreshold && ejectedUntil <= System.currentTimeMillis()) {
+						ejectedUntil = System.currentTimeMillis() + ejectDuration;
+						ejected.incrementAndGet();
+					}
+				}
+			}
+		}
+		
+		/**
+		 * A connection that completes its request on its endpoint.
+		 */
+		private final class BalancedConnection extends DelegatingConnection {
+			private final Endpoint endpoint;
+			private final AtomicBoolean completed = new AtomicBoolean();
+			
+			public BalancedConnection(HttpURLConnection delegate, Endpoint endpoint) {
+				super(delegate);
+				this.endpoint = endpoint;
+			}
+			
+			/**
+			 * @param success true if the request succeeded
+			 */
+			private void complete(boolean success) {
+				if (completed.compareAndSet(false, true))
+					endpoint.complete(success);
+			}
+			
+			@Override
+			public void connect() throws IOException {
+				try {
+					super.connect();
+				} catch (IOException e) {
+					complete(false);
+					throw e;
+				}
+			}
+			
+			@Override
+			public void disconnect() {
+				super.disconnect();
+				if (completed.compareAndSet(false, true))
+					endpoint.outstanding.decrementAndGet();
+			}
+			
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				try {
+					return super.getOutputStream();
+				} catch (IOException e) {
+					complete(false);
+					throw e;
+				}
+			}
+			
+			@Override
+			public int getResponseCode() throws IOException {
+				try {
+					int code = super.getResponseCode();
+					complete(!isFailure(code));
+					
+					return code;
+				} catch (IOException e) {
+					complete(false);
+					throw e;
+				}
+			}
+			
+			@Override
+			public InputStream getInputStream() throws IOException {
+				try {
+					return super.getInputStream();
+				} catch (IOException e) {
+					// Error responses are completed by their response code.
+					if (getDelegate().getErrorStream() == null) {
+						complete(false);
+					} else {
+						try {
+							getResponseCode();
+						} catch (IOException ignored) {
+							// Completed by getResponseCode().
+						}
+					}
+					throw e;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A HostResolver that caches the addresses of hosts for a fixed TTL.  If a host cannot be resolved when its entry
+	 * has expired, the expired addresses are returned, so that a failing DNS server does not fail requests to hosts
+	 * that were resolved before.
+	 * 
+	 * Lookups made with InetAddress are also cached by the JVM according to the networkaddress.cache.ttl security 
+	 * property; set it to 0 for the TTL of this resolver to be the only one that applies.
+	 */
+	public static class CachingHostResolver implements HostResolver {
+		private final HostResolver resolver;
+		private final long ttl;
+		private final ConcurrentMap<String, CachedAddresses> cache = new ConcurrentHashMap<String, CachedAddresses>();
+		private final AtomicLong lookups = new AtomicLong();
+		
+		/**
+		 * @param ttl time in milliseconds the addresses of a host are cached
+		 */
+		public CachingHostResolver(long ttl) {
+			this(null, ttl);
+		}
+		
+		/**
+		 * @param resolver resolver whose lookups are cached, or null to resolve with InetAddress.getAllByName()
+		 * @param ttl time in milliseconds the addresses of a host are cached
+		 */
+		public CachingHostResolver(HostResolver resolver, long ttl) {
+			if (ttl < 0)
+				throw new IllegalArgumentException("Invalid TTL.");
+			
+			this.resolver = resolver;
+			this.ttl = ttl;
+		}
+		
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			long now = System.currentTimeMillis();
+			CachedAddresses cached = cache.get(host);
+			if (cached != null && now < cached.expires)
+				return cached.addresses.clone();
+			
+			InetAddress[] addresses;
+			try {
+				lookups.incrementAndGet();
+				addresses = resolver == null ? InetAddress.getAllByName(host) : resolver.resolve(host);
+			} catch (UnknownHostException e) {
+				if (cached != null)
+					return cached.addresses.clone();
+				throw e;
+			}
+			
+			cache.put(host, new CachedAddresses(addresses.clone(), now + ttl));
+			
+			return addresses;
+		}
+		
+		/**
+		 * Remove the addresses of a host from the cache.
+		 * 
+		 * @param host host name
+		 */
+		public void invalidate(String host) {
+			cache.remove(host);
+		}
+		
+		/**
+		 * Remove all addresses from the cache.
+		 */
+		public void clear() {
+			cache.clear();
+		}
+		
+		/**
+		 * @return number of lookups made, i.e. resolutions that were not served from the cache
+		 */
+		public long getLookupCount() {
+			return lookups.get();
+		}
+		
+		/**
+		 * Addresses of a host and when they expire.
+		 */
+		private static final class CachedAddresses {
+			private final InetAddress[] addresses;
+			private final long expires;
+			
+			public CachedAddresses(InetAddress[] addresses, long expires) {
+				this.addresses = addresses;
+				this.expires = expires;
+			}
+		}
+	}
+	
+	/**
+	 * A HostResolver with fixed addresses, e.g. to point host names at local servers in tests.
+	 */
+	public static class StaticHostResolver implements HostResolver {
+		private final Map<String, InetAddress[]> hosts = new ConcurrentHashMap<String, InetAddress[]>();
+		
+		/**
+		 * @param host host name
+		 * @param addresses IP addresses of the host in the order they should be tried, e.g. 127.0.0.1
+		 * @throws UnknownHostException if an address is not an IP address
+		 */
+		public void add(String host, String ... addresses) throws UnknownHostException {
+			validateArguments(host, addresses);
+			
+			InetAddress[] resolved = new InetAddress[addresses.length];
+			for (int i = 0; i < addresses.length; ++i) {
+				if (!isAddress(addresses[i]))
+					throw new UnknownHostException(addresses[i] + " is not an IP address.");
+				
+				resolved[i] = InetAddress.getByAddress(host, InetAddress.getByName(addresses[i]).getAddress());
+			}
+			
+			hosts.put(host, resolved);
+		}
+		
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			InetAddress[] addresses = hosts.get(host);
+			if (addresses == null)
+				throw new UnknownHostException(host);
+			
+			return addresses.clone();
+		}
+	}
+	
+	/**
+	 * A ConnectionProvider that resolves host names with a HostResolver rather than the JVM, and tries the other
+	 * addresses of a host when connecting to one fails.  Requests are sent to the address, with a Host header of the
+	 * original host.
+	 * 
+	 * HttpURLConnection drops a Host header set by the application unless the sun.net.http.allowRestrictedHeaders 
+	 * system property is true when it is first used, e.g. -Dsun.net.http.allowRestrictedHeaders=true.  As virtually 
+	 * hosted servers and CDNs would otherwise receive the address as the Host, requests are passed through and resolved
+	 * by the JVM once a connection of the provider is found to drop the header; see getPassedThroughCount().  This is 
+	 * always the case for connections of HttpClientConnectionProvider.  HTTPS connections must verify 
+	 * the certificate of the host name, so https URLs are always passed through.
+	 */
+	public static class ResolvingConnectionProvider implements ConnectionProvider {
+		private final ConnectionProvider provider;
+		private final HostResolver resolver;
+		private final AtomicLong failovers = new AtomicLong();
+		private final AtomicLong passedThrough = new AtomicLong();
+		private volatile boolean dropsHost;
+		
+		/**
+		 * @param resolver resolver of host names
+		 */
+		public ResolvingConnectionProvider(HostResolver resolver) {
+			this(null, resolver);
+		}
+		
+		/**
+		 * @param provider provider of the connections, or null to open them with URL.openConnection()
+		 * @param resolver resolver of host names
+		 */
+		public ResolvingConnectionProvider(ConnectionProvider provider, HostResolver resolver) {
+			validateArguments(resolver);
+			
+			this.provider = provider;
+			this.resolver = resolver;
+		}
+		
+		@Override
+		public HttpURLConnection getConnection(String urlStr) throws IOException {
+			URL url = new URL(urlStr);
+			if (!url.getProtocol().equals("http") || isAddress(url.getHost()))
+				return open(urlStr);
+			
+			if (dropsHost) {
+				passedThrough.incrementAndGet();
+				return open(urlStr);
+			}
+			
+			long start = System.nanoTime();
+			InetAddress[] addresses = resolver.resolve(url.getHost());
+			long resolveNanos = System.nanoTime() - start;
+			if (addresses == null || addresses.length == 0)
+				throw new UnknownHostException(url.getHost());
+			
+			HttpURLConnection connection = open(url, addresses[0]);
+			if (!sendsHost(connection)) {
+				// The provider does not change how it builds connections, so later requests are passed through 
+				// without opening a connection to the address first.
+				dropsHost = true;
+				connection.disconnect();
+				passedThrough.incrementAndGet();
+				return open(urlStr);
+			}
+			
+			return new ResolvingConnection(connection, url, addresses, resolveNanos);
+		}
+		
+		/**
+		 * @param connection unconnected connection with a Host request property set
+		 * @return true if the connection sends the Host header set by the application
+		 */
+		private static boolean sendsHost(HttpURLConnection connection) {
+			if (connection.getRequestProperty("Host") == null)
+				return false;
+			
+			HttpURLConnection engine = connection;
+			while (engine instanceof DelegatingConnection)
+				engine = ((DelegatingConnection) engine).getDelegate();
+			
+			// HttpClient sets the Host header from the URL and does not send one set by the application.
+			return !(engine instanceof HttpClientConnectionProvider.HttpClientConnection);
+		}
+		
+		/**
+		 * @param urlStr url to open
+		 * @return connection
+		 * @throws IOException on I/O error
+		 */
+		private HttpURLConnection open(String urlStr) throws IOException {
+			return provider == null ? (HttpURLConnection) new URL(urlStr).openConnection() : provider.getConnection(urlStr);
+		}
+		
+		/**
+		 * @param target url of the request
+		 * @param address address to connect to
+		 * @return connection to the address
+		 * @throws IOException on I/O error
+		 */
+		private HttpURLConnection open(URL target, InetAddress address) throws IOException {
+			HttpURLConnection connection = open(new URL(target.getProtocol(), address.getHostAddress(), target.getPort(), 
+					target.getFile()).toString());
+			connection.setRequestProperty("Host", target.getPort() == -1 ? target.getHost() : target.getHost() + ":" + target.getPort());
+			
+			return connection;
+		}
+		
+		/**
+		 * @param e exception thrown by connect()
+		 * @return true if another address of the host should be tried
+		 */
+		protected boolean isConnectFailure(IOException e) {
+			return e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof SocketTimeoutException;
+		}
+		
+		/**
+		 * @return number of times a connection was tried on another address after connecting failed
+		 */
+		public long getFailoverCount() {
+			return failovers.get();
+		}
+		
+		/**
+		 * @return number of requests to http URLs passed through to the JVM because the connections of the provider drop the Host header
+		 */
+		public long getPassedThroughCount() {
+			return passedThrough.get();
+		}
+		
+		@Override
+		public String toString() {
+			return "ResolvingConnectionProvider[" + resolver + ", failovers=" + getFailoverCount() + ", passedThrough=" 
+					+ getPassedThroughCount() + "]";
+		}
+		
+		/**
+		 * A connection to one of the addresses of a host.  If connecting fails, a connection to the next address 
+		 * is opened with the same settings and replaces it.
+		 */
+		private final class ResolvingConnection extends DelegatingConnection {
+			private final URL target;
+			private final InetAddress[] addresses;
+			private final long resolveNanos;
+			private int index;
+			private boolean attempted;
+			private int chunkLength = -1;
+			private long fixedLength = -1;
+			
+			/**
+			 * @param delegate connection to the first address
+			 * @param target url of the request
+			 * @param addresses addresses of the host
+			 * @param resolveNanos time taken to resolve the host
+			 */
+			public ResolvingConnection(HttpURLConnection delegate, URL target, InetAddress[] addresses, 
+					long resolveNanos) {
+				super(delegate);
+				this.target = target;
+				this.addresses = addresses;
+				this.resolveNanos = resolveNanos;
+			}
+			
+			/**
+			 * Connect to the first address that accepts the connection.
+			 * 
+			 * @throws IOException if connecting to the last address fails
+			 */
+			private void connectAny() throws IOException {
+				if (attempted)
+					return;
+				attempted = true;
+				
+				for (;;) {
+					HttpURLConnection current = getDelegate();
+					// A connection that failed to connect cannot be reused, so its settings are copied beforehand.
+					String method = current.getRequestMethod();
+					Map<String, List<String>> properties = current.getRequestProperties();
+					
+					try {
+						current.connect();
+						return;
+					} catch (IOException e) {
+						if (++index >= addresses.length || !isConnectFailure(e))
+							throw e;
+						
+						current.disconnect();
+						failovers.incrementAndGet();
+					}
+					
+					HttpURLConnection next = open(target, addresses[index]);
+					next.setRequestMethod(method);
+					for (Map.Entry<String, List<String>> property : properties.entrySet())
+						if (property.getKey() != null && !property.getKey().equalsIgnoreCase("Host"))
+							for (String value : property.getValue())
+								next.addRequestProperty(property.getKey(), value);
+					
+					next.setDoInput(current.getDoInput());
+					next.setDoOutput(current.getDoOutput());
+					next.setUseCaches(current.getUseCaches());
+					next.setAllowUserInteraction(current.getAllowUserInteraction());
+					next.setIfModifiedSince(current.getIfModifiedSince());
+					next.setConnectTimeout(current.getConnectTimeout());
+					next.setReadTimeout(current.getReadTimeout());
+					next.setInstanceFollowRedirects(current.getInstanceFollowRedirects());
+					if (chunkLength >= 0)
+						next.setChunkedStreamingMode(chunkLength);
+					if (fixedLength >= 0)
+						next.setFixedLengthStreamingMode(fixedLength);
+					
+					setDelegate(next);
+				}
+			}
+			
+			@Override
+			public void connect() throws IOException {
+				connectAny();
+			}
+			
+			@Override
+			public void setChunkedStreamingMode(int chunklen) {
+				super.setChunkedStreamingMode(chunklen);
+				chunkLength = chunklen;
+			}
+			
+			@Override
+			public void setFixedLengthStreamingMode(int contentLength) {
+				setFixedLengthStreamingMode((long) contentLength);
+			}
+			
+			@Override
+			public void setFixedLengthStreamingMode(long contentLength) {
+				super.setFixedLengthStreamingMode(contentLength);
+				fixedLength = contentLength;
+			}
+			
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				connectAny();
+				return super.getOutputStream();
+			}
+			
+			@Override
+			public InputStream getInputStream() throws IOException {
+				connectAny();
+				return super.getInputStream();
+			}
+			
+			@Override
+			public int getResponseCode() throws IOException {
+				connectAny();
+				return super.getResponseCode();
+			}
+		}
+	}
+	
+	/**
+	 * A ConnectionProvider that paces requests with token buckets, client-wide and per host, so that the client
+	 * stays within the request rate an API allows rather than provoking 429 responses.  A bucket holds up to burst 
+	 * permits and is refilled at the permitted rate; each request takes one permit from the client-wide bucket and 
+	 * one from the bucket of its host.
+	 * 
+	 * A request for which no permit is available reserves the next one and waits for it, if that is within the 
+	 * maximum wait.  Otherwise, or with a maximum wait of 0, it is rejected immediately with a RequestRejectedException.
+	 * 
+	 * To also limit the number of requests in flight (a bulkhead), wrap a PooledConnectionProvider, which limits
+	 * concurrent connections per host and in total, and likewise waits or rejects:
+	 * 
+	 * new RateLimitingConnectionProvider(new PooledConnectionProvider(4, 16, 0), 50, 10, 1000)
+	 * 
+	 * A request is in flight until its response has been read, or its response code checked for the calls that
+	 * return it; see PooledConnectionProvider.
+	 */
+	public static class RateLimitingConnectionProvider implements ConnectionProvider {
+		private final ConnectionProvider provider;
+		private final TokenBucket clientBucket;
+		private final long maxWait;
+		private final ConcurrentMap<String, TokenBucket> hostBuckets = new ConcurrentHashMap<String, TokenBucket>();
+		private volatile double hostRate;
+		private volatile int hostBurst;
+		private final AtomicLong acquired = new AtomicLong();
+		private final AtomicLong delayed = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		
+		/**
+		 * @param permitsPerSecond requests per second permitted for the client, or 0 for no client-wide limit
+		 * @param burst number of requests that may be sent at once after the client has been idle
+		 * @param maxWait time in milliseconds a request may wait for a permit, or 0 to reject requests immediately
+		 */
+		public RateLimitingConnectionProvider(double permitsPerSecond, int burst, long maxWait) {
+			this(null, permitsPerSecond, burst, maxWait);
+		}
+		
+		/**
+		 * @param provider provider of the connections, or null to open them with URL.openConnection()
+		 * @param permitsPerSecond requests per second permitted for the client, or 0 for no client-wide limit
+		 * @param burst number of requests that may be sent at once after the client has been idle
+		 * @param maxWait time in milliseconds a request may wait for a permit, or 0 to reject requests immediately
+		 */
+		public RateLimitingConnectionProvider(ConnectionProvider provider, double permitsPerSecond, int burst, long maxWait) {
+			if (permitsPerSecond < 0 || burst < 1 || maxWait < 0)
+				throw new IllegalArgumentException("Invalid rate limit.");
+			
+			this.provider = provider;
+			this.clientBucket = permitsPerSecond > 0 ? new TokenBucket(permitsPerSecond, burst) : null;
+			this.maxWait = maxWait;
+		}
+		
+		/**
+		 * Limit the rate of requests to every host that has no limit of its own.
+		 * 
+		 * @param permitsPerSecond requests per second permitted for each host, or 0 for no limit
+		 * @param burst number of requests that may be sent to a host at once after it has been idle
+		 */
+		public void setHostLimit(double permitsPerSecond, int burst) {
+			if (permitsPerSecond < 0 || burst < 1)
+				throw new IllegalArgumentException("Invalid rate limit.");
+			
+			this.hostRate = permitsPerSecond;
+			this.hostBurst = burst;
+		}
+		
+		/**
+		 * Limit the rate of requests to a specific host.
+		 * 
+		 * @param host host key in the form scheme://host:port
+		 * @param permitsPerSecond requests per second permitted for the host
+		 * @param burst number of requests that may be sent to the host at once after it has been idle
+		 */
+		public void setHostLimit(String host, double permitsPerSecond, int burst) {
+			validateArguments(host);
+			if (permitsPerSecond <= 0 || burst < 1)
+				throw new IllegalArgumentException("Invalid rate limit.");
+			
+			hostBuckets.put(host, new TokenBucket(permitsPerSecond, burst));
+		}
+		
+		@Override
+		public HttpURLConnection getConnection(String urlStr) throws IOException {
+			URL url = new URL(urlStr);
+			String key = url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+			
+			TokenBucket hostBucket = hostBuckets.get(key);
+			if (hostBucket == null && hostRate > 0) {
+				TokenBucket created = new TokenBucket(hostRate, hostBurst);
+				hostBucket = hostBuckets.putIfAbsent(key, created);
+				if (hostBucket == null)
+					hostBucket = created;
+			}
+			
+			long now = System.nanoTime();
+			long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+			long wait = 0;
+			
+			if (hostBucket != null && (wait = hostBucket.reserve(now, maxWaitNanos)) < 0)
+				throw reject("Rate limit of " + key + " exceeded.");
+			
+			if (clientBucket != null) {
+				long clientWait = clientBucket.reserve(now, maxWaitNanos);
+				if (clientWait < 0) {
+					if (hostBucket != null)
+						hostBucket.refund();
+					throw reject("Rate limit of client exceeded.");
+				}
+				
+				wait = Math.max(wait, clientWait);
+			}
+			
+			if (wait > 0) {
+				delayed.incrementAndGet();
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					if (hostBucket != null)
+						hostBucket.refund();
+					if (clientBucket != null)
+						clientBucket.refund();
+					
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a permit for " + key);
+				}
+			}
+			
+			acquired.incrementAndGet();
+			
+			return provider == null ? (HttpURLConnection) url.openConnection() : provider.getConnection(urlStr);
+		}
+		
+		/**
+		 * @param message reason
+		 * @return exception to throw
+		 */
+		private RequestRejectedException reject(String message) {
+			rejected.incrementAndGet();
+			
+			return new RequestRejectedException(message);
+		}
+		
+		/**
+		 * @return number of requests permitted
+		 */
+		public long getAcquiredCount() {
+			return acquired.get();
+		}
+		
+		/**
+		 * @return number of requests that waited for a permit
+		 */
+		public long getDelayedCount() {
+			return delayed.get();
+		}
+		
+		/**
+		 * @return number of requests rejected because no permit was available within the maximum wait
+		 */
+		public long getRejectedCount() {
+			return rejected.get();
+		}
+		
+		@Override
+		public String toString() {
+			return "RateLimitingConnectionProvider[acquired=" + getAcquiredCount() + ", delayed=" + getDelayedCount() 
+					+ ", rejected=" + getRejectedCount() + "]";
+		}
+		
+		/**
+		 * A token bucket from which permits can be reserved ahead of time.  Reservations make the token count 
+		 * negative, so waiting requests are served in order of arrival.
+		 */
+		private static final class TokenBucket {
+			private final double permitsPerNano;
+			private final double capacity;
+			private double tokens;
+			private long refilled;
+			
+			public TokenBucket(double permitsPerSecond, int burst) {
+				this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+				this.capacity = burst;
+				this.tokens = burst;
+				this.refilled = System.nanoTime();
+			}
+			
+			/**
+			 * @param now current time from System.nanoTime()
+			 * @param maxWait maximum wait in nanoseconds
+			 * @return nanoseconds to wait before the reserved permit is available, or -1 if that exceeds maxWait
+			 */
+			public synchronized long reserve(long now, long maxWait) {
+				if (now > refilled) {
+					tokens = Math.min(capacity, tokens + (now - refilled) * permitsPerNano);
+					refilled = now;
+				}
+				
+				if (tokens >= 1) {
+					tokens -= 1;
+					return 0;
+				}
+				
+				long wait = (long) Math.ceil((1 - tokens) / permitsPerNano);
+				if (wait > maxWait)
+					return -1;
+				
+				tokens -= 1;
+				
+				return wait;
+			}
+			
+			/**
+			 * Return a reserved permit that was not used.
+			 */
+			public synchronized void refund() {
+				tokens = Math.min(capacity, tokens + 1);
+			}
+		}
+	}
+	
+	/**
+	 * A ConnectionProvider that sends requests with java.net.http.HttpClient instead of the HttpURLConnection
+	 * implementation of the JDK.  Connections to a host are multiplexed over a single HTTP/2 connection when the
+	 * server supports it, and fall back to HTTP/1.1 otherwise.  Requests are sent asynchronously as soon as they
+	 * are complete, so a thread only blocks when it reads the response.
+	 * 
+	 * The returned connections are HttpURLConnection facades, so initializers, caching and the rest of the client
+	 * work unchanged, with these differences:
+	 * - Redirect handling, proxy and connect timeout are settings of the HttpClient, not of each connection.
+	 * - The read timeout limits the time until the response headers are received.
+	 * - Headers that HttpClient sets itself (Connection, Content-Length, Expect, Host, Upgrade) are ignored.
+	 * - HTTP/2 has no reason phrases, so response messages are the standard phrases of the response codes.
+	 * - Before JDK 16 cancelling an exchange does not abort it.  disconnect() therefore also closes the response
+	 *   body, which releases the exchange, but a request that is still being sent runs until its response arrives.
+	 */
+	public static class HttpClientConnectionProvider implements ConnectionProvider {
+		private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(
+				Arrays.asList("connection", "content-length", "expect", "host", "upgrade"));
+		
+		private final HttpClient client;
+		
+		/**
+		 * Create a provider with an HttpClient that prefers HTTP/2 and follows redirects except from HTTPS to HTTP.
+		 */
+		public HttpClientConnectionProvider() {
+			this(HttpClient.newBuilder()
+					.version(HttpClient.Version.HTTP_2)
+					.followRedirects(HttpClient.Redirect.NORMAL)
+					.build());
+		}
+		
+		/**
+		 * @param client HttpClient to send requests with
+		 */
+		public HttpClientConnectionProvider(HttpClient client) {
+			this.client = client;
+		}
+		
+		@Override
+		public HttpURLConnection getConnection(String urlStr) throws IOException {
+			return new HttpClientConnection(client, new URL(urlStr));
+		}
+		
+		/**
+		 * @return HttpClient requests are sent with
+		 */
+		public HttpClient getHttpClient() {
+			return client;
+		}
+		
+		/**
+		 * An HttpURLConnection facade for an exchange of an HttpClient.
+		 */
+		private static final class HttpClientConnection extends HttpURLConnection {
+			private static final boolean CANCEL_ABORTS_EXCHANGE = Runtime.version().feature() >= 16;
+			
+			private final HttpClient client;
+			private CompletableFuture<HttpResponse<InputStream>> exchange;
+			private ByteArrayOutputStream buffer;
+			private OutputStream output;
+			private HttpResponse<InputStream> response;
+			private List<Map.Entry<String, String>> headerList;
+			
+			public HttpClientConnection(HttpClient client, URL url) {
+				super(url);
+				this.client = client;
+			}
+			
+			@Override
+			public void connect() throws IOException {
+				if (!connected && !doOutput)
+					send(HttpRequest.BodyPublishers.noBody());
+			}
+			
+			/**
+			 * Start the exchange.
+			 * 
+			 * @param body publisher of the request body
+			 * @throws IOException if the request cannot be built
+			 */
+			private void send(HttpRequest.BodyPublisher body) throws IOException {
+				HttpRequest.Builder request;
+				try {
+					request = HttpRequest.newBuilder(url.toURI()).method(method, body);
+				} catch (URISyntaxException e) {
+					throw new IOException("Invalid url " + url, e);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Invalid request to " + url, e);
+				}
+				
+				if (getReadTimeout() > 0)
+					request.timeout(Duration.ofMillis(getReadTimeout()));
+				if (ifModifiedSince > 0)
+					request.setHeader("If-Modified-Since", HttpCachePolicy.formatDate(ifModifiedSince));
+				
+				for (Map.Entry<String, List<String>> header : getRequestProperties().entrySet()) {
+					if (header.getKey() == null || RESTRICTED_HEADERS.contains(header.getKey().toLowerCase(Locale.US)))
+						continue;
+					
+					for (String value : header.getValue())
+						request.header(header.getKey(), value);
+				}
+				
+				exchange = client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+				connected = true;
+			}
+			
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				if (!doOutput)
+					throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+				if (output != null)
+					return output;
+				
+				long length = fixedContentLengthLong > -1 ? fixedContentLengthLong : fixedContentLength;
+				if (length > -1 || chunkLength > 0) {
+					final PipeInputStream pipe = new PipeInputStream();
+					HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+						
+						@Override
+						public InputStream get() {
+							return pipe;
+						}
+					});
+					
+					send(length > -1 ? HttpRequest.BodyPublishers.fromPublisher(body, length) : body);
+					output = new PipeOutputStream(pipe, exchange);
+				} else {
+					buffer = new ByteArrayOutputStream();
+					output = buffer;
+				}
+				
+				return output;
+			}
+			
+			/**
+			 * Wait for the response, sending the request first if necessary.
+			 * 
+			 * @return response
+			 * @throws IOException if the exchange failed
+			 */
+			private HttpResponse<InputStream> await() throws IOException {
+				if (response != null)
+					return response;
+				
+				if (exchange == null) {
+					send(buffer == null ? HttpRequest.BodyPublishers.noBody() 
+							: HttpRequest.BodyPublishers.ofByteArray(buffer.toByteArray()));
+				}
+				
+				try {
+					response = exchange.get();
+				} catch (ExecutionException e) {
+					throw toIOException(e.getCause());
+				} catch (CancellationException e) {
+					throw new IOException("Request to " + url + " was cancelled.");
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for " + url);
+				}
+				
+				responseCode = response.statusCode();
+				
+				return response;
+			}
+			
+			@Override
+			public int getResponseCode() throws IOException {
+				return await().statusCode();
+			}
+			
+			@Override
+			public String getResponseMessage() throws IOException {
+				return getReasonPhrase(await().statusCode());
+			}
+			
+			@Override
+			public InputStream getInputStream() throws IOException {
+				HttpResponse<InputStream> r = await();
+				
+				if (r.statusCode() >= HTTP_BAD_REQUEST) {
+					if (r.statusCode() == HTTP_NOT_FOUND || r.statusCode() == HTTP_GONE)
+						throw new FileNotFoundException(url.toString());
+					
+					throw new IOException("Server returned HTTP response code: " + r.statusCode() + " for URL: " + url);
+				}
+				
+				return r.body();
+			}
+			
+			@Override
+			public InputStream getErrorStream() {
+				if (exchange == null)
+					return null;
+				
+				try {
+					return await().statusCode() >= HTTP_BAD_REQUEST ? response.body() : null;
+				} catch (IOException e) {
+					return null;
+				}
+			}
+			
+			@Override
+			public Map<String, List<String>> getHeaderFields() {
+				try {
+					await();
+				} catch (IOException e) {
+					return Collections.emptyMap();
+				}
+				
+				Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+				headers.put(null, Collections.singletonList(getStatusLine()));
+				headers.putAll(response.headers().map());
+				
+				return Collections.unmodifiableMap(headers);
+			}
+			
+			/**
+			 * @return status line of response with the standard reason phrase of its code
+			 */
+			private String getStatusLine() {
+				return (response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ") + response.statusCode() 
+						+ " " + getReasonPhrase(response.statusCode());
+			}
+			
+			/**
+			 * @param code response code
+			 * @return standard reason phrase of code, or that of its class if it is not a common code
+			 */
+			private static String getReasonPhrase(int code) {
+				switch (code) {
+				case 200: return "OK";
+				case 201: return "Created";
+				case 202: return "Accepted";
+				case 204: return "No Content";
+				case 206: return "Partial Content";
+				case 301: return "Moved Permanently";
+				case 302: return "Found";
+				case 303: return "See Other";
+				case 304: return "Not Modified";
+				case 307: return "Temporary Redirect";
+				case 308: return "Permanent Redirect";
+				case 400: return "Bad Request";
+				case 401: return "Unauthorized";
+				case 403: return "Forbidden";
+				case 404: return "Not Found";
+				case 405: return "Method Not Allowed";
+				case 406: return "Not Acceptable";
+				case 408: return "Request Timeout";
+				case 409: return "Conflict";
+				case 410: return "Gone";
+				case 412: return "Precondition Failed";
+				case 413: return "Payload Too Large";
+				case 415: return "Unsupported Media Type";
+				case 422: return "Unprocessable Entity";
+				case 429: return "Too Many Requests";
+				case 500: return "Internal Server Error";
+				case 501: return "Not Implemented";
+				case 502: return "Bad Gateway";
+				case 503: return "Service Unavailable";
+				case 504: return "Gateway Timeout";
+				default:
+					if (code >= 500)
+						return "Server Error";
+					if (code >= 400)
+						return "Client Error";
+					if (code >= 300)
+						return "Redirection";
+					if (code >= 200)
+						return "Success";
+					
+					return "Informational";
+				}
+			}
+			
+			@Override
+			public String getHeaderField(String name) {
+				if (name == null)
+					return getHeaderField(0);
+				
+				try {
+					return await().headers().firstValue(name).orElse(null);
+				} catch (IOException e) {
+					return null;
+				}
+			}
+			
+			@Override
+			public String getHeaderField(int n) {
+				List<Map.Entry<String, String>> headers = getHeaderList();
+				
+				return n < headers.size() ? headers.get(n).getValue() : null;
+			}
+			
+			@Override
+			public String getHeaderFieldKey(int n) {
+				List<Map.Entry<String, String>> headers = getHeaderList();
+				
+				return n < headers.size() ? headers.get(n).getKey() : null;
+			}
+			
+			/**
+			 * @return headers of response in order, the status line first
+			 */
+			private List<Map.Entry<String, String>> getHeaderList() {
+				if (headerList != null)
+					return headerList;
+				
+				List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+				try {
+					await();
+				} catch (IOException e) {
+					return headers;
+				}
+				
+				headers.add(new AbstractMap.SimpleImmutableEntry<String, String>(null, getStatusLine()));
+				for (Map.Entry<String, List<String>> header : response.headers().map().entrySet())
+					for (String value : header.getValue())
+						headers.add(new AbstractMap.SimpleImmutableEntry<String, String>(header.getKey(), value));
+				
+				headerList = headers;
+				
+				return headers;
+			}
+			
+			@Override
+			public void disconnect() {
+				if (exchange == null)
+					return;
+				
+				// Before JDK 16 cancelling only completes the future and leaves the exchange running, so the body of 
+				// its response is closed when it arrives instead, which releases the exchange.
+				if (!CANCEL_ABORTS_EXCHANGE || exchange.isDone())
+					exchange.thenAccept(new Consumer<HttpResponse<InputStream>>() {
+						
+						@Override
+						public void accept(HttpResponse<InputStream> r) {
+							try {
+								r.body().close();
+							} catch (IOException e) {
+								// Closing only releases resources.
+							}
+						}
+					});
+				else
+					exchange.cancel(true);
+			}
+			
+			@Override
+			public boolean usingProxy() {
+				return client.proxy().isPresent();
+			}
+		}
+		
+		/**
+		 * Request body stream read by the HttpClient while it is written by the caller.
+		 */
+		private static final class PipeInputStream extends InputStream {
+			private static final byte[] EOF = new byte[0];
+			
+			private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(16);
+			private byte[] current;
+			private int position;
+			
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (current == EOF)
+					return -1;
+				
+				if (current == null || position == current.length) {
+					try {
+						current = chunks.take();
+						position = 0;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+					
+					if (current == EOF)
+						return -1;
+				}
+				
+				int count = Math.min(len, current.length - position);
+				System.arraycopy(current, position, b, off, count);
+				position += count;
+				
+				return count;
+			}
+		}
+		
+		/**
+		 * Writes the request body to a PipeInputStream.  Fails rather than blocking if the exchange has ended.
+		 */
+		private static final class PipeOutputStream extends OutputStream {
+			private final PipeInputStream pipe;
+			private final CompletableFuture<?> exchange;
+			private boolean closed;
+			
+			public PipeOutputStream(PipeInputStream pipe, CompletableFuture<?> exchange) {
+				this.pipe = pipe;
+				this.exchange = exchange;
+			}
+			
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (closed)
+					throw new IOException("Stream closed.");
+				if (len > 0)
+					put(Arrays.copyOfRange(b, off, off + len));
+			}
+			
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					put(PipeInputStream.EOF);
+				}
+			}
+			
+			/**
+			 * @param chunk chunk to pass to the HttpClient
+			 * @throws IOException if the exchange ended before the chunk could be passed
+			 */
+			private void put(byte[] chunk) throws IOException {
+				try {
+					while (!pipe.chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+						if (exchange.isDone())
+							throw new IOException("Request ended before the body was sent.");
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Receives the RequestEvent of each request made by a RestClient.  See setRequestListener().
+	 */
+	public interface RequestListener {
+		/**
+		 * Called once per request, on the thread that completed it: when the response content has been 
+		 * deserialized, when the request fails, or when it is cancelled.  Implementations should return quickly.
+		 * 
+		 * @param event timings, sizes and outcome of the request
+		 */
+		void requestCompleted(RequestEvent event);
+	}
+	
+	/**
+	 * How the content cache was involved in a request.
+	 */
+	public enum CacheStatus {
+		/**
+		 * The request was not a GET, or the client has no cache.
+		 */
+		NONE, 
+		/**
+		 * The response was served from a fresh cache entry.
+		 */
+		HIT, 
+		/**
+		 * A stale cache entry was served while it is revalidated in the background.
+		 */
+		STALE, 
+		/**
+		 * A stale cache entry was revalidated by the server (304 Not Modified) and served.
+		 */
+		REVALIDATED, 
+		/**
+		 * The response was fetched from the server.
+		 */
+		MISS
+	}
+	
+	/**
+	 * Timings, sizes and outcome of a single request.  Times are in nanoseconds and are -1 if they were not 
+	 * measured: DNS time is only measured for hosts resolved by a ResolvingConnectionProvider, and requests 
+	 * served from the cache have no DNS or connect time.  The received byte count covers the bytes read by the deserializer.
+	 */
+	public static final class RequestEvent {
+		private final RequestListener listener;
+		private final HttpMethod method;
+		private final String url;
+		private final String host;
+		private final long startNanos;
+		private long dnsNanos = -1;
+		private long connectNanos = -1;
+		private long firstByteNanos = -1;
+		private long totalNanos = -1;
+		private long bytesSent;
+		private CountingInputStream received;
+		private int responseCode = -1;
+		private CacheStatus cacheStatus = CacheStatus.NONE;
+		private Throwable failure;
+		private boolean completed;
+		
+		private RequestEvent(RequestListener listener, HttpMethod method, String url) {
+			this.listener = listener;
+			this.method = method;
+			this.url = url;
+			this.host = getHost(url);
+			this.startNanos = System.nanoTime();
+		}
+		
+		/**
+		 * Notify the listener of the event, once.
+		 * 
+		 * @param failure exception that ended the request, or null if it succeeded
+		 */
+		private void complete(Throwable failure) {
+			synchronized (this) {
+				if (completed)
+					return;
+				
+				completed = true;
+				this.failure = failure;
+				this.totalNanos = System.nanoTime() - startNanos;
+			}
+			
+			listener.requestCompleted(this);
+		}
+		
+		/**
+		 * @param url request url
+		 * @return host of url or null if it cannot be parsed
+		 */
+		private static String getHost(String url) {
+			try {
+				if (!url.startsWith("http://") && !url.startsWith("https://"))
+					url = "http://" + url;
+				
+				return new URL(url).getHost();
+			} catch (MalformedURLException e) {
+				return null;
+			}
+		}
+		
+		/**
+		 * @return HTTP method of request
+		 */
+		public HttpMethod getMethod() {
+			return method;
+		}
+		
+		/**
+		 * @return url of request as passed to the client
+		 */
+		public String getUrl() {
+			return url;
+		}
+		
+		/**
+		 * @return host of request, or null if the url could not be parsed
+		 */
+		public String getHost() {
+			return host;
+		}
+		
+		/**
+		 * @return time taken to resolve the host, or -1
+		 */
+		public long getDnsNanos() {
+			return dnsNanos;
+		}
+		
+		/**
+		 * @return time taken to connect to the server, or -1
+		 */
+		public long getConnectNanos() {
+			return connectNanos;
+		}
+		
+		/**
+		 * @return time from the start of the request until the response status was received, or -1
+		 */
+		public long getFirstByteNanos() {
+			return firstByteNanos;
+		}
+		
+		/**
+		 * @return time from the start of the request until it completed
+		 */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+		
+		/**
+		 * @return number of bytes of the request body sent
+		 */
+		public long getBytesSent() {
+			return bytesSent;
+		}
+		
+		/**
+		 * @return number of bytes of the response body read from the server
+		 */
+		public long getBytesReceived() {
+			return received == null ? 0 : received.getCount();
+		}
+		
+		/**
+		 * @return HTTP response code, or -1 if no response was received
+		 */
+		public int getResponseCode() {
+			return responseCode;
+		}
+		
+		/**
+		 * @return how the cache was involved in the request
+		 */
+		public CacheStatus getCacheStatus() {
+			return cacheStatus;
+		}
+		
+		/**
+		 * @return exception that ended the request, or null if it succeeded
+		 */
+		public Throwable getFailure() {
+			return failure;
+		}
+		
+		@Override
+		public String toString() {
+			return method + " " + url + " " + responseCode + " " + cacheStatus + " " + (totalNanos / 1000) + "us";
+		}
+	}
+	
+	/**
+	 * A RequestListener that aggregates events into RequestMetrics per host and HTTP method.
+	 */
+	public static class RequestStatistics implements RequestListener {
+		private final ConcurrentMap<String, RequestMetrics> metrics = new ConcurrentHashMap<String, RequestMetrics>();
+		
+		@Override
+		public void requestCompleted(RequestEvent event) {
+			getMetrics(event.getHost(), event.getMethod()).record(event);
+		}
+		
+		/**
+		 * @param host host of requests
+		 * @param method HTTP method of requests
+		 * @return metrics for host and method, created if no request has been recorded yet
+		 */
+		public RequestMetrics getMetrics(String host, HttpMethod method) {
+			String key = method + " " + host;
+			RequestMetrics m = metrics.get(key);
+			
+			if (m == null) {
+				RequestMetrics created = new RequestMetrics(host, method);
+				m = metrics.putIfAbsent(key, created);
+				if (m == null)
+					m = created;
+			}
+			
+			return m;
+		}
+		
+		/**
+		 * @return metrics of every host and method requests have been recorded for
+		 */
+		public List<RequestMetrics> getMetrics() {
+			return new ArrayList<RequestMetrics>(metrics.values());
+		}
+		
+		/**
+		 * Discard all recorded metrics.
+		 */
+		public void reset() {
+			metrics.clear();
+		}
+	}
+	
+	/**
+	 * Counters and latency histograms of the requests to one host with one HTTP method.
+	 */
+	public static final class RequestMetrics {
+		private final String host;
+		private final HttpMethod method;
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong bytesSent = new AtomicLong();
+		private final AtomicLong bytesReceived = new AtomicLong();
+		private final AtomicLong cacheHits = new AtomicLong();
+		private final AtomicLong cacheMisses = new AtomicLong();
+		private final ConcurrentMap<Integer, AtomicLong> responseCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+		private final LatencyHistogram dns = new LatencyHistogram();
+		private final LatencyHistogram connect = new LatencyHistogram();
+		private final LatencyHistogram firstByte = new LatencyHistogram();
+		private final LatencyHistogram total = new LatencyHistogram();
+		
+		private RequestMetrics(String host, HttpMethod method) {
+			this.host = host;
+			this.method = method;
+		}
+		
+		/**
+		 * @param event completed request
+		 */
+		private void record(RequestEvent event) {
+			requests.incrementAndGet();
+			if (event.getFailure() != null)
+				failures.incrementAndGet();
+			
+			bytesSent.addAndGet(event.getBytesSent());
+			bytesReceived.addAndGet(event.getBytesReceived());
+			
+			switch (event.getCacheStatus()) {
+			case HIT:
+			case STALE:
+			case REVALIDATED:
+				cacheHits.incrementAndGet();
+				break;
+			case MISS:
+				cacheMisses.incrementAndGet();
+				break;
+			default:
+				break;
+			}
+			
+			if (event.getResponseCode() > -1) {
+				AtomicLong count = responseCodes.get(event.getResponseCode());
+				if (count == null) {
+					AtomicLong created = new AtomicLong();
+					count = responseCodes.putIfAbsent(event.getResponseCode(), created);
+					if (count == null)
+						count = created;
+				}
+				count.incrementAndGet();
+			}
+			
+			dns.record(event.getDnsNanos());
+			connect.record(event.getConnectNanos());
+			firstByte.record(event.getFirstByteNanos());
+			total.record(event.getTotalNanos());
+		}
+		
+		public String getHost() {
+			return host;
+		}
+		
+		public HttpMethod getMethod() {
+			return method;
+		}
+		
+		/**
+		 * @return number of completed requests
+		 */
+		public long getRequestCount() {
+			return requests.get();
+		}
+		
+		/**
+		 * @return number of requests that failed with an exception or were cancelled
+		 */
+		public long getFailureCount() {
+			return failures.get();
+		}
+		
+		public long getBytesSent() {
+			return bytesSent.get();
+		}
+		
+		public long getBytesReceived() {
+			return bytesReceived.get();
+		}
+		
+		/**
+		 * @return number of GETs served from the cache, including stale and revalidated entries
+		 */
+		public long getCacheHitCount() {
+			return cacheHits.get();
+		}
+		
+		/**
+		 * @return number of GETs that were not in the cache
+		 */
+		public long getCacheMissCount() {
+			return cacheMisses.get();
+		}
+		
+		/**
+		 * @param responseCode HTTP response code
+		 * @return number of responses with the response code
+		 */
+		public long getResponseCodeCount(int responseCode) {
+			AtomicLong count = responseCodes.get(responseCode);
+			
+			return count == null ? 0 : count.get();
+		}
+		
+		/**
+		 * @return count of each response code received
+		 */
+		public Map<Integer, Long> getResponseCodeCounts() {
+			Map<Integer, Long> counts = new HashMap<Integer, Long>();
+			for (Map.Entry<Integer, AtomicLong> entry : responseCodes.entrySet())
+				counts.put(entry.getKey(), entry.getValue().get());
+			
+			return counts;
+		}
+		
+		public LatencyHistogram getDnsLatency() {
+			return dns;
+		}
+		
+		public LatencyHistogram getConnectLatency() {
+			return connect;
+		}
+		
+		public LatencyHistogram getFirstByteLatency() {
+			return firstByte;
+		}
+		
+		public LatencyHistogram getTotalLatency() {
+			return total;
+		}
+	}
+	
+	/**
+	 * A lock-free histogram of latencies with buckets of powers of two microseconds.  Percentiles are reported as
+	 * the upper bound of the bucket they fall in, so they are accurate to within a factor of two.
+	 */
+	public static final class LatencyHistogram {
+		private static final int BUCKETS = 64;
+		
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+		
+		/**
+		 * @param nanos latency in nanoseconds.  Negative values are ignored.
+		 */
+		public void record(long nanos) {
+			if (nanos < 0)
+				return;
+			
+			buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos / 1000));
+			count.incrementAndGet();
+			sum.addAndGet(nanos);
+			
+			long current;
+			while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+				;
+		}
+		
+		/**
+		 * @return number of latencies recorded
+		 */
+		public long getCount() {
+			return count.get();
+		}
+		
+		/**
+		 * @return mean latency in nanoseconds, or 0 if none have been recorded
+		 */
+		public long getMean() {
+			long n = count.get();
+			
+			return n == 0 ? 0 : sum.get() / n;
+		}
+		
+		/**
+		 * @return maximum latency in nanoseconds
+		 */
+		public long getMax() {
+			return max.get();
+		}
+		
+		/**
+		 * @param percentile percentile between 0 and 100
+		 * @return upper bound in nanoseconds of the bucket of the percentile, or 0 if none have been recorded
+		 */
+		public long getPercentile(double percentile) {
+			long n = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; ++i)
+				n += counts[i] = buckets.get(i);
+			
+			if (n == 0)
+				return 0;
+			
+			long rank = Math.max(1, (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(max.get(), (1L << i) * 1000);
+			}
+			
+			return max.get();
+		}
+	}
+	
+	/**
+	 * Decodes a gzip or deflate encoded response stream.  The decoder is created on the first read, so an empty 
+	 * body (e.g. of a HEAD or 204 response) is read as empty rather than failing as an invalid header.  
+	 */
+	private static final class DecodingInputStream extends InputStream {
+		private final PushbackInputStream source;
+		private final boolean gzip;
+		private InputStream decoder;
+		
+		public DecodingInputStream(InputStream in, boolean gzip) {
+			this.source = new PushbackInputStream(in, 2);
+			this.gzip = gzip;
+		}
+		
+		/**
+		 * @return decoder, or null if the body is empty
+		 * @throws IOException on I/O error
+		 */
+		private InputStream decoder() throws IOException {
+			if (decoder != null)
+				return decoder;
+			
+			int b0 = source.read();
+			if (b0 == -1)
+				return null;
+			int b1 = source.read();
+			if (b1 != -1)
+				source.unread(b1);
+			source.unread(b0);
+			
+			if (gzip) {
+				decoder = new GZIPInputStream(source, COPY_BUFFER_SIZE);
+			} else {
+				// Some servers send raw deflate data rather than the zlib format required by RFC 9110.
+				boolean zlib = (b0 & 0x0f) == 8 && b1 != -1 && ((b0 << 8) | b1) % 31 == 0;
+				decoder = new InflaterInputStream(source, new Inflater(!zlib), COPY_BUFFER_SIZE);
+			}
+			
+			return decoder;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			InputStream in = decoder();
+			
+			return in == null ? -1 : in.read();
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			InputStream in = decoder();
+			
+			return in == null ? -1 : in.read(b, off, len);
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return decoder == null ? 0 : decoder.available();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (decoder != null)
+				decoder.close();
+			else
+				source.close();
+		}
+	}
+	
+	/**
+	 * Counts the bytes written to a request stream.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+		
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+	
+	/**
+	 * Counts the bytes read from a response stream.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private volatile long count;
+		
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b > -1)
+				count++;
+			
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				count += read;
+			
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			
+			return skipped;
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		/**
+		 * @return number of bytes read
+		 */
+		public long getCount() {
+			return count;
+		}
+	}
+	
+	/**
+	 * Used to specify a file to upload in a multipart POST.
+	 *
+	 */
+	public static class FormInputStream extends InputStream {
+		private static final long serialVersionUID = 2957338960806476533L;
+		private final String mimeType;
+		private final InputStream parent;
+		private final String name;
+
+		/**
+		 * @param parent Input stream of file
+		 * @param name name of file
+		 * @param mimeType mimetype for content of file
+		 */
+		public FormInputStream(InputStream parent, String name, String mimeType) {
+
+			this.parent = parent;
+			this.name = name;
+			this.mimeType = mimeType;					
+		}
+		
+		/**
+		 * @return Mime type of file.
+		 */
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		@Override
+		public int read() throws IOException {			
+			return parent.read();
+		}
+		
+		@Override
+		public int read(byte[] b) throws IOException {		
+			return parent.read(b);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return parent.read(b, off, len);
+		}
+
+		/**
+		 * @return name of content
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+	
+	/**
+	 * Implemented by request bodies that know their length before they are sent.  In streaming mode 
+	 * such bodies are sent with a fixed Content-Length rather than with chunked transfer encoding.
+	 */
+	public interface SizedContent {
+		/**
+		 * @return length of content in bytes, or -1 if unknown.
+		 */
+		long getContentLength();
+	}
+	
+	/**
+	 * An InputStream of known length.
+	 * 
+	 */
+	public static class SizedInputStream extends FilterInputStream implements SizedContent {
+		private final long length;
+		
+		/**
+		 * @param in content
+		 * @param length number of bytes that will be read from in
+		 */
+		public SizedInputStream(InputStream in, long length) {
+			super(in);
+			this.length = length;
+		}
+		
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+	}
+	
+	/**
+	 * A ConnectionIntializer for timeouts.
+	 *
+	 */
+	public static class TimeoutConnectionInitializer implements ConnectionInitializer {
+
+		private final int connectTimeout;
+		private final int readTimeout;
+
+		/**
+		 * @param connectTimeout
+		 * @param readTimeout
+		 */
+		public TimeoutConnectionInitializer(int connectTimeout, int readTimeout) {
+			this.connectTimeout = connectTimeout;
+			this.readTimeout = readTimeout;
+			
+		}
+		
+		@Override
+		public void initialize(HttpURLConnection connection) {
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+		}
+	}
+	
+	/**
+	 * A Connection Initializer that sends Basic Authentication header in the request.
+	 *
+	 */
+	public static class BasicAuthConnectionInitializer implements ConnectionInitializer {
+
+		private final String field;
+
+		/**
+		 * @param username
+		 * @param password
+		 */
+		public BasicAuthConnectionInitializer(String username, String password) {
+			String userpass = username + ":" + password;
+			field = "Basic " + encodeBytes(userpass.getBytes()); 
+		}
+		
+		@Override
+		public void initialize(HttpURLConnection connection) {
+			connection.addRequestProperty("Authorization", field);
+		}		
+	}
+
+	private static Random RNG;
+
+	private static ExecutorService defaultExecutor;
+	private static final BlockingQueue<byte[]> BUFFER_POOL = new ArrayBlockingQueue<byte[]>(POOLED_BUFFER_COUNT);
+	
+	private volatile ConnectionProvider connectionProvider;
+
+	private final List<ConnectionInitializer> connectionInitializers;
+	
+	private volatile HttpGETCache contentCache;
+	private volatile HttpCachePolicy cachePolicy;
+	
+	private volatile ErrorHandler errorHandler;
+	private volatile PrintWriter debugStream;
+	private volatile RequestListener requestListener;
+	private volatile RetryPolicy retryPolicy;
+	private volatile HedgingPolicy hedgingPolicy;
+	
+	private volatile ExecutorService executor;
+	
+	private volatile boolean streamingMode;
+	private volatile int streamingChunkSize = DEFAULT_CHUNK_SIZE;
+		
+	private volatile boolean requestCoalescing;
+	private volatile boolean responseCompression;
+	private volatile boolean cacheCompressed;
+	private volatile boolean requestCompression;
+	private final ConcurrentMap<String, CompletableFuture<HttpGETCacheEntry>> inFlight = 
+			new ConcurrentHashMap<String, CompletableFuture<HttpGETCacheEntry>>();
+	
+	/**
+	 * Default constructor.
+	 */
+	public RestClient() {
+		this.connectionProvider = new DefaultConnectionProvider();
+		this.connectionInitializers = new ArrayList<ConnectionInitializer>();
+		this.errorHandler = null;
+		this.contentCache = null;
+	}
+	
+	/**
+	 * @param connectionProvider ConnectionProvider
+	 */
+	public RestClient(ConnectionProvider connectionProvider) {
+		this.connectionProvider = connectionProvider;
+		this.connectionInitializers = new ArrayList<ConnectionInitializer>();
+		this.errorHandler = null;
+		this.contentCache = null;
+	}
+	
+	/**
+	 * @param initializer ConnectionInitializer
+	 */
+	public RestClient(ConnectionInitializer initializer) {
+		this();
+		connectionInitializers.add(initializer);
+	}
+		
+	/**
+	 * Creates a ReSTClient with basic authentication credentials.
+	 * @param username
+	 * @param password
+	 */
+	public RestClient(String username, String password) {
+		this();
+		connectionInitializers.add(new BasicAuthConnectionInitializer(username, password));
+	}
+	
+	/**
+	 * @param connectionProvider ConnectionProvider
+	 * @param initializer ConnectionInitializer
+	 */
+	public RestClient(ConnectionProvider connectionProvider, ConnectionInitializer initializer) {
+		this(connectionProvider);
+		connectionInitializers.add(initializer);
+	}
+	
+	/**
+	 * @param initializer ConnectionInitializer
+	 * @param deserializer ResponseDeserializer<T>
+	 */
+	public RestClient(ConnectionInitializer initializer, ResponseDeserializer<?> deserializer) {
+		this(initializer);
+	}
+	
+	/**
+	 * @param connectionProvider ConnectionProvider
+	 * @param initializer ConnectionInitializer
+	 * @param deserializer ResponseDeserializer<T>
+	 */
+	public RestClient(ConnectionProvider connectionProvider, ConnectionInitializer initializer, ResponseDeserializer<?> deserializer) {
+		this(connectionProvider, initializer);
+	}
+	
+	/**
+	 * @param connectionProvider ConnectionProvider
+	 * @param initializer ConnectionInitializer
+	 * @param deserializer ResponseDeserializer<T>
+	 * @param errorHandler ErrorHandler
+	 */
+	public RestClient(ConnectionProvider connectionProvider, ConnectionInitializer initializer, 
+			ResponseDeserializer<?> deserializer, ErrorHandler errorHandler) {
+		this.connectionProvider = connectionProvider;
+		this.connectionInitializers = new ArrayList<ConnectionInitializer>();
+		this.errorHandler = errorHandler;
+		this.contentCache = null;
+		connectionInitializers.add(initializer);		
+	}
+	
+	/**
+	 * @param connectionProvider ConnectionProvider
+	 * @param initializer ConnectionInitializer
+	 * @param deserializer ResponseDeserializer<T>
+	 * @param errorHandler ErrorHandler
+	 * @param debugStream OutputStream to pass debug messages to.  If null, no debug output.
+	 */
+	public RestClient(ConnectionProvider connectionProvider, ConnectionInitializer initializer, 
+			ResponseDeserializer<?> deserializer, ErrorHandler errorHandler, PrintWriter debugStream) {
+		this.connectionProvider = connectionProvider;
+		this.connectionInitializers = new ArrayList<ConnectionInitializer>();
+		this.errorHandler = errorHandler;
+		this.debugStream = debugStream;
+		this.contentCache = null;
+		connectionInitializers.add(initializer);		
+	}
+	
+	// Public methods
+	/**
+	 * Set a content cache for the client.  Will be used to cache GET methods only.
+	 * @param cache
+	 */
+	public void setCache(HttpGETCache cache) {
+		this.contentCache = cache;
+	}
+	
+	/**
+	 * @return current ContentCache or null if not previously set.
+	 */
+	public HttpGETCache getCache() {
+		return contentCache;
+	}
+	
+	/**
+	 * Set the policy that decides which responses are stored in the cache and when they must be revalidated.
+	 * If no policy is set, every successful GET is stored and served from the cache until the cache removes it.
+	 * 
+	 * @param policy HttpCachePolicy or null
+	 */
+	public void setCachePolicy(HttpCachePolicy policy) {
+		this.cachePolicy = policy;
+	}
+	
+	/**
+	 * @return current HttpCachePolicy or null if not previously set.
+	 */
+	public HttpCachePolicy getCachePolicy() {
+		return cachePolicy;
+	}
+	
+	/**
+	 * @return ErrorHandler
+	 */
+	public ErrorHandler getErrorHandler() {
+		return errorHandler;
+	}
+	
+	/**
+	 * Sets an error handler for the client.  If no error handler is set, HTTP (application level) errors will be ignored 
+	 * by the client.
+	 * 
+	 * Creating a custom ErrorHandler let's the client handle specific errors from the server in an application specific way.
+	 * 
+	 * See also: THROW_ALL_ERRORS, THROW_5XX_ERRORS
+	 * 
+	 * @param handler ErrorHandler
+	 */
+	public void setErrorHandler(ErrorHandler handler) {
+		this.errorHandler = handler;
+	}
+	
+	/**
+	 * Sets a debug OutputStream for the client.  If null is passed, no debug output
+	 * will be generated.
+	 * 
+	 * @param debugStream OutputStream
+	 */
+	public void setDebugWriter(PrintWriter writer) {
+		this.debugStream = writer;
+	}
+		
+	/**
+	 * Sets a listener that receives a RequestEvent with the timings, sizes and outcome of every request.  If null
+	 * is passed, no events are created and requests are not timed.
+	 * 
+	 * An event is reported when Response.getContent() returns or throws, or the request fails or is cancelled.  
+	 * Requests whose content is never read are not reported.
+	 * 
+	 * @param listener RequestListener or null
+	 */
+	public void setRequestListener(RequestListener listener) {
+		this.requestListener = listener;
+	}
+	
+	/**
+	 * @return RequestListener or null if not previously set.
+	 */
+	public RequestListener getRequestListener() {
+		return requestListener;
+	}
+	
+	/**
+	 * Set the policy for retrying failed requests.  When a policy is set, the response code is read before
+	 * a call returns, so that a retryable response can be retried.  Files and multipart bodies of Strings and 
+	 * FormFiles are read again for each attempt.  Other request bodies are buffered in memory to be resent, unless
+	 * the client is in streaming mode or they are SizedContent of more than 16 MB; such bodies, and multipart 
+	 * bodies with FormInputStreams, are not retried.
+	 * 
+	 * @param policy RetryPolicy or null to never retry
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		this.retryPolicy = policy;
+	}
+	
+	/**
+	 * @return RetryPolicy or null if requests are not retried
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/**
+	 * Set the policy for hedging GET requests.  Hedged requests run on the default executor, as a call waiting for 
+	 * them may itself run on the executor of the client and would starve a bounded one; a call returns once the 
+	 * response code of the first request to be answered has been read.  With a retry policy each of the two requests
+	 * is retried independently.
+	 * 
+	 * @param policy HedgingPolicy or null to never hedge
+	 */
+	public void setHedgingPolicy(HedgingPolicy policy) {
+		this.hedgingPolicy = policy;
+	}
+	
+	/**
+	 * @return HedgingPolicy or null if requests are not hedged
+	 */
+	public HedgingPolicy getHedgingPolicy() {
+		return hedgingPolicy;
+	}
+	
+	/**
+	 * @param provider ConnectionProvider
+	 */
+	public void setConnectionProvider(ConnectionProvider provider) {
+		this.connectionProvider = provider;
+	}
+	
+	/**
+	 * @return ConnectionProvider
+	 */
+	public ConnectionProvider getConnectionProvider() {
+		return connectionProvider;
+	}
+	
+	/**
+	 * @param initializer
+	 */
+	public ConnectionInitializer addConnectionInitializer(ConnectionInitializer initializer) {
+		if (!connectionInitializers.contains(initializer))
+			connectionInitializers.add(initializer);
+		
+		return initializer;
+	}
+	
+	/**
+	 * @param initializer ConnectionInitializer
+	 * @return ConnectionInitializer
+	 */
+	public boolean removeConnectionInitializer(ConnectionInitializer initializer) {
+		return connectionInitializers.remove(initializer);
+	}
+	
+	/**
+	 * Sets the executor used to run requests asynchronously.  When an executor is set, call() submits the
+	 * complete exchange (connecting, sending the body, reading and deserializing the response) to the executor
+	 * and returns immediately.  If null is passed, requests are executed on the calling thread.
+	 * 
+	 * @param executor ExecutorService or null
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * @return ExecutorService used for asynchronous requests, or null if requests are executed on the calling thread.
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Enable or disable asynchronous mode.  When enabled and no executor has been set, a shared executor
+	 * from createDefaultExecutor() is used.
+	 * 
+	 * @param value if true, requests are executed asynchronously.
+	 */
+	public void setAsynchronous(boolean value) {
+		if (!value)
+			this.executor = null;
+		else if (this.executor == null)
+			this.executor = getDefaultExecutor();
+	}
+	
+	/**
+	 * @return true if requests are executed asynchronously.
+	 */
+	public boolean isAsynchronous() {
+		return executor != null;
+	}
+	
+	/**
+	 * Enable or disable streaming of request bodies.  By default POST and PUT bodies are buffered in memory
+	 * before being sent.  In streaming mode the body is copied directly to the connection: with a fixed 
+	 * Content-Length if the length is known in advance (see SizedContent), or with chunked transfer encoding
+	 * otherwise.  Bodies of files (e.g. callPost(url, File)) and multipart bodies (callPostMultipart()) are 
+	 * always streamed.
+	 * 
+	 * Note that HttpURLConnection cannot resend a streamed body, so redirects and authentication challenges
+	 * that require the request to be repeated will cause an error rather than being handled transparently.
+	 * 
+	 * @param value if true, request bodies are streamed.
+	 */
+	public void setStreamingMode(boolean value) {
+		this.streamingMode = value;
+	}
+	
+	/**
+	 * @return true if request bodies are streamed.
+	 */
+	public boolean isStreamingMode() {
+		return streamingMode;
+	}
+	
+	/**
+	 * @param size size in bytes of chunks sent for streamed bodies of unknown length.
+	 */
+	public void setStreamingChunkSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Chunk size must be positive.");
+		
+		this.streamingChunkSize = size;
+	}
+	
+	/**
+	 * Enable or disable coalescing of concurrent GET requests.  When enabled, a GET for a url that is already
+	 * being fetched by another thread does not open a new connection; it waits for the response of the request 
+	 * in flight and receives a copy of it.  Only GETs without additional headers are coalesced.
+	 * 
+	 * The response body of a coalesced request is read completely before it is deserialized, so this is not
+	 * suited to responses that must be streamed.
+	 * 
+	 * @param value if true, concurrent identical GETs share a single exchange.
+	 */
+	public void setRequestCoalescing(boolean value) {
+		this.requestCoalescing = value;
+	}
+	
+	/**
+	 * @return true if concurrent identical GETs share a single exchange.
+	 */
+	public boolean isRequestCoalescing() {
+		return requestCoalescing;
+	}
+	
+	/**
+	 * Enable or disable compressed responses.  When enabled, requests are sent with "Accept-Encoding: gzip, deflate" 
+	 * unless an Accept-Encoding header has been set, and response bodies encoded with gzip or deflate are decoded 
+	 * before they are passed to the deserializer.  The headers passed to the deserializer of a decoded response do not 
+	 * contain Content-Encoding and Content-Length.  Other encodings are passed through unchanged.
+	 * 
+	 * @param value if true, compressed responses are requested and decoded.
+	 */
+	public void setResponseCompression(boolean value) {
+		this.responseCompression = value;
+	}
+	
+	/**
+	 * @return true if compressed responses are requested and decoded.
+	 */
+	public boolean isResponseCompression() {
+		return responseCompression;
+	}
+	
+	/**
+	 * Set how compressed responses are stored in the cache.  By default they are decoded before they are stored, 
+	 * so cache hits do not pay for decompression.  Storing them as received takes less cache space; entries are 
+	 * then decoded each time they are served.  Only applies if response compression is enabled.
+	 * 
+	 * @param value if true, compressed responses are stored compressed.
+	 */
+	public void setCacheCompressed(boolean value) {
+		this.cacheCompressed = value;
+	}
+	
+	/**
+	 * @return true if compressed responses are stored compressed.
+	 */
+	public boolean isCacheCompressed() {
+		return cacheCompressed;
+	}
+	
+	/**
+	 * Enable or disable compression of request bodies.  When enabled, POST and PUT bodies are sent with
+	 * "Content-Encoding: gzip", compressed while they are streamed to the server with chunked transfer encoding.
+	 * Bodies known to be smaller than 256 bytes, and requests that set their own Content-Encoding 
+	 * header, are sent uncompressed.  The server must support compressed request bodies.
+	 * 
+	 * As with streaming mode, a compressed body cannot be resent to follow a redirect or authentication challenge.
+	 * 
+	 * @param value if true, request bodies are compressed.
+	 */
+	public void setRequestCompression(boolean value) {
+		this.requestCompression = value;
+	}
+	
+	/**
+	 * @return true if request bodies are compressed.
+	 */
+	public boolean isRequestCompression() {
+		return requestCompression;
+	}
+	
+	/**
+	 * This is the primary call in RestClient.  All other HTTP method calls call this method with some specific parameters.
+	 * For flexibility this method is exposed to clients but should not be used in a majority of cases.  See callGet(), 
+	 * callPost() etc. for the simplest usage.  This call is asynchronous, the Response works like a Future.
+	 * 
+	 * If an executor has been set (see setExecutor(), setAsynchronous()) the entire exchange runs on the executor
+	 * and this method returns an AsyncResponse without blocking.  The content stream is read by the executor, so the
+	 * caller must not use it after this method returns.  Otherwise the request body is sent on the calling thread and the response
+	 * is read when the Response is accessed.
+	 * 
+	 * This method handles errors based on how the client is configured.  If no Deserializer or ErrorHander is specified
+	 * the response content will produce null.  The response class will contain the HTTP error information.
+	 * 
+	 * @param method HTTP method.  Cannot be null.
+	 * @param url url of server.  Cannot be null.
+	 * @param deserializer class to deserialize the response body.  If null then response is deserialized to a String.
+	 * @param content Optional content to pass to server, can be null.
+	 * @param headers HTTP headers that should be appended to the call.  These are in addition to any headers set 
+	 * 			in any ConnectionInitializers associated with client.
+	 * @param <T> type to deserialize to
+	 * @return deserialized response
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> call(final HttpMethod method, final String url, final ResponseDeserializer<T> deserializer, 
+			InputStream content, Map<String, String> headers) throws IOException {
+		
+		validateArguments(method, url);		
+		
+		ExecutorService exec = executor;
+		if (exec != null)
+			return new FutureResponse<T>(exec, method, url, deserializer, content, headers);
+		
+		return exchange(method, url, deserializer, content, headers);
+	}
+	
+	/**
+	 * Execute a request asynchronously.  The request runs on the executor of the client, or on the default
+	 * executor if none has been set, regardless of whether the client is in asynchronous mode.
+	 * 
+	 * @param method HTTP method.  Cannot be null.
+	 * @param url url of server.  Cannot be null.
+	 * @param deserializer class to deserialize the response body.  If null then response is deserialized to a String.
+	 * @param content Optional content to pass to server, can be null.
+	 * @param headers HTTP headers that should be appended to the call.
+	 * @param <T> type to deserialize to
+	 * @return response providing a CompletionStage of the deserialized content
+	 */
+	public <T> AsyncResponse<T> callAsync(HttpMethod method, String url, ResponseDeserializer<T> deserializer, 
+			InputStream content, Map<String, String> headers) {
+		validateArguments(method, url);
+		
+		ExecutorService exec = executor;
+		if (exec == null)
+			exec = getDefaultExecutor();
+		
+		return new FutureResponse<T>(exec, method, url, deserializer, content, headers);
+	}
+	
+	/**
+	 * Execute GET method asynchronously.
+	 * 
+	 * @param url of server.  If not String, toString() will be called.
+	 * @param deserializer class that can deserialize content into desired type.
+	 * @param <T> type to deserialize to
+	 * @return response providing a CompletionStage of the deserialized content
+	 */
+	public <T> AsyncResponse<T> callGetAsync(Object url, ResponseDeserializer<T> deserializer) {
+		return callAsync(HttpMethod.GET, url.toString(), deserializer, null, null);
+	}
+	
+	/**
+	 * Execute a batch of requests with up to DEFAULT_BATCH_PARALLELISM requests in flight.  This is
+	 * the number of idle connections HttpURLConnection keeps alive per host by default (http.maxConnections),
+	 * so each worker can reuse a connection to the same host.
+	 * 
+	 * @param requests requests to execute
+	 * @param <T> type to deserialize to
+	 * @return responses of the batch
+	 */
+	public <T> Batch<T> batch(List<? extends BatchRequest<T>> requests) {
+		return batch(requests, DEFAULT_BATCH_PARALLELISM);
+	}
+	
+	/**
+	 * Execute a batch of requests with bounded parallelism.  Each of up to parallelism workers runs one request
+	 * after another and reads the response completely before starting the next, which returns the connection
+	 * to the keep-alive cache so requests to the same host reuse connections rather than opening new ones.  
+	 * With HttpClientConnectionProvider concurrent requests are multiplexed over a single HTTP/2 connection.
+	 * 
+	 * Workers run on the executor of the client, or on the default executor if none has been set.  Deserializers
+	 * should consume the response body; a stream returned by INPUTSTREAM_DESERIALIZER holds its connection
+	 * until it is closed.
+	 * 
+	 * @param requests requests to execute
+	 * @param parallelism maximum number of requests in flight
+	 * @param <T> type to deserialize to
+	 * @return responses of the batch
+	 */
+	public <T> Batch<T> batch(List<? extends BatchRequest<T>> requests, int parallelism) {
+		validateArguments(requests);
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive.");
+		
+		ExecutorService exec = executor;
+		if (exec == null)
+			exec = getDefaultExecutor();
+		
+		return new Batch<T>(exec, requests, parallelism);
+	}
+	
+	/**
+	 * Create and initialize the connection for a request.  GETs are served from the cache when a fresh entry
+	 * exists.  If the entry is stale and a cache policy is set, the request is made conditional and a 
+	 * 304 (Not Modified) response refreshes the entry without transferring the body again.
+	 * 
+	 * @param method HTTP method
+	 * @param url url as passed by the caller, used as cache key
+	 * @param httpUrl url with scheme
+	 * @param headers additional headers or null
+	 * @param policy cache policy of the request or null
+	 * @param debugBuffer debug buffer or null
+	 * @param event event of request or null
+	 * @return initialized connection
+	 * @throws IOException on I/O error
+	 */
+	private HttpURLConnection openConnection(HttpMethod method, String url, String httpUrl, Map<String, String> headers, 
+			HttpCachePolicy policy, StringBuilder debugBuffer, RequestEvent event) throws IOException {
+		HttpGETCache cache = contentCache;
+		HttpGETCacheEntry cacheEntry = null;
+		
+		if (event != null && method == HttpMethod.GET && cache != null)
+			event.cacheStatus = CacheStatus.MISS;
+		
+		if (method == HttpMethod.GET && cache != null && (cacheEntry = cache.get(url)) != null) {
+			if (policy == null || policy.isFresh(cacheEntry)) {
+				if (debugBuffer != null)
+					debugMid(debugBuffer, "[CACHE HIT]");
+				if (event != null)
+					event.cacheStatus = CacheStatus.HIT;
+			
+				return initialize(new CachedConnectionProvider(cacheEntry), headers);
+			}
+			
+			if (policy.canServeStale(cacheEntry)) {
+				revalidateInBackground(url, httpUrl, headers, cacheEntry, policy);
+				
+				if (debugBuffer != null)
+					debugMid(debugBuffer, "[CACHE STALE, REVALIDATING]");
+				if (event != null)
+					event.cacheStatus = CacheStatus.STALE;
+				
+				return initialize(new CachedConnectionProvider(cacheEntry), headers);
+			}
+		}
+		
+		if (requestCoalescing && method == HttpMethod.GET && (headers == null || headers.isEmpty()))
+			return coalesce(url, httpUrl, cacheEntry, policy, debugBuffer, event);
+		
+		return connect(method, url, httpUrl, headers, cacheEntry, policy, debugBuffer, event);
+	}
+	
+	/**
+	 * Fetch a GET on the executor of the client, or the default executor, and replace the stale cache entry with
+	 * the response.  Nothing is done if a request for the url is already in flight.  If the request fails the 
+	 * stale entry is left in the cache.
+	 * 
+	 * @param url url as passed by the caller, used as cache key
+	 * @param httpUrl url with scheme
+	 * @param headers additional headers or null
+	 * @param cacheEntry stale cache entry
+	 * @param policy cache policy of the request
+	 */
+	private void revalidateInBackground(final String url, final String httpUrl, Map<String, String> headers, 
+			final HttpGETCacheEntry cacheEntry, final HttpCachePolicy policy) {
+		final CompletableFuture<HttpGETCacheEntry> flight = new CompletableFuture<HttpGETCacheEntry>();
+		if (inFlight.putIfAbsent(url, flight) != null)
+			return;
+		
+		final Map<String, String> requestHeaders = headers == null ? null : new HashMap<String, String>(headers);
+		ExecutorService exec = executor;
+		if (exec == null)
+			exec = getDefaultExecutor();
+		
+		try {
+			exec.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						flight.complete(snapshot(url, connect(HttpMethod.GET, url, httpUrl, requestHeaders, cacheEntry, policy, 
+								null, null), policy, null));
+					} catch (Throwable e) {
+						flight.completeExceptionally(e);
+					} finally {
+						inFlight.remove(url, flight);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(url, flight);
+			flight.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * Share the exchange of a GET with concurrent requests for the same url.  The first caller performs the
+	 * request and reads the complete response; callers arriving while it is in flight wait for and receive 
+	 * the same response.
+	 * 
+	 * @param url url as passed by the caller, used as key
+	 * @param httpUrl url with scheme
+	 * @param cacheEntry stale cache entry or null
+	 * @param policy cache policy of the request or null
+	 * @param debugBuffer debug buffer or null
+	 * @param event event of request or null
+	 * @return connection serving the shared response
+	 * @throws IOException on I/O error of the shared exchange
+	 */
+	private HttpURLConnection coalesce(String url, String httpUrl, HttpGETCacheEntry cacheEntry, HttpCachePolicy policy,
+			StringBuilder debugBuffer, RequestEvent event) throws IOException {
+		CompletableFuture<HttpGETCacheEntry> flight = new CompletableFuture<HttpGETCacheEntry>();
+		CompletableFuture<HttpGETCacheEntry> leader = inFlight.putIfAbsent(url, flight);
+		
+		if (leader != null) {
+			HttpGETCacheEntry entry;
+			try {
+				entry = leader.get();
+			} catch (ExecutionException e) {
+				throw toIOException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + url);
+			}
+			
+			if (debugBuffer != null)
+				debugMid(debugBuffer, "[COALESCED]");
+			
+			return initialize(new CachedConnectionProvider(entry), null);
+		}
+		
+		try {
+			HttpGETCacheEntry entry = snapshot(url, connect(HttpMethod.GET, url, httpUrl, null, cacheEntry, policy, 
+					debugBuffer, event), policy, debugBuffer);
+			flight.complete(entry);
+			
+			return initialize(new CachedConnectionProvider(entry), null);
+		} catch (IOException e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(url, flight);
+		}
+	}
+	
+	/**
+	 * Read the complete response of a GET so that it can be shared, storing it in the cache if possible.
+	 * 
+	 * @param url url as passed by the caller, used as cache key
+	 * @param connection connection of request
+	 * @param policy cache policy of the request or null
+	 * @param debugBuffer debug buffer or null
+	 * @return response as a cache entry
+	 * @throws IOException on I/O error
+	 */
+	private HttpGETCacheEntry snapshot(String url, HttpURLConnection connection, HttpCachePolicy policy, 
+			StringBuilder debugBuffer) throws IOException {
+		if (connection instanceof CachedConnectionProvider)
+			return ((CachedConnectionProvider) connection).entry;
+		
+		int responseCode = connection.getResponseCode();
+		Map<String, List<String>> headerFields = connection.getHeaderFields();
+		boolean error = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST;
+		InputStream in = error ? connection.getErrorStream() : connection.getInputStream();
+		String encoding = getDecodedEncoding(connection);
+		if (encoding != null && !cacheCompressed) {
+			in = decode(in, encoding);
+			headerFields = getDecodedHeaders(headerFields);
+		}
+		
+		byte[] content = readStream(in, getContentLength(headerFields));
+		if (content == null)
+			content = new byte[0];
+		
+		HttpGETCache cache = contentCache;
+		if (cache != null && (policy == null ? !error : policy.isStorable(responseCode, headerFields))) {
+			HttpGETCacheEntry entry = policy == null ? new BasicCacheEntry(content, headerFields, responseCode)
+					: policy.createEntry(content, headerFields, responseCode);
+			cache.put(url, entry);
+			
+			if (debugBuffer != null)
+				debugMid(debugBuffer, "[CACHED RESPONSE]");
+			
+			return entry;
+		}
+		
+		return new BasicCacheEntry(content, headerFields, responseCode);
+	}
+	
+	/**
+	 * @param connection connection returned by the connection provider
+	 * @return time taken by a ResolvingConnectionProvider to resolve the host of the connection, or -1 if the 
+	 * host was not resolved by one
+	 */
+	private static long getResolveNanos(HttpURLConnection connection) {
+		while (connection instanceof DelegatingConnection) {
+			if (connection instanceof ResolvingConnectionProvider.ResolvingConnection)
+				return ((ResolvingConnectionProvider.ResolvingConnection) connection).resolveNanos;
+			
+			connection = ((DelegatingConnection) connection).getDelegate();
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Open a connection to the server, revalidating a stale cache entry if a cache policy is set.
+	 * 
+	 * @param method HTTP method
+	 * @param url url as passed by the caller, used as cache key
+	 * @param httpUrl url with scheme
+	 * @param headers additional headers or null
+	 * @param cacheEntry stale cache entry or null
+	 * @param policy cache policy of the request, not null if cacheEntry is set
+	 * @param debugBuffer debug buffer or null
+	 * @param event event of request or null
+	 * @return initialized connection
+	 * @throws IOException on I/O error
+	 */
+	private HttpURLConnection connect(HttpMethod method, String url, String httpUrl, Map<String, String> headers, 
+			HttpGETCacheEntry cacheEntry, HttpCachePolicy policy, StringBuilder debugBuffer, RequestEvent event) 
+			throws IOException {
+		HttpGETCache cache = contentCache;
+		ConnectionProvider provider = connectionProvider;
+		
+		HttpURLConnection connection = provider.getConnection(httpUrl);
+		if (event != null)
+			event.dnsNanos = getResolveNanos(connection);
+		connection.setRequestMethod(method.toString());
+		initialize(connection, headers);
+		
+		if (responseCompression && connection.getRequestProperty(HEADER_ACCEPT_ENCODING) == null)
+			connection.setRequestProperty(HEADER_ACCEPT_ENCODING, ACCEPT_ENCODING);
+		
+		if (method == HttpMethod.GET) {
+			connection.setDoInput(true);
+			connection.setDoOutput(false);
+		}
+		
+		if (cacheEntry != null && policy.addValidators(connection, cacheEntry)) {
+			connect(connection, event);
+			
+			if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				HttpGETCacheEntry refreshed = policy.refresh(cacheEntry, connection.getHeaderFields());
+				cache.put(url, refreshed);
+				
+				// A 304 has no body, closing the stream lets the connection be reused.
+				InputStream in = connection.getInputStream();
+				if (in != null)
+					in.close();
+				
+				if (debugBuffer != null)
+					debugMid(debugBuffer, "[CACHE REVALIDATED]");
+				if (event != null)
+					event.cacheStatus = CacheStatus.REVALIDATED;
+				
+				return initialize(new CachedConnectionProvider(refreshed), headers);
+			}
+		}
+		
+		return connection;
+	}
+	
+	/**
+	 * Connect, recording the time taken if the request has an event.  Requests without an event are connected
+	 * implicitly by HttpURLConnection.
+	 * 
+	 * @param connection connection of request
+	 * @param event event of request or null
+	 * @throws IOException on I/O error
+	 */
+	private static void connect(HttpURLConnection connection, RequestEvent event) throws IOException {
+		if (event == null || event.connectNanos > -1 || connection instanceof CachedConnectionProvider)
+			return;
+		
+		long start = System.nanoTime();
+		connection.connect();
+		event.connectNanos = System.nanoTime() - start;
+	}
+	
+	/**
+	 * Apply the connection initializers of the client and the headers of the request to a connection.
+	 * 
+	 * @param connection connection of request
+	 * @param headers additional headers or null
+	 * @return connection
+	 */
+	private HttpURLConnection initialize(HttpURLConnection connection, Map<String, String> headers) {
+		for (ConnectionInitializer initializer : connectionInitializers)
+			initializer.initialize(connection);
+		
+		if (headers != null && headers.size() > 0)
+			for (Map.Entry<String, String> entry : headers.entrySet())
+				connection.addRequestProperty(entry.getKey(), entry.getValue());
+		
+		return connection;
+	}
+	
+	/**
+	 * Execute a request on the calling thread.
+	 * 
+	 * @param method HTTP method
+	 * @param url url of server
+	 * @param deserializer deserializer or null
+	 * @param content request body or null
+	 * @param headers additional headers or null
+	 * @param <T> type to deserialize to
+	 * @return response
+	 * @throws IOException on I/O error
+	 */
+	private <T> Response<T> exchange(HttpMethod method, String url, ResponseDeserializer<T> deserializer,
+			InputStream content, Map<String, String> headers) throws IOException {
+		HedgingPolicy hedging = hedgingPolicy;
+		if (hedging != null && method == HttpMethod.GET && content == null)
+			return hedge(hedging, method, url, deserializer, headers);
+		
+		return send(method, url, deserializer, content, headers);
+	}
+	
+	/**
+	 * Execute a request, with retries if a retry policy is set.
+	 * 
+	 * @param method HTTP method
+	 * @param url url of server
+	 * @param deserializer deserializer or null
+	 * @param content request body or null
+	 * @param headers additional headers or null
+	 * @param <T> type to deserialize to
+	 * @return response
+	 * @throws IOException on I/O error
+	 */
+	private <T> Response<T> send(HttpMethod method, String url, ResponseDeserializer<T> deserializer,
+			InputStream content, Map<String, String> headers) throws IOException {
+		RetryPolicy policy = retryPolicy;
+		if (policy != null)
+			return retry(policy, method, url, deserializer, content, headers);
+		
+		return attempt(method, url, deserializer, content, headers, createEvent(method, url));
+	}
+	
+	/**
+	 * Execute a request, hedging it as allowed by the hedging policy.
+	 * 
+	 * @param policy hedging policy
+	 * @param method HTTP method
+	 * @param url url of server
+	 * @param deserializer deserializer or null
+	 * @param headers additional headers or null
+	 * @param <T> type to deserialize to
+	 * @return response of the first request to be answered
+	 * @throws IOException on I/O error of the first request, if the hedged request failed too or was not sent
+	 */
+	private <T> Response<T> hedge(HedgingPolicy policy, HttpMethod method, String url, ResponseDeserializer<T> deserializer,
+			Map<String, String> headers) throws IOException {
+		ExecutorCompletionService<Response<T>> completion = new ExecutorCompletionService<Response<T>>(getDefaultExecutor());
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getTimeout());
+		HedgedRequest<T> primary = new HedgedRequest<T>(policy, method, url, deserializer, headers, true);
+		HedgedRequest<T> hedge = null;
+		primary.future = completion.submit(primary);
+		
+		try {
+			Future<Response<T>> first = completion.poll(policy.getDelay(), TimeUnit.MILLISECONDS);
+			if (first == null) {
+				hedge = new HedgedRequest<T>(policy, method, policy.getHedgeUrl(url), deserializer, headers, false);
+				hedge.future = completion.submit(hedge);
+				policy.hedged.incrementAndGet();
+				first = await(completion, deadline, url);
+			}
+			
+			ExecutionException failure = null;
+			for (int remaining = hedge == null ? 1 : 2; remaining > 0; --remaining) {
+				try {
+					Response<T> response = first.get();
+					if (hedge != null) {
+						if (first == hedge.future) {
+							primary.cancel();
+							policy.won.incrementAndGet();
+						} else {
+							hedge.cancel();
+						}
+					}
+					
+					return response;
+				} catch (ExecutionException e) {
+					if (failure == null || first == primary.future)
+						failure = e;
+					if (remaining > 1)
+						first = await(completion, deadline, url);
+				}
+			}
+			
+			throw toIOException(failure.getCause());
+		} catch (SocketTimeoutException e) {
+			primary.cancel();
+			if (hedge != null)
+				hedge.cancel();
+			
+			throw e;
+		} catch (InterruptedException e) {
+			primary.cancel();
+			if (hedge != null)
+				hedge.cancel();
+			
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + url);
+		}
+	}
+	
+	/**
+	 * @param completion completion service of the requests of a hedged call
+	 * @param deadline value of System.nanoTime() after which the call times out
+	 * @param url url of server
+	 * @param <T> type to deserialize to
+	 * @return future of the next request to complete
+	 * @throws SocketTimeoutException if no request completes before the deadline
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static <T> Future<Response<T>> await(ExecutorCompletionService<Response<T>> completion, long deadline, 
+			String url) throws SocketTimeoutException, InterruptedException {
+		Future<Response<T>> next = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		if (next == null)
+			throw new SocketTimeoutException("Timed out waiting for a response to " + url);
+		
+		return next;
+	}
+	
+	/**
+	 * One of the requests of a hedged call.  A request cancelled before it is answered cancels its response
+	 * as soon as it arrives, as HttpURLConnection cannot be interrupted while connecting or waiting.
+	 * 
+	 * @param <T> type to deserialize to
+	 */
+	private final class HedgedRequest<T> implements Callable<Response<T>> {
+		private final HedgingPolicy policy;
+		private final HttpMethod method;
+		private final String url;
+		private final ResponseDeserializer<T> deserializer;
+		private final Map<String, String> headers;
+		private final boolean primary;
+		private volatile Future<Response<T>> future;
+		private Response<T> response;
+		private boolean cancelled;
+		
+		/**
+		 * @param policy hedging policy
+		 * @param method HTTP method
+		 * @param url url of server
+		 * @param deserializer deserializer or null
+		 * @param headers additional headers or null
+		 * @param primary true if this is the first request, whose latency is recorded
+		 */
+		public HedgedRequest(HedgingPolicy policy, HttpMethod method, String url, ResponseDeserializer<T> deserializer, 
+				Map<String, String> headers, boolean primary) {
+			this.policy = policy;
+			this.method = method;
+			this.url = url;
+			this.deserializer = deserializer;
+			this.headers = headers;
+			this.primary = primary;
+		}
+		
+		@Override
+		public Response<T> call() throws IOException {
+			long start = System.nanoTime();
+			Response<T> r = send(method, url, deserializer, null, headers);
+			try {
+				r.getCode();
+			} catch (IOException e) {
+				r.cancel(true);
+				throw e;
+			}
+			
+			if (primary)
+				policy.latency.record(System.nanoTime() - start);
+			
+			synchronized (this) {
+				if (cancelled) {
+					r.cancel(true);
+					throw new CancellationException("Request to " + url + " was cancelled.");
+				}
+				
+				response = r;
+			}
+			
+			return r;
+		}
+		
+		/**
+		 * Cancel the request, or its response if it has already been answered.
+		 */
+		public void cancel() {
+			synchronized (this) {
+				cancelled = true;
+				if (response != null)
+					response.cancel(true);
+			}
+			
+			Future<Response<T>> f = future;
+			if (f != null)
+				f.cancel(true);
+		}
+	}
+	
+	/**
+	 * Execute a request, retrying it as allowed by the retry policy.
+	 * 
+	 * @param policy retry policy
+	 * @param method HTTP method
+	 * @param url url of server
+	 * @param deserializer deserializer or null
+	 * @param content request body or null
+	 * @param headers additional headers or null
+	 * @param <T> type to deserialize to
+	 * @return response of the last attempt
+	 * @throws IOException on I/O error of the last attempt
+	 */
+	private <T> Response<T> retry(RetryPolicy policy, HttpMethod method, String url, ResponseDeserializer<T> deserializer,
+			InputStream content, Map<String, String> headers) throws IOException {
+		String host = RequestEvent.getHost(url);
+		boolean replayable = true;
+		byte[] body = null;
+		
+		if (content instanceof ByteArrayInputStream) {
+			content.mark(0);
+		} else if (content instanceof MultipartInputStream) {
+			// Rebuilt for each attempt if all of its parts can be read again.
+			replayable = ((MultipartInputStream) content).getContentLength() > -1;
+		} else if (content != null && !(content instanceof FileContent)) {
+			if (streamingMode || getContentLength(content) > MAX_REPLAY_BUFFER_LENGTH)
+				replayable = false;
+			else
+				body = readStream(content);
+		}
+		
+		for (int attempt = 1; ; ++attempt) {
+			InputStream requestBody = content;
+			if (body != null)
+				requestBody = new ByteArrayInputStream(body);
+			else if (attempt > 1 && content instanceof ByteArrayInputStream)
+				content.reset();
+			else if (attempt > 1 && content instanceof FileContent)
+				requestBody = new FileContent(((FileContent) content).file);
+			else if (attempt > 1 && content instanceof MultipartInputStream)
+				requestBody = new MultipartInputStream(((MultipartInputStream) content).parts);
+			
+			RequestEvent event = createEvent(method, url);
+			long delay;
+			try {
+				Response<T> response = attempt(method, url, deserializer, requestBody, headers, event);
+				int code = response.getCode();
+				
+				if (!replayable || !policy.isRetryable(method, code)) {
+					policy.completed(host, attempt, true);
+					return response;
+				}
+				
+				delay = policy.retry(host, attempt, RetryPolicy.parseRetryAfter(
+						response.getConnection().getHeaderField("Retry-After"), System.currentTimeMillis()));
+				if (delay < 0) {
+					policy.completed(host, attempt, false);
+					return response;
+				}
+				
+				discard(response, event);
+			} catch (IOException e) {
+				if (event != null)
+					event.complete(e);
+				
+				if (!replayable || !policy.isRetryable(method, e) || (delay = policy.retry(host, attempt, -1)) < 0) {
+					policy.completed(host, attempt, false);
+					throw e;
+				}
+			}
+			
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to retry " + url);
+			}
+		}
+	}
+	
+	/**
+	 * Read and close the body of a response that is not passed to the caller, so that the connection can be reused.
+	 * 
+	 * @param response response to discard
+	 * @param event event of request or null
+	 */
+	private static void discard(Response<?> response, RequestEvent event) {
+		HttpURLConnection connection = response.getConnection();
+		// The body of a response whose content is its response code has already been read.
+		if (!response.isDone()) {
+			try {
+				InputStream in = connection.getErrorStream();
+				if (in != null) {
+					readStream(in);
+					in.close();
+				}
+			} catch (IOException e) {
+				connection.disconnect();
+			}
+		}
+		
+		if (event != null)
+			event.complete(null);
+	}
+	
+	/**
+	 * @param method HTTP method
+	 * @param url url of server
+	 * @return event recording the request, or null if no listener is set
+	 */
+	private RequestEvent createEvent(HttpMethod method, String url) {
+		RequestListener listener = requestListener;
+		
+		return listener == null ? null : new RequestEvent(listener, method, url);
+	}
+	
+	/**
+	 * Execute a single attempt of a request, completing the event if it fails.
+	 * 
+	 * @param method HTTP method
+	 * @param url url of server
+	 * @param deserializer deserializer or null
+	 * @param content request body or null
+	 * @param headers additional headers or null
+	 * @param event event recording the request, or null if no listener is set
+	 * @param <T> type to deserialize to
+	 * @return response
+	 * @throws IOException on I/O error
+	 */
+	private <T> Response<T> attempt(HttpMethod method, String url, ResponseDeserializer<T> deserializer,
+			InputStream content, Map<String, String> headers, RequestEvent event) throws IOException {
+		if (event == null)
+			return exchange(method, url, deserializer, content, headers, null);
+		
+		try {
+			return exchange(method, url, deserializer, content, headers, event);
+		} catch (IOException e) {
+			event.complete(e);
+			throw e;
+		} catch (RuntimeException e) {
+			event.complete(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * @param method HTTP method
+	 * @param url url of server
+	 * @param deserializer deserializer or null
+	 * @param content request body or null
+	 * @param headers additional headers or null
+	 * @param event event recording the request, or null if no listener is set
+	 * @param <T> type to deserialize to
+	 * @return response
+	 * @throws IOException on I/O error
+	 */
+	private <T> Response<T> exchange(final HttpMethod method, final String url, final ResponseDeserializer<T> deserializer,
+			InputStream content, Map<String, String> headers, final RequestEvent event) throws IOException {
+		
+		String httpUrl = url;
+		if (!httpUrl.startsWith("http://") && !httpUrl.startsWith("https://"))
+			httpUrl = "http://" + url;
+		
+		StringBuilder debugBuffer = null;
+		if (debugStream != null)
+			debugBuffer = debugStart(httpUrl, method.toString());
+				
+		// Read once so that the whole request, including background revalidation, uses the same policy.
+		final HttpCachePolicy policy = cachePolicy;
+		final HttpURLConnection connection = openConnection(method, url, httpUrl, headers, policy, debugBuffer, event);
+
+		switch(method) {
+		case GET:			
+			// Configured by openConnection(), the request may already have been sent to revalidate a cache entry.
+			break;
+		case POST:
+		case PUT:
+			if (content != null) {
+				connection.setDoOutput(true);
+				
+				if (requestCompression && isCompressible(connection, content)) {
+					long size = compressRequestBody(connection, content, event);
+					
+					if (debugStream != null)
+						debugMid(debugBuffer, "[GZIP STREAMED " + size + " BYTES]");
+					break;
+				}
+				
+				// File and multipart bodies may be larger than the heap, so they are always streamed.
+				if (streamingMode || content instanceof FileContent || content instanceof MultipartInputStream) {
+					long size = streamRequestBody(connection, content, event);
+					
+					if (debugStream != null)
+						debugMid(debugBuffer, "[STREAMED " + size + " BYTES]");
+					break;
+				}
+				
+				byte[] body = readStream(content);
+				writeRequestBody(connection, body, event);
+						
+				if (debugStream != null)
+					debugMid(debugBuffer, new String(body));
+			}
+			break;
+		case DELETE:
+			connection.setDoInput(true);			
+			break;
+		case HEAD:
+			connection.setDoInput(true);
+			connection.setDoOutput(false);
+			break;
+		default:
+			throw new RuntimeException("Unhandled HTTP method.");
+		}	
+		
+		connect(connection, event);
+		
+		if (debugStream != null) 
+			debugEnd(debugBuffer);
+		
+		return new Response<T>() {
+
+			private boolean done;
+			private boolean cancelled;
+			private boolean drained;
+			private byte[] errorBody;
+			private StringBuilder responseBuffer;
+
+			@Override
+			public int getCode() throws IOException {	
+				int code = connection.getResponseCode();
+				
+				if (event != null && event.firstByteNanos < 0) {
+					event.firstByteNanos = System.nanoTime() - event.startNanos;
+					event.responseCode = code;
+				}
+				
+				if (debugStream != null) {					
+					responseBuffer = debugStart(code, connection.getResponseMessage());
+				}
+				
+				// The content of the short-form calls is the response code, so the exchange is complete.
+				if (deserializer == HTTP_CODE_DESERIALIZER)
+					drain(code);
+					
+				return code;
+			}
+			
+			/**
+			 * Read and close the body of the response once, so that the connection is released and can be kept 
+			 * alive.  The body of an error response is kept for getErrorMessage().
+			 * 
+			 * @param code response code
+			 */
+			private void drain(int code) {
+				if (drained || connection instanceof CachedConnectionProvider)
+					return;
+				
+				drained = true;
+				done = true;
+				try {
+					if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+						InputStream in = count(connection.getErrorStream());
+						if (in != null) {
+							errorBody = readStream(in);
+							in.close();
+						}
+					} else {
+						InputStream in = count(connection.getInputStream());
+						skipStream(in);
+						in.close();
+					}
+				} catch (IOException e) {
+					connection.disconnect();
+				}
+			}
+			
+			@Override
+			public String getRequestUrl() {
+				return url;
+			}
+			
+			@Override
+			public HttpMethod getRequestMethod() {
+				return method;			
+			}
+			
+			@Override
+			public HttpURLConnection getConnection() {
+				return connection;			
+			}
+
+			@Override
+			public boolean isError() {
+				try {
+					int code = getCode();
+					return code >= HttpURLConnection.HTTP_BAD_REQUEST && code < HttpURLConnection.HTTP_VERSION;
+				} catch (IOException e) {
+					e.printStackTrace();
+					return true;
+				}		
+			}
+
+			@Override
+			public boolean cancel(boolean flag) {
+				connection.disconnect();
+				cancelled = true;
+				
+				if (event != null)
+					event.complete(new CancellationException("Request to " + url + " was cancelled."));
+				
+				if (responseBuffer != null) {
+					debugMid(responseBuffer, "[CANCELLED]");
+					debugEnd(responseBuffer);
+				}
+				
+				return cancelled;
+			}
+
+			@Override
+			public boolean isCancelled() {			
+				return cancelled;				
+			}
+
+			@Override
+			public boolean isDone() {
+				return done;				
+			}
+
+			@Override
+			public T getContent() throws IOException {									
+				if (event == null)
+					return readContent();
+				
+				try {
+					T response = readContent();
+					event.complete(null);
+					
+					return response;
+				} catch (IOException e) {
+					event.complete(e);
+					throw e;
+				} catch (RuntimeException e) {
+					event.complete(e);
+					throw e;
+				}
+			}
+			
+			/**
+			 * @return deserialized content
+			 * @throws IOException on I/O error
+			 */
+			private T readContent() throws IOException {
+				if (isError()) {
+					String serverMessage = getErrorMessage();
+					
+					if (responseBuffer != null) {
+						debugMid(responseBuffer, serverMessage);						
+						debugEnd(responseBuffer);
+					}
+					
+					if (errorHandler != null) 
+						errorHandler.handleError(getCode(), serverMessage);
+						
+					if (deserializer != null) {
+						InputStream errorStream = drained ? null : count(connection.getErrorStream());
+						Map<String, List<String>> headerFields = connection.getHeaderFields();
+						String encoding = getDecodedEncoding(connection);
+						if (encoding != null) {
+							errorStream = decode(errorStream, encoding);
+							headerFields = getDecodedHeaders(headerFields);
+						}
+						
+						T response = deserializer.deserialize(errorStream, connection.getResponseCode(), headerFields);
+						closeAfter(errorStream, response);
+						
+						return response;
+					}
+					
+					return null;
+				}
+				
+				if (drained) {
+					done = true;
+					
+					if (responseBuffer != null)
+						debugEnd(responseBuffer);
+					
+					return deserializer.deserialize(null, connection.getResponseCode(), connection.getHeaderFields());
+				}
+				
+				InputStream inputStream = count(connection.getInputStream());
+				final int responseCode = connection.getResponseCode();
+				Map<String, List<String>> headerFields = connection.getHeaderFields();
+				String encoding = getDecodedEncoding(connection);
+				HttpGETCache cache = contentCache;
+				if (cache != null && method == HttpMethod.GET && !(connection instanceof CachedConnectionProvider)
+						&& (policy == null || policy.isStorable(responseCode, headerFields))) {
+					Map<String, List<String>> entryHeaders = headerFields;
+					if (encoding != null && !cacheCompressed) {
+						inputStream = decode(inputStream, encoding);
+						entryHeaders = getDecodedHeaders(headerFields);
+						encoding = null;
+					}
+					
+					byte[] buf = readStream(inputStream, getContentLength(entryHeaders));
+					cache.put(url, policy == null ? new BasicCacheEntry(buf, entryHeaders, responseCode) 
+							: policy.createEntry(buf, entryHeaders, responseCode));
+					
+					inputStream = new ByteArrayInputStream(buf);
+					
+					if (responseBuffer != null) 
+						debugMid(responseBuffer, "[CACHED RESPONSE]");
+				} else if (responseBuffer != null) {
+					debugMid(responseBuffer, "[NOT CACHING, INVALID RESPONSE]");					
+				}
+				
+				if (encoding != null)
+					inputStream = decode(inputStream, encoding);
+				if (getDecodedEncoding(connection) != null)
+					headerFields = getDecodedHeaders(headerFields);
+				
+				if (deserializer == null) {
+					// If no deserializer is specified, use String.
+					T response = (T) RestClient.STRING_DESERIALIZER.deserialize(inputStream, responseCode, headerFields);
+					closeAfter(inputStream, response);
+					done = true;
+					
+					if (responseBuffer != null) {
+						debugMid(responseBuffer, response.toString());
+						debugEnd(responseBuffer);
+					}
+					
+					return response;
+				}
+				
+				T response = deserializer.deserialize(inputStream, responseCode, headerFields);
+				closeAfter(inputStream, response);
+				
+				done = true;
+				
+				if (responseBuffer != null) {				
+					debugEnd(responseBuffer);
+				}
+				
+				return response;				
+			}
+			
+			/**
+			 * Close the response stream once the content has been deserialized, so that the connection can be 
+			 * reused.  Content that is itself a stream or reader may be backed by the response stream and is left 
+			 * for the caller to close.
+			 * 
+			 * @param in response stream
+			 * @param content deserialized content
+			 */
+			private void closeAfter(InputStream in, Object content) {
+				if (in == null || content instanceof Closeable)
+					return;
+				
+				try {
+					in.close();
+				} catch (IOException e) {
+					// The content has already been read.
+				}
+			}
+			
+			/**
+			 * @param in response stream
+			 * @return stream that counts the bytes read from the server, or in if the request has no event
+			 */
+			private InputStream count(InputStream in) {
+				if (event == null || in == null || connection instanceof CachedConnectionProvider)
+					return in;
+				
+				CountingInputStream counter = new CountingInputStream(in);
+				event.received = counter;
+				
+				return counter;
+			}
+
+			@Override
+			public String getErrorMessage() {
+				try {
+					String errorMessage = connection.getResponseMessage();
+					String encoding = getDecodedEncoding(connection);
+					InputStream errorStream = drained ? (errorBody == null ? null : new ByteArrayInputStream(errorBody)) 
+							: connection.getErrorStream();
+					byte[] serverMessage = readStream(decode(errorStream, encoding));
+					if (serverMessage != null && serverMessage.length > 0) {
+						if (encoding == null && connection.getContentEncoding() != null)
+							errorMessage = new String(serverMessage, connection.getContentEncoding());
+						else 
+							errorMessage = new String(serverMessage, "UTF-8");
+					}
+					
+					return errorMessage;
+				} catch (IOException e) {
+					return null;
+				}
+			}
+			
+		};				
+	}
+	
+	private StringBuilder debugStart(String httpUrl, String httpMethod) {
+		StringBuilder debugBuffer = new StringBuilder();
+		debugBuffer.append(debugTimestamp());
+		debugBuffer.append(' ');
+		debugBuffer.append(httpMethod.subSequence(0, 3));
+		debugBuffer.append(' ');
+		debugBuffer.append(httpUrl);
+		debugBuffer.append(' ');
+		
+		return debugBuffer;
+	}
+	
+	private StringBuilder debugStart(int responseCode, String responseMessage) {
+		StringBuilder debugBuffer = new StringBuilder();
+		debugBuffer.append(debugTimestamp());
+		debugBuffer.append(' ');
+		debugBuffer.append("<-- ");
+		debugBuffer.append(responseCode);
+		debugBuffer.append(" ");
+		debugBuffer.append(responseMessage);
+		
+		debugBuffer.append(' ');
+		
+		return debugBuffer;
+	}
+	
+	/**
+	 * @return current time formatted for debug output.
+	 */
+	private String debugTimestamp() {
+		return DEBUG_TIME_FORMAT.format(LocalTime.now());
+	}
+	
+	private void debugMid(StringBuilder debugBuffer, String element) {		
+		debugBuffer.append(element);
+		debugBuffer.append(' ');
+	}
+	
 	private void debugEnd(StringBuilder debugBuffer) {		
 		debugStream.println(debugBuffer.toString());	
 		debugStream.flush();
 	}
-
+
+	/**
+	 * Execute GET method and return body as a string.  This call blocks
+	 * until the response content is deserialized into a String.
+	 * 
+	 * @param url of server.  If not String, toString() will be called.
+	 * @return body as a String
+	 * @throws IOException on I/O error
+	 */
+	public String callGet(Object url) throws IOException {		
+		return callGetContent(url.toString(), STRING_DESERIALIZER);
+	}
+	
+	
+	/**
+	 * Execute GET method and return body deserizalized.  This call
+	 * blocks until the response body content is deserialized.
+	 * 
+	 * @param url of server.  If not String, toString() will be called.
+	 * @param deserializer ResponseDeserializer
+	 * @return T deserialized object
+	 * @throws IOException on I/O error
+	 */
+	public <T> T callGetContent(Object url, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.GET, url.toString(), deserializer, null, null).getContent();
+	}
+	
+	/**
+	 * Execute GET method and deserialize response.
+	 * 
+	 * @param url of server  If not String, toString() will be called.
+	 * @param deserializer class that can deserialize content into desired type.
+	 * @return type specified by deserializer
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callGet(Object url, Map<String, String> headers, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.GET, url.toString(), deserializer, null, headers);
+	}
+	
+	/**
+	 * Execute GET method and deserialize response.
+	 * 
+	 * @param url of server.  If not String, toString() will be called.
+	 * @param deserializer class that can deserialize content into desired type.
+	 * @return type specified by deserializer
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callGet(Object url, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.GET, url.toString(), deserializer, null, null);
+	}
+	
+	/**
+	 * Send a POST to the server.
+	 * 
+	 * @param url url of server.  If not String, toString() will be called.
+	 * @param body body of post as an input stream
+	 * @return a response to the request
+	 * @throws IOException on I/O error
+	 */
+	public Response<Integer> callPost(Object url, InputStream body) throws IOException {
+		return call(HttpMethod.POST, url.toString(), HTTP_CODE_DESERIALIZER, body, null);
+	}
+	
+	/**
+	 * Send a POST to the server.
+	 * 
+	 * @param url url of server.  If not String, toString() will be called.
+	 * @param body body of post as a String
+	 * @return a response to the request
+	 * @throws IOException on I/O error
+	 */
+	public Response<Integer> callPost(Object url, String body) throws IOException {
+		return call(HttpMethod.POST, url.toString(), HTTP_CODE_DESERIALIZER, new ByteArrayInputStream(body.getBytes()), null);
+	}
+	
+	/**
+	 * Send a POST to the server.
+	 * 
+	 * @param url url of server
+	 * @param formData Form data as strings.  
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public Response<Integer> callPost(Object url, Map<String, String> formData) throws IOException {
+		return call(HttpMethod.POST, url.toString(), HTTP_CODE_DESERIALIZER, 
+				new ByteArrayInputStream(propertyString(formData).getBytes()), 
+				toMap(HEADER_CONTENT_TYPE, APPLICATION_X_WWW_FORM_URLENCODED));
+	}
+	
+	/**
+	 * Send a POST to the server.
+	 * 
+	 * @param url url of server
+	 * @param body body of post as an input stream
+	 * @return a response to the request
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callPost(Object url, InputStream body, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.POST, url.toString(), deserializer, body, null);
+	}
+	
+	/**
+	 * Send a POST to the server.
+	 * 
+	 * @param url url of server.   If not String, toString() will be called.
+	 * @param formData Form data as strings.  
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callPost(Object url, Map<String, String> formData, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.POST, url.toString(), deserializer, 
+				new ByteArrayInputStream(propertyString(formData).getBytes()), 
+				toMap(HEADER_CONTENT_TYPE, APPLICATION_X_WWW_FORM_URLENCODED));
+	}
+	
+	/**
+	 * Send a POST to the server.
+	 * 
+	 * @param <T> type to deserialize to
+	 * @param url of server
+	 * @param body of post
+	 * @param headers additional headers for request
+	 * @param deserializer deserializer
+	 * @return response
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callPost(URLBuilder url, InputStream body, Map<String, String> headers, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.POST, url.toString(), deserializer, body, headers);
+	}
+	
+	/**
+	 * Send a multipart POST to the server.  Convenience method for post(url, createMultipartPostBody(content)).
+	 * 
+	 * @param url url of server.  If not String, toString() will be called.
+	 * @param content See createMultipartPostBody() for details on this parameter.
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public Response<Integer> callPostMultipart(Object url, Map<String, Object> content) throws IOException {
+		String boundary = createMultipartBoundary();
+		String contentType = MULTIPART_FORM_DATA_CONTENT_TYPE + "; " + BOUNDARY + boundary;
+						
+		return call(HttpMethod.POST, url.toString(), HTTP_CODE_DESERIALIZER, 
+				createMultipartPostBody(boundary, content), toMap(HEADER_CONTENT_TYPE, contentType));
+	}
+	
+	/**
+	 * Send a multipart POST to the server.  Convenience method for post(url, createMultipartPostBody(content)).
+	 * 
+	 * @param url url of server.  If not String, toString() will be called.
+	 * @param content See createMultipartPostBody() for details on this parameter.
+	 * @param deserializer class that can deserialize content into desired type.
+	 * @param <T> Type to be deserialized to.
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callPostMultipart(Object url, Map<String, Object> content, 
+			ResponseDeserializer<T> deserializer) throws IOException {
+		
+		String boundary = createMultipartBoundary();
+		String contentType = MULTIPART_FORM_DATA_CONTENT_TYPE + "; " + BOUNDARY + boundary;
+					
+		return call(HttpMethod.POST, url.toString(), deserializer, 
+				createMultipartPostBody(boundary, content), toMap(HEADER_CONTENT_TYPE, contentType));
+	}
+	
+	/**
+	 * Call PUT method on a server.
+	 * 
+	 * @param url url of server
+	 * @param content See createMultipartPostBody() for details on this parameter.
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public Response<Integer> callPut(Object url, InputStream content) throws IOException {
+		return call(HttpMethod.PUT, url.toString(), HTTP_CODE_DESERIALIZER, content, null);
+	}
+	
+	/**
+	 * Call PUT method on a server with the contents of a file as the body.  The file is sent with a fixed 
+	 * Content-Length and streamed to the connection through a pooled buffer, without being read into memory.
+	 * 
+	 * @param url url of server.  If not String, toString() will be called.
+	 * @param file file to send
+	 * @return a response from the PUT
+	 * @throws IOException on I/O error
+	 */
+	public Response<Integer> callPut(Object url, File file) throws IOException {
+		return call(HttpMethod.PUT, url.toString(), HTTP_CODE_DESERIALIZER, new FileContent(file), null);
+	}
+	
+	/**
+	 * Call PUT method on a server with the contents of a file as the body.
+	 * 
+	 * @param url url of server.  If not String, toString() will be called.
+	 * @param file file to send
+	 * @param deserializer class that can deserialize content into desired type.
+	 * @return a response from the PUT
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callPut(Object url, File file, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.PUT, url.toString(), deserializer, new FileContent(file), null);
+	}
+	
+	/**
+	 * Send a POST to the server with the contents of a file as the body.  The file is sent with a fixed 
+	 * Content-Length and streamed to the connection through a pooled buffer, without being read into memory.
+	 * 
+	 * @param url url of server.  If not String, toString() will be called.
+	 * @param file file to send
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public Response<Integer> callPost(Object url, File file) throws IOException {
+		return call(HttpMethod.POST, url.toString(), HTTP_CODE_DESERIALIZER, new FileContent(file), null);
+	}
+	
+	/**
+	 * Send a POST to the server with the contents of a file as the body.
+	 * 
+	 * @param url url of server.  If not String, toString() will be called.
+	 * @param file file to send
+	 * @param deserializer class that can deserialize content into desired type.
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callPost(Object url, File file, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.POST, url.toString(), deserializer, new FileContent(file), null);
+	}
+	
+	/**
+	 * Send a POST to the server.
+	 * 
+	 * @param url url of server
+	 * @param formData Form data as strings.  
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public Response<Integer> callPut(Object url, Map<String, String> formData) throws IOException {
+		return call(HttpMethod.PUT, url.toString(), HTTP_CODE_DESERIALIZER, 
+				new ByteArrayInputStream(propertyString(formData).getBytes()), 
+				toMap(HEADER_CONTENT_TYPE, APPLICATION_X_WWW_FORM_URLENCODED));
+	}
+	
+	/**
+	 * Call PUT method on a server.
+	 * 
+	 * @param url url of server
+	 * @param content See createMultipartPostBody() for details on this parameter.
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callPut(Object url, InputStream content, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.PUT, url.toString(), deserializer, content, null);
+	}
+	
+	/**
+	 * Send a POST to the server.
+	 * 
+	 * @param url url of server
+	 * @param formData Form data as strings.  
+	 * @return a response from the POST
+	 * @throws IOException on I/O error
+	 */
+	public <T> Response<T> callPut(Object url, Map<String, String> formData, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.PUT, url.toString(), deserializer, 
+				new ByteArrayInputStream(propertyString(formData).getBytes()), 
+				toMap(HEADER_CONTENT_TYPE, APPLICATION_X_WWW_FORM_URLENCODED));
+	}
+
+	
+	/**
+	 * Call DELETE method on a server.
+	 * 
+	 * @param url of server.  If not String, toString() will be called.
+	 * @return HTTP response from server
+	 * @throws IOException on I/O error
+	 */
+	public Response<Integer> callDelete(Object url) throws IOException {
+		return call(HttpMethod.DELETE, url.toString(), HTTP_CODE_DESERIALIZER, null, null);
+	}
+	
 	/**
-	 * Execute GET method and return body as a string.  This call blocks
-	 * until the response content is deserialized into a String.
+	 * Call DELETE method on a server.
 	 * 
 	 * @param url of server.  If not String, toString() will be called.
-	 * @return body as a String
+	 * @return HTTP response from server
 	 * @throws IOException on I/O error
 	 */
-	public String callGet(Object url) throws IOException {		
-		return callGetContent(url.toString(), STRING_DESERIALIZER);
+	public <T> Response<T> callDelete(Object url, ResponseDeserializer<T> deserializer) throws IOException {
+		return call(HttpMethod.DELETE, url.toString(), deserializer, null, null);
 	}
 	
-	
 	/**
-	 * Execute GET method and return body deserizalized.  This call
-	 * blocks until the response body content is deserialized.
+	 * Call HEAD method on a server.
 	 * 
 	 * @param url of server.  If not String, toString() will be called.
-	 * @param deserializer ResponseDeserializer
-	 * @return T deserialized object
+	 * @return HTTP Response from server
 	 * @throws IOException on I/O error
 	 */
-	public <T> T callGetContent(Object url, ResponseDeserializer<T> deserializer) throws IOException {
-		return call(HttpMethod.GET, url.toString(), deserializer, null, null).getContent();
+	public Response<Integer> callHead(Object url) throws IOException {
+		return call(HttpMethod.HEAD, url.toString(), HTTP_CODE_DESERIALIZER, null, null);
 	}
+
+	
+	// Public static methods
 	
 	/**
-	 * Execute GET method and deserialize response.
+	 * Create a multi-part POST body.  The body is encoded lazily as it is read: files are read from disk and 
+	 * streams are copied only when their part is reached, so the body is never held in memory.  If all values
+	 * are Strings or FormFiles the returned stream knows its length (see SizedContent), so that callPostMultipart() 
+	 * sends it with a fixed Content-Length; otherwise it is sent with chunked transfer encoding.
 	 * 
-	 * @param url of server  If not String, toString() will be called.
-	 * @param deserializer class that can deserialize content into desired type.
-	 * @return type specified by deserializer
-	 * @throws IOException on I/O error
+	 * @param content A map of <String, Object>  The values can either be of type String, RestClient.FormInputStream, or 
+	 * type RestClient.FormFile.  Other types will cause an IllegalArgumentException.
+	 * @return an input stream of the POST body.
+	 * @throws IOException on I/O error.
 	 */
-	public <T> Response<T> callGet(Object url, Map<String, String> headers, ResponseDeserializer<T> deserializer) throws IOException {
-		return call(HttpMethod.GET, url.toString(), deserializer, null, headers);
+	public static InputStream createMultipartPostBody(String boundary, Map<String, Object> content) throws IOException {		
+		List<Object> parts = new ArrayList<Object>();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();	
+		byte[] header = getPartHeader(boundary);
+		
+		for (Map.Entry<String, Object> entry : content.entrySet()) {
+			baos.write(header);
+			baos.write(entry.getKey().getBytes());
+			baos.write('"');
+			
+			if (entry.getValue() instanceof String) {
+				baos.write(LINE_ENDING.getBytes());
+				baos.write(LINE_ENDING.getBytes());
+				baos.write(((String) entry.getValue()).getBytes());
+			} else if (entry.getValue() instanceof FormFile) {
+				FormFile ffile = (FormFile) entry.getValue();
+				if (!ffile.isFile() || !ffile.canRead())
+					throw new FileNotFoundException(ffile.getPath());
+				
+				writeFilePartHeader(baos, ffile.getName(), ffile.getMimeType());
+				parts.add(baos.toByteArray());
+				parts.add(ffile);
+				baos.reset();
+			} else if (entry.getValue() instanceof FormInputStream) {
+				FormInputStream ffile = (FormInputStream) entry.getValue();
+				writeFilePartHeader(baos, ffile.getName(), ffile.getMimeType());
+				parts.add(baos.toByteArray());
+				parts.add(ffile);
+				baos.reset();
+			} else if (entry.getValue() == null) {
+				throw new IllegalArgumentException("Content value is null.");
+			} else {
+				throw new IllegalArgumentException("Unhandled type: " + entry.getValue().getClass().getName());
+			}
+			
+			baos.write(LINE_ENDING.getBytes());
+		}
+		
+		parts.add(baos.toByteArray());
+		
+		return new MultipartInputStream(parts);
 	}
 	
 	/**
-	 * Execute GET method and deserialize response.
+	 * Write the part header fields that follow the part name for file content.
 	 * 
-	 * @param url of server.  If not String, toString() will be called.
-	 * @param deserializer class that can deserialize content into desired type.
-	 * @return type specified by deserializer
+	 * @param out buffer of part header
+	 * @param fileName name of file
+	 * @param mimeType mime type of file
 	 * @throws IOException on I/O error
 	 */
-	public <T> Response<T> callGet(Object url, ResponseDeserializer<T> deserializer) throws IOException {
-		return call(HttpMethod.GET, url.toString(), deserializer, null, null);
+	private static void writeFilePartHeader(OutputStream out, String fileName, String mimeType) throws IOException {
+		out.write("; ".getBytes());
+		out.write(FILE_NAME.getBytes());
+		out.write("=\"".getBytes());
+		out.write(fileName.getBytes());
+		out.write('"');
+		out.write(LINE_ENDING.getBytes());				
+		out.write(HEADER_TYPE.getBytes());
+		out.write(": ".getBytes());
+		out.write(mimeType.getBytes());
+		out.write(';');
+		out.write(LINE_ENDING.getBytes());
+		out.write(LINE_ENDING.getBytes());
 	}
 	
 	/**
-	 * Send a POST to the server.
+	 * Build a URL with the URLBuilder utility interface.  This interface
+	 * will clean extra/missing path segment terminators and handle schemes.
 	 * 
-	 * @param url url of server.  If not String, toString() will be called.
-	 * @param body body of post as an input stream
-	 * @return a response to the request
-	 * @throws IOException on I/O error
+	 * @param segment set of segments that compose the url.
+	 * @return an instance of URLBuilder with complete url.
 	 */
-	public Response<Integer> callPost(Object url, InputStream body) throws IOException {
-		return call(HttpMethod.POST, url.toString(), HTTP_CODE_DESERIALIZER, body, null);
+	public URLBuilder buildURL(String ... segment) {
+		URLBuilderImpl builder = new URLBuilderImpl();
+		
+		if (segment != null)
+			if (segment.length == 0)
+				return builder;
+			else if (segment.length == 1)
+				return builder.append(segment[0]);
+			else
+				for (String seg : segment)
+					builder.append(seg);
+				
+		return builder;
 	}
 	
 	/**
-	 * Send a POST to the server.
+	 * @param boundary String that represents form part boundary.
+	 * @return byte array of String of part header.
+	 */
+	private static byte[] getPartHeader(String boundary) {
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("--");
+		sb.append(boundary);
+		sb.append(LINE_ENDING);
+		sb.append(HEADER_PARA);
+		sb.append("; ");
+		sb.append(PARA_NAME);
+		sb.append("=\"");
+		
+		return sb.toString().getBytes();
+	}
+
+	/**
+	 * Turns a map into a key=value property string.
 	 * 
-	 * @param url url of server.  If not String, toString() will be called.
-	 * @param body body of post as a String
-	 * @return a response to the request
-	 * @throws IOException on I/O error
+	 * @param props
+	 *            Map of <String, String> properties
+	 * @return A querystring as String
+	 * @throws IOException
+	 *             on string encoding error
 	 */
-	public Response<Integer> callPost(Object url, String body) throws IOException {
-		return call(HttpMethod.POST, url.toString(), HTTP_CODE_DESERIALIZER, new ByteArrayInputStream(body.getBytes()), null);
+	public static String propertyString(Map<String, String> props) throws IOException {
+		StringBuilder sb = new StringBuilder();
+				
+		for (Iterator<String> i = props.keySet().iterator(); i.hasNext();) {
+			String key = i.next();		
+			sb.append(URLEncoder.encode(key, "UTF-8"));
+			sb.append("=");
+			sb.append(URLEncoder.encode(props.get(key), "UTF-8"));
+
+			if (i.hasNext()) {
+				sb.append("&");
+			}
+		}
+		return sb.toString();
 	}
 	
 	/**
-	 * Send a POST to the server.
+	 * Given a variable number of <String, String> pairs, construct a Map and
+	 * return it with values loaded.
 	 * 
-	 * @param url url of server
-	 * @param formData Form data as strings.  
-	 * @return a response from the POST
-	 * @throws IOException on I/O error
+	 * @param elements
+	 *            name1, value1, name2, value2...
+	 * @return a Map and return it with values loaded.
 	 */
-	public Response<Integer> callPost(Object url, Map<String, String> formData) throws IOException {
-		return call(HttpMethod.POST, url.toString(), HTTP_CODE_DESERIALIZER, 
-				new ByteArrayInputStream(propertyString(formData).getBytes()), 
-				toMap(HEADER_CONTENT_TYPE, APPLICATION_X_WWW_FORM_URLENCODED));
+	public static Map<String, String> toMap(String... elements) {
+		if (elements.length % 2 != 0) {
+			throw new IllegalStateException("Input parameters must be even.");
+		}
+
+		Iterator<String> i = Arrays.asList(elements).iterator();
+		Map<String, String> m = new HashMap<String, String>();
+
+		while (i.hasNext()) {
+			m.put(i.next().toString(), i.next());
+		}
+
+		return m;
 	}
 	
 	/**
-	 * Send a POST to the server.
+	 * Create an executor suitable for asynchronous requests.  If the runtime supports virtual threads, an executor
+	 * that starts a new virtual thread for each request is returned.  Otherwise a cached pool of daemon threads is used.
 	 * 
-	 * @param url url of server
-	 * @param body body of post as an input stream
-	 * @return a response to the request
-	 * @throws IOException on I/O error
+	 * @return ExecutorService
 	 */
-	public <T> Response<T> callPost(Object url, InputStream body, ResponseDeserializer<T> deserializer) throws IOException {
-		return call(HttpMethod.POST, url.toString(), deserializer, body, null);
+	public static ExecutorService createDefaultExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "RestClient-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					
+					return thread;
+				}
+			});
+		}
 	}
 	
+// Private methods
+	
 	/**
-	 * Send a POST to the server.
+	 * Create an array of bytesfrom the complete contents of an InputStream.
 	 * 
-	 * @param url url of server.   If not String, toString() will be called.
-	 * @param formData Form data as strings.  
-	 * @return a response from the POST
-	 * @throws IOException on I/O error
+	 * @param in
+	 *            InputStream to turn into a byte array
+	 * @return byte array (byte[]) w/ contents of input stream, or null if inputstream is null.
+	 * @throws IOException
+	 *             on I/O error
 	 */
-	public <T> Response<T> callPost(Object url, Map<String, String> formData, ResponseDeserializer<T> deserializer) throws IOException {
-		return call(HttpMethod.POST, url.toString(), deserializer, 
-				new ByteArrayInputStream(propertyString(formData).getBytes()), 
-				toMap(HEADER_CONTENT_TYPE, APPLICATION_X_WWW_FORM_URLENCODED));
+	public static byte[] readStream(InputStream in) throws IOException {
+		return readStream(in, -1);
 	}
 	
 	/**
-	 * Send a POST to the server.
+	 * Create an array of bytes from the complete contents of an InputStream, reading directly into an array
+	 * sized for the expected length.  If the length is correct the array is returned without copying.  A 
+	 * wrong length is only a hint: the stream is always read completely.  Content of unknown length is read 
+	 * into a pooled buffer first, so that content smaller than the buffer is copied once into the result.
 	 * 
-	 * @param <T> type to deserialize to
-	 * @param url of server
-	 * @param body of post
-	 * @param headers additional headers for request
-	 * @param deserializer deserializer
-	 * @return response
+	 * @param in InputStream to turn into a byte array
+	 * @param length expected length of content, e.g. from the Content-Length header, or -1 if unknown
+	 * @return byte array (byte[]) w/ contents of input stream, or null if inputstream is null.
 	 * @throws IOException on I/O error
 	 */
-	public <T> Response<T> callPost(URLBuilder url, InputStream body, Map<String, String> headers, ResponseDeserializer<T> deserializer) throws IOException {
-		return call(HttpMethod.POST, url.toString(), deserializer, body, headers);
+	public static byte[] readStream(InputStream in, long length) throws IOException {
+		if (in == null)
+			return null;
+		
+		if (length < 0)
+			length = getContentLength(in);
+
+		byte[] buff;
+		int count = 0;
+		int read;
+		
+		if (length < 0) {
+			// Read content of unknown length into a pooled buffer first, so that content that fits is copied 
+			// out once into an array of its exact size.
+			byte[] pooled = acquireBuffer();
+			try {
+				while (count < pooled.length && (read = in.read(pooled, count, pooled.length - count)) != -1)
+					count += read;
+				
+				if (count < pooled.length)
+					return Arrays.copyOf(pooled, count);
+				
+				int b = in.read();
+				if (b == -1)
+					return pooled.clone();
+				
+				buff = Arrays.copyOf(pooled, POOLED_BUFFER_SIZE * 2);
+				buff[count++] = (byte) b;
+			} finally {
+				releaseBuffer(pooled);
+			}
+		} else {
+			buff = new byte[(int) Math.min(length, MAX_PRESIZED_LENGTH)];
+		}
+		
+		while (true) {
+			if (count == buff.length) {
+				// Full: only grow the array if the stream has more content.
+				int b = in.read();
+				if (b == -1)
+					return buff;
+				
+				int size = (int) Math.min(Math.max((long) buff.length * 2, POOLED_BUFFER_SIZE), MAX_ARRAY_LENGTH);
+				if (size == count)
+					throw new IOException("Content is too large for a byte array.");
+				
+				buff = Arrays.copyOf(buff, size);
+				buff[count++] = (byte) b;
+			}
+			
+			if ((read = in.read(buff, count, buff.length - count)) == -1)
+				break;
+			
+			count += read;
+		}
+
+		return count == buff.length ? buff : Arrays.copyOf(buff, count);
+	}
+	
+	/**
+	 * Create multipart form boundary.
+	 * 
+	 * @return boiundry as a String
+	 */
+	private static String createMultipartBoundary() {
+		if (RNG == null)
+			RNG = new Random();
+		
+		StringBuilder buf = new StringBuilder(42);
+		buf.append("---------------------------");
+
+		for (int i = 0; i < RANDOM_CHAR_COUNT; i++) {
+			if (RNG.nextBoolean())
+				buf.append((char) (RNG.nextInt(25) + 65));
+			else
+				buf.append((char) (RNG.nextInt(25) + 98));
+		}
+		
+		return buf.toString();
+	}
+
+	
+	/**
+	 * Copy the contents of an input stream to an output stream.  Neither stream is closed.
+	 * 
+	 * @param inputStream
+	 *            InputStream to read from
+	 * @param outputStream
+	 * 			  OutputStream to write to
+	 * @return number of bytes copied
+	 * @throws IOException
+	 *             on I/O error
+	 */
+	private static long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+		
+		int read = 0;
+		long size = 0;
+		byte[] buff = acquireBuffer();
+
+		try {
+			while ((read = inputStream.read(buff)) > 0) {
+				outputStream.write(buff, 0, read);
+				size += read;
+			}
+		} finally {
+			releaseBuffer(buff);
+		}
+		
+		outputStream.flush();
+		
+		return size;
 	}
 	
 	/**
-	 * Send a multipart POST to the server.  Convenience method for post(url, createMultipartPostBody(content)).
+	 * Read an InputStream to its end, discarding the content.
 	 * 
-	 * @param url url of server.  If not String, toString() will be called.
-	 * @param content See createMultipartPostBody() for details on this parameter.
-	 * @return a response from the POST
+	 * @param in InputStream to read
 	 * @throws IOException on I/O error
 	 */
-	public Response<Integer> callPostMultipart(Object url, Map<String, Object> content) throws IOException {
-		String boundary = createMultipartBoundary();
-		String contentType = MULTIPART_FORM_DATA_CONTENT_TYPE + "; " + BOUNDARY + boundary;
-						
-		return call(HttpMethod.POST, url.toString(), HTTP_CODE_DESERIALIZER, 
-				createMultipartPostBody(boundary, content), toMap(HEADER_CONTENT_TYPE, contentType));
+	private static void skipStream(InputStream in) throws IOException {
+		byte[] buff = acquireBuffer();
+		try {
+			while (in.read(buff) != -1)
+				;
+		} finally {
+			releaseBuffer(buff);
+		}
 	}
 	
 	/**
-	 * Send a multipart POST to the server.  Convenience method for post(url, createMultipartPostBody(content)).
-	 * 
-	 * @param url url of server.  If not String, toString() will be called.
-	 * @param content See createMultipartPostBody() for details on this parameter.
-	 * @param deserializer class that can deserialize content into desired type.
-	 * @param <T> Type to be deserialized to.
-	 * @return a response from the POST
-	 * @throws IOException on I/O error
+	 * @return a buffer of POOLED_BUFFER_SIZE bytes from the pool, or a new one if the pool is empty.
 	 */
-	public <T> Response<T> callPostMultipart(Object url, Map<String, Object> content, 
-			ResponseDeserializer<T> deserializer) throws IOException {
+	private static byte[] acquireBuffer() {
+		byte[] buff = BUFFER_POOL.poll();
 		
-		String boundary = createMultipartBoundary();
-		String contentType = MULTIPART_FORM_DATA_CONTENT_TYPE + "; " + BOUNDARY + boundary;
-					
-		return call(HttpMethod.POST, url.toString(), deserializer, 
-				createMultipartPostBody(boundary, content), toMap(HEADER_CONTENT_TYPE, contentType));
+		return buff == null ? new byte[POOLED_BUFFER_SIZE] : buff;
 	}
 	
 	/**
-	 * Call PUT method on a server.
+	 * Return a buffer to the pool.  The caller must not use it afterwards.  Buffers beyond the capacity of the 
+	 * pool are left to the garbage collector.
 	 * 
-	 * @param url url of server
-	 * @param content See createMultipartPostBody() for details on this parameter.
-	 * @return a response from the POST
-	 * @throws IOException on I/O error
+	 * @param buff buffer from acquireBuffer()
 	 */
-	public Response<Integer> callPut(Object url, InputStream content) throws IOException {
-		return call(HttpMethod.PUT, url.toString(), HTTP_CODE_DESERIALIZER, content, null);
-	}
+	private static void releaseBuffer(byte[] buff) {
+		BUFFER_POOL.offer(buff);
+	}	
 	
 	/**
-	 * Send a POST to the server.
-	 * 
-	 * @param url url of server
-	 * @param formData Form data as strings.  
-	 * @return a response from the POST
-	 * @throws IOException on I/O error
+	 * @param connection connection of response
+	 * @return content encoding of the response if it is decoded by the client, otherwise null
 	 */
-	public Response<Integer> callPut(Object url, Map<String, String> formData) throws IOException {
-		return call(HttpMethod.PUT, url.toString(), HTTP_CODE_DESERIALIZER, 
-				new ByteArrayInputStream(propertyString(formData).getBytes()), 
-				toMap(HEADER_CONTENT_TYPE, APPLICATION_X_WWW_FORM_URLENCODED));
+	private String getDecodedEncoding(HttpURLConnection connection) {
+		if (!responseCompression)
+			return null;
+		
+		String encoding = connection.getContentEncoding();
+		if (encoding == null)
+			return null;
+		
+		encoding = encoding.trim().toLowerCase(Locale.US);
+		if (encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate"))
+			return encoding;
+		
+		return null;
 	}
 	
 	/**
-	 * Call PUT method on a server.
-	 * 
-	 * @param url url of server
-	 * @param content See createMultipartPostBody() for details on this parameter.
-	 * @return a response from the POST
-	 * @throws IOException on I/O error
+	 * @param in encoded response stream or null
+	 * @param encoding content encoding returned by getDecodedEncoding(), or null
+	 * @return stream of the decoded content
 	 */
-	public <T> Response<T> callPut(Object url, InputStream content, ResponseDeserializer<T> deserializer) throws IOException {
-		return call(HttpMethod.PUT, url.toString(), deserializer, content, null);
+	private static InputStream decode(InputStream in, String encoding) {
+		if (in == null || encoding == null)
+			return in;
+		
+		return new DecodingInputStream(in, !encoding.equals("deflate"));
 	}
 	
 	/**
-	 * Send a POST to the server.
-	 * 
-	 * @param url url of server
-	 * @param formData Form data as strings.  
-	 * @return a response from the POST
-	 * @throws IOException on I/O error
+	 * @param headers headers of an encoded response
+	 * @return headers without Content-Encoding and Content-Length, which do not apply to the decoded content
 	 */
-	public <T> Response<T> callPut(Object url, Map<String, String> formData, ResponseDeserializer<T> deserializer) throws IOException {
-		return call(HttpMethod.PUT, url.toString(), deserializer, 
-				new ByteArrayInputStream(propertyString(formData).getBytes()), 
-				toMap(HEADER_CONTENT_TYPE, APPLICATION_X_WWW_FORM_URLENCODED));
-	}
-
+	private static Map<String, List<String>> getDecodedHeaders(Map<String, List<String>> headers) {
+		Map<String, List<String>> decoded = new LinkedHashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> entry : headers.entrySet())
+			if (entry.getKey() == null || !(entry.getKey().equalsIgnoreCase(HEADER_CONTENT_ENCODING) 
+					|| entry.getKey().equalsIgnoreCase(HEADER_CONTENT_LENGTH)))
+				decoded.put(entry.getKey(), entry.getValue());
+		
+		return decoded;
+	}	
 	
 	/**
-	 * Call DELETE method on a server.
-	 * 
-	 * @param url of server.  If not String, toString() will be called.
-	 * @return HTTP response from server
-	 * @throws IOException on I/O error
+	 * @param headers response headers
+	 * @param name header name, matched without regard to case
+	 * @return values of header or null if not present
 	 */
-	public Response<Integer> callDelete(Object url) throws IOException {
-		return call(HttpMethod.DELETE, url.toString(), HTTP_CODE_DESERIALIZER, null, null);
+	private static List<String> getHeaderValues(Map<String, List<String>> headers, String name) {
+		if (headers == null)
+			return null;
+		
+		List<String> values = headers.get(name);
+		if (values != null)
+			return values;
+		
+		for (Map.Entry<String, List<String>> entry : headers.entrySet())
+			if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(name))
+				return entry.getValue();
+		
+		return null;
 	}
 	
 	/**
-	 * Call DELETE method on a server.
-	 * 
-	 * @param url of server.  If not String, toString() will be called.
-	 * @return HTTP response from server
-	 * @throws IOException on I/O error
+	 * @param headers response headers
+	 * @param name header name, matched without regard to case
+	 * @return values of header joined by commas or null if not present
 	 */
-	public <T> Response<T> callDelete(Object url, ResponseDeserializer<T> deserializer) throws IOException {
-		return call(HttpMethod.DELETE, url.toString(), deserializer, null, null);
-	}
+	private static String getHeaderValue(Map<String, List<String>> headers, String name) {
+		List<String> values = getHeaderValues(headers, name);
+		
+		if (values == null || values.isEmpty())
+			return null;
+		if (values.size() == 1)
+			return values.get(0);
+		
+		StringBuilder sb = new StringBuilder();
+		for (Iterator<String> i = values.iterator(); i.hasNext();) {
+			sb.append(i.next());
+			if (i.hasNext())
+				sb.append(", ");
+		}
+		
+		return sb.toString();
+	}	
 	
 	/**
-	 * Call HEAD method on a server.
+	 * Throws an IllegalArgumentException if any input parameters are null.
 	 * 
-	 * @param url of server.  If not String, toString() will be called.
-	 * @return HTTP Response from server
-	 * @throws IOException on I/O error
+	 * @param args list of parameters.
 	 */
-	public Response<Integer> callHead(Object url) throws IOException {
-		return call(HttpMethod.HEAD, url.toString(), HTTP_CODE_DESERIALIZER, null, null);
+	private static void validateArguments(Object ... args) {
+		for (int i = 0; i < args.length; ++i)
+			if (args[i] == null)
+				throw new IllegalArgumentException("An input parameter is null.");
 	}
 
-	
-	// Public static methods
+	/**
+	 * @param baseUrl base URL, e.g. http://backend
+	 * @param url url
+	 * @return true if url is baseUrl or a URL below it, i.e. it does not merely start with the same characters as 
+	 * in http://backend2/ or http://backend.example.com/
+	 */
+	private static boolean isBaseOf(String baseUrl, String url) {
+		if (!url.startsWith(baseUrl))
+			return false;
+		if (url.length() == baseUrl.length() || baseUrl.endsWith("/"))
+			return true;
+		
+		char next = url.charAt(baseUrl.length());
+		
+		return next == '/' || next == '?' || next == '#';
+	}
 	
 	/**
-	 * Create a buffer for a multi-part POST body, and return an input stream to the buffer.
-	 * 
-	 * @param content A map of <String, Object>  The values can either be of type String, RestClient.FormInputStream, or 
-	 * type RestClient.FormFile.  Other types will cause an IllegalArgumentException.
-	 * @return an input stream of buffer of POST body.
-	 * @throws IOException on I/O error.
+	 * @param host host of a URL
+	 * @return true if host is an IPv4 address or an IPv6 address, which need not be resolved
 	 */
-	public static InputStream createMultipartPostBody(String boundary, Map<String, Object> content) throws IOException {		
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();	
-		byte[] header = getPartHeader(boundary);
+	private static boolean isAddress(String host) {
+		if (host.indexOf(':') >= 0)
+			return true;
 		
-		for (Map.Entry<String, Object> entry : content.entrySet()) {
-			baos.write(header);
-			baos.write(entry.getKey().getBytes());
-			baos.write('"');
-			
-			if (entry.getValue() instanceof String) {
-				baos.write(LINE_ENDING.getBytes());
-				baos.write(LINE_ENDING.getBytes());
-				baos.write(((String) entry.getValue()).getBytes());
-			} else if (entry.getValue() instanceof FormFile) {
-				FormFile ffile = (FormFile) entry.getValue();
-				baos.write("; ".getBytes());
-				baos.write(FILE_NAME.getBytes());
-				baos.write("=\"".getBytes());
-				baos.write(ffile.getName().getBytes());
-				baos.write('"');
-				baos.write(LINE_ENDING.getBytes());				
-				baos.write(HEADER_TYPE.getBytes());
-				baos.write(": ".getBytes());
-				baos.write(ffile.getMimeType().getBytes());
-				baos.write(';');
-				baos.write(LINE_ENDING.getBytes());
-				baos.write(LINE_ENDING.getBytes());
-				baos.write(readStream(new FileInputStream(ffile)));
-			} else if (entry.getValue() instanceof FormInputStream) {
-				FormInputStream ffile = (FormInputStream) entry.getValue();
-				baos.write("; ".getBytes());
-				baos.write(FILE_NAME.getBytes());
-				baos.write("=\"".getBytes());
-				baos.write(ffile.getName().getBytes());
-				baos.write('"');
-				baos.write(LINE_ENDING.getBytes());				
-				baos.write(HEADER_TYPE.getBytes());
-				baos.write(": ".getBytes());
-				baos.write(ffile.getMimeType().getBytes());
-				baos.write(';');
-				baos.write(LINE_ENDING.getBytes());
-				baos.write(LINE_ENDING.getBytes());
-				baos.write(readStream(ffile));
-			} else if (entry.getValue() == null) {
-				throw new IllegalArgumentException("Content value is null.");
-			} else {
-				throw new IllegalArgumentException("Unhandled type: " + entry.getValue().getClass().getName());
-			}
-			
-			baos.write(LINE_ENDING.getBytes());
+		for (int i = 0; i < host.length(); ++i) {
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9'))
+				return false;
 		}
 		
-		return new ByteArrayInputStream(baos.toByteArray());
+		return host.length() > 0;
 	}
 	
 	/**
-	 * Build a URL with the URLBuilder utility interface.  This interface
-	 * will clean extra/missing path segment terminators and handle schemes.
+	 * @return executor shared by all clients in asynchronous mode that do not specify their own.
+	 */
+	private static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null)
+			defaultExecutor = createDefaultExecutor();
+		
+		return defaultExecutor;
+	}
+	
+	/**
+	 * Convert the cause of a failed asynchronous request into an exception that can be thrown from Response methods.
 	 * 
-	 * @param segment set of segments that compose the url.
-	 * @return an instance of URLBuilder with complete url.
+	 * @param cause exception thrown by the request
+	 * @return IOException to be thrown to the caller
 	 */
-	public URLBuilder buildURL(String ... segment) {
-		URLBuilderImpl builder = new URLBuilderImpl();
+	private static IOException toIOException(Throwable cause) {
+		if (cause instanceof IOException)
+			return (IOException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
 		
-		if (segment != null)
-			if (segment.length == 0)
-				return builder;
-			else if (segment.length == 1)
-				return builder.append(segment[0]);
-			else
-				for (String seg : segment)
-					builder.append(seg);
-				
-		return builder;
+		IOException e = new IOException(cause.getMessage());
+		e.initCause(cause);
+		
+		return e;
 	}
 	
 	/**
-	 * @param boundary String that represents form part boundary.
-	 * @return byte array of String of part header.
+	 * A Response for a request that is executed by an ExecutorService.  The exchange and deserialization
+	 * occur on the executor; methods that depend on the server response block until it has completed.
+	 *
+	 * @param <T> type to deserialize to
 	 */
-	private static byte[] getPartHeader(String boundary) {
-		StringBuilder sb = new StringBuilder();
+	private final class FutureResponse<T> implements AsyncResponse<T>, Runnable {
+		private final HttpMethod method;
+		private final String url;
+		private final ResponseDeserializer<T> deserializer;
+		private final InputStream content;
+		private final Map<String, String> headers;
+		private final CompletableFuture<T> future;
+		private final Future<?> task;
+		private volatile Response<T> response;
+		private Thread runner;
 		
-		sb.append("--");
-		sb.append(boundary);
-		sb.append(LINE_ENDING);
-		sb.append(HEADER_PARA);
-		sb.append("; ");
-		sb.append(PARA_NAME);
-		sb.append("=\"");
+		/**
+		 * @param executor executor to run the request on, or null if the caller runs it
+		 * @param method HTTP method
+		 * @param url url of server
+		 * @param deserializer deserializer or null
+		 * @param content request body or null
+		 * @param headers additional headers or null
+		 */
+		public FutureResponse(ExecutorService executor, HttpMethod method, String url, ResponseDeserializer<T> deserializer, 
+				InputStream content, Map<String, String> headers) {
+			this.method = method;
+			this.url = url;
+			this.deserializer = deserializer;
+			this.content = content;
+			this.headers = headers;
+			this.future = new CompletableFuture<T>();
+			this.task = executor == null ? null : executor.submit(this);
+		}
+		
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (future.isDone())
+					return;
+				
+				runner = Thread.currentThread();
+			}
+			
+			try {
+				Response<T> r = exchange(method, url, deserializer, content, headers);
+				response = r;
+				
+				// Cancelled while the request was being sent, before the response could be cancelled.
+				if (future.isCancelled())
+					r.cancel(true);
+				else
+					future.complete(r.getContent());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			} finally {
+				synchronized (this) {
+					runner = null;
+				}
+				
+				// Do not pass an interrupt of cancel() on to the next request of a batch worker.
+				if (future.isCancelled())
+					Thread.interrupted();
+			}
+		}
+		
+		@Override
+		public CompletionStage<T> toCompletionStage() {
+			// A minimal stage, so that callers cannot complete the response through toCompletableFuture().
+			return future.minimalCompletionStage();
+		}
+		
+		/**
+		 * Block until the request has completed, successfully or not.
+		 */
+		private void await() {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				// Reported by the accessor that needs the failure.
+			} catch (CancellationException e) {
+				// Reported by isCancelled().
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = future.cancel(mayInterruptIfRunning);
+			if (task != null)
+				task.cancel(mayInterruptIfRunning);
+			
+			synchronized (this) {
+				if (mayInterruptIfRunning && runner != null)
+					runner.interrupt();
+			}
+			
+			Response<T> r = response;
+			if (r != null)
+				r.cancel(mayInterruptIfRunning);
+			
+			return cancelled;
+		}
+		
+		@Override
+		public boolean isCancelled() {
+			return future.isCancelled();
+		}
+		
+		@Override
+		public boolean isDone() {
+			return future.isDone();
+		}
+		
+		@Override
+		public T getContent() throws IOException {
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				throw toIOException(e.getCause());
+			} catch (CancellationException e) {
+				throw new IOException("Request to " + url + " was cancelled.");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + url);
+			}
+		}
+		
+		@Override
+		public HttpURLConnection getConnection() {
+			await();
+			Response<T> r = response;
+			
+			return r == null ? null : r.getConnection();
+		}
+		
+		@Override
+		public HttpMethod getRequestMethod() {
+			return method;
+		}
+		
+		@Override
+		public String getRequestUrl() {
+			return url;
+		}
 		
-		return sb.toString().getBytes();
-	}
-
-	/**
-	 * Turns a map into a key=value property string.
-	 * 
-	 * @param props
-	 *            Map of <String, String> properties
-	 * @return A querystring as String
-	 * @throws IOException
-	 *             on string encoding error
-	 */
-	public static String propertyString(Map<String, String> props) throws IOException {
-		StringBuilder sb = new StringBuilder();
+		@Override
+		public int getCode() throws IOException {
+			await();
+			Response<T> r = response;
+			if (r == null) {
+				getContent();
+				throw new IOException("No response for " + url);
+			}
+			
+			return r.getCode();
+		}
+		
+		@Override
+		public boolean isError() {
+			await();
+			Response<T> r = response;
+			
+			return r == null || r.isError();
+		}
+		
+		@Override
+		public String getErrorMessage() {
+			await();
+			Response<T> r = response;
+			if (r == null) {
+				try {
+					getContent();
+				} catch (IOException e) {
+					return e.getMessage();
+				}
 				
-		for (Iterator<String> i = props.keySet().iterator(); i.hasNext();) {
-			String key = i.next();		
-			sb.append(URLEncoder.encode(key, "UTF-8"));
-			sb.append("=");
-			sb.append(URLEncoder.encode(props.get(key), "UTF-8"));
-
-			if (i.hasNext()) {
-				sb.append("&");
+				return null;
 			}
+			
+			return r.getErrorMessage();
 		}
-		return sb.toString();
 	}
 	
 	/**
-	 * Given a variable number of <String, String> pairs, construct a Map and
-	 * return it with values loaded.
-	 * 
-	 * @param elements
-	 *            name1, value1, name2, value2...
-	 * @return a Map and return it with values loaded.
+	 * An InputStream that reads the remaining content of a ByteBuffer.
 	 */
-	public static Map<String, String> toMap(String... elements) {
-		if (elements.length % 2 != 0) {
-			throw new IllegalStateException("Input parameters must be even.");
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		
+		/**
+		 * @param buffer content.  The position of the buffer is advanced as the stream is read.
+		 */
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
 		}
-
-		Iterator<String> i = Arrays.asList(elements).iterator();
-		Map<String, String> m = new HashMap<String, String>();
-
-		while (i.hasNext()) {
-			m.put(i.next().toString(), i.next());
+		
+		@Override
+		public int read() throws IOException {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
 		}
-
-		return m;
-	}
-	
-// Private methods
-	
-	/**
-	 * Create an array of bytesfrom the complete contents of an InputStream.
-	 * 
-	 * @param in
-	 *            InputStream to turn into a byte array
-	 * @return byte array (byte[]) w/ contents of input stream, or null if inputstream is null.
-	 * @throws IOException
-	 *             on I/O error
-	 */
-	public static byte[] readStream(InputStream in) throws IOException {
-		if (in == null)
-			return null;
 		
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
-		int read = 0;
-		byte[] buff = new byte[COPY_BUFFER_SIZE];
-
-		while ((read = in.read(buff)) > 0) {
-			os.write(buff, 0, read);
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			
+			return count;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + count);
+			
+			return count;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return buffer.remaining();
 		}
-		os.close();
-
-		return os.toByteArray();
 	}
 	
 	/**
-	 * Create multipart form boundary.
-	 * 
-	 * @return boiundry as a String
+	 * Request body read from a file.  The file is opened when the body is first read so that requests that are
+	 * never executed do not hold a file descriptor.
 	 */
-	private static String createMultipartBoundary() {
-		if (RNG == null)
-			RNG = new Random();
+	private static final class FileContent extends InputStream implements SizedContent {
+		private final File file;
+		private final long length;
+		private FileChannel channel;
 		
-		StringBuilder buf = new StringBuilder(42);
-		buf.append("---------------------------");
-
-		for (int i = 0; i < RANDOM_CHAR_COUNT; i++) {
-			if (RNG.nextBoolean())
-				buf.append((char) (RNG.nextInt(25) + 65));
-			else
-				buf.append((char) (RNG.nextInt(25) + 98));
+		/**
+		 * @param file file to send
+		 * @throws FileNotFoundException if file cannot be read
+		 */
+		public FileContent(File file) throws FileNotFoundException {
+			validateArguments(file);
+			if (!file.isFile() || !file.canRead())
+				throw new FileNotFoundException(file.getPath());
+			
+			this.file = file;
+			this.length = file.length();
 		}
 		
-		return buf.toString();
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+		
+		/**
+		 * @return channel of file, opened on first use
+		 * @throws IOException on I/O error
+		 */
+		private FileChannel channel() throws IOException {
+			if (channel == null)
+				channel = new FileInputStream(file).getChannel();
+			
+			return channel;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			
+			return channel().read(ByteBuffer.wrap(b, off, len));
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
 	}
-
 	
 	/**
-	 * Create a byte array from the contents of an input stream.
-	 * 
-	 * @param inputStream
-	 *            InputStream to read from
-	 * @param outputStream
-	 * 			  OutputStream to write to
-	 * @return number of bytes copied
-	 * @throws IOException
-	 *             on I/O error
+	 * Multi-part body that is encoded as it is read.  Parts are either encoded headers and values (byte[]), 
+	 * files that are read through a FileChannel, or streams that are copied as-is.
 	 */
-	private static long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+	private static final class MultipartInputStream extends InputStream implements SizedContent {
+		private final List<Object> parts;
+		private final long length;
+		private int index;
+		private int offset;
+		private FileChannel channel;
+		private ByteBuffer buffer;
 		
-		int read = 0;
-		long size = 0;
-		byte[] buff = new byte[COPY_BUFFER_SIZE];
-
-		while ((read = inputStream.read(buff)) > 0) {
-			outputStream.write(buff, 0, read);
-			size += read;
+		/**
+		 * @param parts byte[], File or InputStream parts of the body, in order.
+		 */
+		public MultipartInputStream(List<Object> parts) {
+			this.parts = parts;
+			
+			long total = 0;
+			for (Object part : parts) {
+				if (part instanceof byte[]) {
+					total += ((byte[]) part).length;
+				} else if (part instanceof File) {
+					total += ((File) part).length();
+				} else {
+					total = -1;
+					break;
+				}
+			}
+			this.length = total;
 		}
 		
-		outputStream.flush();
+		@Override
+		public long getContentLength() {
+			return length;
+		}
 		
-		return size;
-	}	
-	
-	/**
-	 * Throws an IllegalArgumentException if any input parameters are null.
-	 * 
-	 * @param args list of parameters.
-	 */
-	private static void validateArguments(Object ... args) {
-		for (int i = 0; i < args.length; ++i)
-			if (args[i] == null)
-				throw new IllegalArgumentException("An input parameter is null.");
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			
+			while (index < parts.size()) {
+				Object part = parts.get(index);
+				
+				if (part instanceof byte[]) {
+					byte[] value = (byte[]) part;
+					int count = Math.min(len, value.length - offset);
+					System.arraycopy(value, offset, b, off, count);
+					offset += count;
+					
+					if (offset == value.length)
+						nextPart();
+					if (count > 0)
+						return count;
+				} else if (part instanceof File) {
+					if (channel == null)
+						channel = new FileInputStream((File) part).getChannel();
+					if (buffer == null || buffer.array() != b)
+						buffer = ByteBuffer.wrap(b);
+					
+					buffer.limit(off + len).position(off);
+					int count = channel.read(buffer);
+					if (count > 0)
+						return count;
+					
+					nextPart();
+				} else {
+					int count = ((InputStream) part).read(b, off, len);
+					if (count > 0)
+						return count;
+					
+					nextPart();
+				}
+			}
+			
+			return -1;
+		}
+		
+		/**
+		 * Release the current part and advance to the next.
+		 * @throws IOException on I/O error
+		 */
+		private void nextPart() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+			
+			index++;
+			offset = 0;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+			
+			index = parts.size();
+		}
 	}
-
+	
 	/**
 	 * The default connection provider returns a HttpUrlConnection.
 	 */
@@ -1524,19 +8349,138 @@ public class RestClient {
 	 * Write the content to the request body.
 	 * @param connection associated with request
 	 * @param content content of request.  If null, no body is sent and HTTP header Content-Length is set to zero.
+	 * @param event event of request or null
 	 * @throws IOException on I/O error.
 	 */
-	private void writeRequestBody(HttpURLConnection connection, byte[] content) throws IOException {
+	private void writeRequestBody(HttpURLConnection connection, byte[] content, RequestEvent event) throws IOException {
 		if (content != null) {
 			connection.setRequestProperty("Content-Length", Long.toString(content.length));
+			connect(connection, event);
+			
 			OutputStream outputStream = connection.getOutputStream();
 			outputStream.write(content);			
 			outputStream.close();			
+			
+			if (event != null)
+				event.bytesSent = content.length;
 		} else {
 			connection.setRequestProperty("Content-Length", Long.toString(0));
 		}
 	}
 	
+	/**
+	 * Copy the content to the request body without buffering it.
+	 * @param connection associated with request
+	 * @param content content of request
+	 * @param event event of request or null
+	 * @return number of bytes sent
+	 * @throws IOException on I/O error.
+	 */
+	private long streamRequestBody(HttpURLConnection connection, InputStream content, RequestEvent event) throws IOException {
+		long length = getContentLength(content);
+		
+		if (length > -1)
+			connection.setFixedLengthStreamingMode(length);
+		else
+			connection.setChunkedStreamingMode(streamingChunkSize);
+		
+		connect(connection, event);
+		
+		OutputStream outputStream = connection.getOutputStream();
+		try {
+			long size = copy(content, outputStream);
+			
+			if (event != null)
+				event.bytesSent = size;
+			
+			return size;
+		} finally {
+			outputStream.close();
+			
+			if (content instanceof FileContent || content instanceof MultipartInputStream)
+				content.close();
+		}
+	}
+	
+	/**
+	 * Compress the content to the request body while it is sent.
+	 * @param connection associated with request
+	 * @param content content of request
+	 * @param event event of request or null
+	 * @return number of compressed bytes sent
+	 * @throws IOException on I/O error.
+	 */
+	private long compressRequestBody(HttpURLConnection connection, InputStream content, RequestEvent event) throws IOException {
+		connection.setRequestProperty(HEADER_CONTENT_ENCODING, "gzip");
+		connection.setChunkedStreamingMode(streamingChunkSize);
+		
+		connect(connection, event);
+		
+		CountingOutputStream counter = new CountingOutputStream(connection.getOutputStream());
+		GZIPOutputStream outputStream = new GZIPOutputStream(counter, COPY_BUFFER_SIZE);
+		try {
+			copy(content, outputStream);
+			outputStream.finish();
+			
+			if (event != null)
+				event.bytesSent = counter.count;
+			
+			return counter.count;
+		} finally {
+			outputStream.close();
+			
+			if (content instanceof FileContent || content instanceof MultipartInputStream)
+				content.close();
+		}
+	}
+	
+	/**
+	 * @param connection associated with request
+	 * @param content request body
+	 * @return true if the body should be compressed
+	 */
+	private static boolean isCompressible(HttpURLConnection connection, InputStream content) {
+		if (connection.getRequestProperty(HEADER_CONTENT_ENCODING) != null)
+			return false;
+		
+		long length = getContentLength(content);
+		
+		return length < 0 || length >= MIN_COMPRESSED_SIZE;
+	}
+	
+	/**
+	 * @param content request body
+	 * @return length of content if known before reading, -1 otherwise.
+	 */
+	private static long getContentLength(InputStream content) {
+		if (content instanceof SizedContent)
+			return ((SizedContent) content).getContentLength();
+		
+		if (content instanceof ByteArrayInputStream)
+			return ((ByteArrayInputStream) content).available();
+		
+		if (content instanceof ByteBufferInputStream)
+			return ((ByteBufferInputStream) content).buffer.remaining();
+		
+		return -1;
+	}
+	
+	/**
+	 * @param headers response headers or null
+	 * @return value of Content-Length header, or -1 if not present or invalid
+	 */
+	private static long getContentLength(Map<String, List<String>> headers) {
+		String value = getHeaderValue(headers, HEADER_CONTENT_LENGTH);
+		if (value == null)
+			return -1;
+		
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
 	/**
 	 * URLBuilder Implementation for safely composing URLs.
 	 */
@@ -1735,15 +8679,15 @@ public class RestClient {
 	 */
 	private final class CachedConnectionProvider extends HttpURLConnection {
 
-		private final byte[] content;
+		private final HttpGETCacheEntry entry;
 		private final Map<String, List<String>> headers;
 		private final int responseCode;
 
-		public CachedConnectionProvider(byte[] content, Map<String, List<String>> headerFields, int responseCode) {
+		public CachedConnectionProvider(HttpGETCacheEntry entry) {
 			super(null);
-			this.content = content;			
-			this.headers = headerFields;
-			this.responseCode = responseCode;
+			this.entry = entry;
+			this.headers = entry.getHeaders();
+			this.responseCode = entry.getResponseCode();
 		}
 
 		@Override
@@ -1773,9 +8717,38 @@ public class RestClient {
 			return responseCode;
 		}
 		
+		@Override
+		public String getResponseMessage() throws IOException {
+			List<String> status = headers.get(null);
+			
+			if (status != null && !status.isEmpty()) {
+				// Status line: HTTP-version SP status-code SP reason-phrase
+				String[] parts = status.get(0).split(" ", 3);
+				if (parts.length == 3)
+					return parts[2];
+			}
+			
+			return null;
+		}
+		
+		@Override
+		public InputStream getErrorStream() {
+			if (responseCode < HttpURLConnection.HTTP_BAD_REQUEST)
+				return null;
+			
+			try {
+				return getInputStream();
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		
 		@Override
 		public InputStream getInputStream() throws IOException {
-			return new ByteArrayInputStream(content);
+			if (entry instanceof ByteBufferCacheEntry)
+				return new ByteBufferInputStream(((ByteBufferCacheEntry) entry).getContentBuffer());
+			
+			return new ByteArrayInputStream(entry.getContent());
 		}		
 		
 		@Override
@@ -1790,8 +8763,10 @@ public class RestClient {
 		
 		@Override
 		public String getHeaderField(String name) {	
-			if (headers.containsKey(name))
-				return headers.get(name).iterator().next();
+			List<String> values = getHeaderValues(headers, name);
+			
+			if (values != null && !values.isEmpty())
+				return values.iterator().next();
 			
 			return null;
 		}
@@ -0,0 +1,222 @@
+package org.touge.restclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.AsyncResponse;
+import org.touge.restclient.RestClient.Response;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for asynchronous request execution.
+ *
+ */
+public class AsyncTestCase extends TestCase {
+
+	private LocalServer server;
+	private final CountDownLatch release = new CountDownLatch(1);
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/slow", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				LocalServer.respond(exchange, 200, LocalServer.readBody(exchange));
+			}
+		});
+		server.handle("/missing", new LocalServer.FixedHandler(404, "not here"));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		release.countDown();
+		server.stop();
+	}
+	
+	/**
+	 * call() should return before the server has responded.
+	 * @throws IOException
+	 */
+	public void testCallReturnsImmediately() throws IOException {
+		RestClient client = new RestClient();
+		client.setAsynchronous(true);
+		assertTrue(client.isAsynchronous());
+		
+		Response<String> response = client.callPost(server.url("/slow"), 
+				new ByteArrayInputStream("echo".getBytes()), RestClient.STRING_DESERIALIZER);
+		
+		assertFalse(response.isDone());
+		release.countDown();
+		
+		assertEquals("echo", response.getContent());
+		assertTrue(response.isDone());
+		assertEquals(200, response.getCode());
+		assertFalse(response.isError());
+	}
+	
+	/**
+	 * Many requests should be in flight at once without blocking the caller.
+	 * @throws IOException
+	 */
+	public void testConcurrentCalls() throws IOException {
+		RestClient client = new RestClient();
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		client.setExecutor(executor);
+		
+		try {
+			Response<?> [] responses = new Response<?>[16];
+			for (int i = 0; i < responses.length; ++i)
+				responses[i] = client.callPost(server.url("/slow"), 
+						new ByteArrayInputStream(Integer.toString(i).getBytes()), RestClient.STRING_DESERIALIZER);
+			
+			for (Response<?> response : responses)
+				assertFalse(response.isDone());
+			
+			release.countDown();
+			
+			for (int i = 0; i < responses.length; ++i)
+				assertEquals(Integer.toString(i), responses[i].getContent());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Errors raised by the ErrorHandler should be thrown from getContent().
+	 * @throws IOException
+	 */
+	public void testErrorHandling() throws IOException {
+		RestClient client = new RestClient();
+		client.setAsynchronous(true);
+		
+		Response<String> response = client.callGet(server.url("/missing"), RestClient.STRING_DESERIALIZER);
+		assertTrue(response.isError());
+		assertEquals(404, response.getCode());
+		
+		client.setErrorHandler(RestClient.THROW_ALL_ERRORS);
+		response = client.callGet(server.url("/missing"), RestClient.STRING_DESERIALIZER);
+		
+		try {
+			response.getContent();
+			fail("IOException expected.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("404"));
+		}
+	}
+	
+	/**
+	 * A cancelled request should not produce content.
+	 * @throws Exception
+	 */
+	public void testCancel() throws Exception {
+		RestClient client = new RestClient();
+		client.setAsynchronous(true);
+		
+		AsyncResponse<String> response = (AsyncResponse<String>) client.callGet(server.url("/slow"), 
+				RestClient.STRING_DESERIALIZER);
+		assertTrue(response.cancel(true));
+		assertTrue(response.isCancelled());
+		
+		try {
+			response.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+			fail("ExecutionException expected.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof CancellationException);
+		}
+		
+		try {
+			response.getContent();
+			fail("IOException expected.");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * Continuations should be applied to the deserialized content without blocking the caller.
+	 * @throws Exception
+	 */
+	public void testCompletionStage() throws Exception {
+		RestClient client = new RestClient();
+		
+		AsyncResponse<String> first = client.callAsync(RestClient.HttpMethod.POST, server.url("/slow"), 
+				RestClient.STRING_DESERIALIZER, new ByteArrayInputStream("21".getBytes()), null);
+		AsyncResponse<String> second = client.callAsync(RestClient.HttpMethod.POST, server.url("/slow"), 
+				RestClient.STRING_DESERIALIZER, new ByteArrayInputStream("2".getBytes()), null);
+		
+		CompletionStage<Integer> product = first.toCompletionStage().thenApply(new Function<String, Integer>() {
+			
+			@Override
+			public Integer apply(String body) {
+				return Integer.valueOf(body);
+			}
+		}).thenCombine(second.toCompletionStage(), new BiFunction<Integer, String, Integer>() {
+			
+			@Override
+			public Integer apply(Integer a, String b) {
+				return a * Integer.parseInt(b);
+			}
+		});
+		
+		assertFalse(product.toCompletableFuture().isDone());
+		release.countDown();
+		
+		assertEquals(42, product.toCompletableFuture().get(10, TimeUnit.SECONDS).intValue());
+	}
+	
+	/**
+	 * A failed request should complete its stage exceptionally with the IOException.
+	 * @throws Exception
+	 */
+	public void testCompletionStageFailure() throws Exception {
+		RestClient client = new RestClient();
+		client.setErrorHandler(RestClient.THROW_ALL_ERRORS);
+		
+		AsyncResponse<String> response = client.callGetAsync(server.url("/missing"), RestClient.STRING_DESERIALIZER);
+		
+		try {
+			response.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+			fail("ExecutionException expected.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+	
+	/**
+	 * Completing the future of a stage should not change the content of the response.
+	 * @throws Exception
+	 */
+	public void testCompletionStageReadOnly() throws Exception {
+		RestClient client = new RestClient();
+		
+		AsyncResponse<String> response = client.callAsync(RestClient.HttpMethod.POST, server.url("/slow"), 
+				RestClient.STRING_DESERIALIZER, new ByteArrayInputStream("body".getBytes()), null);
+		response.toCompletionStage().toCompletableFuture().complete("forged");
+		release.countDown();
+		
+		assertEquals("body", response.getContent());
+		assertFalse(response.isCancelled());
+		assertEquals("body", response.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,160 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.AsyncResponse;
+import org.touge.restclient.RestClient.Batch;
+import org.touge.restclient.RestClient.BatchRequest;
+import org.touge.restclient.RestClient.HttpMethod;
+import org.touge.restclient.RestClient.PooledConnectionProvider;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for batches of requests.
+ *
+ */
+public class BatchTestCase extends TestCase {
+	
+	private LocalServer server;
+	private final AtomicInteger concurrent = new AtomicInteger();
+	private final AtomicInteger maxConcurrent = new AtomicInteger();
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/item", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int current = concurrent.incrementAndGet();
+				synchronized (maxConcurrent) {
+					maxConcurrent.set(Math.max(maxConcurrent.get(), current));
+				}
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					concurrent.decrementAndGet();
+				}
+				LocalServer.respond(exchange, 200, exchange.getRequestURI().getQuery().getBytes());
+			}
+		});
+		server.handle("/missing", new LocalServer.FixedHandler(404, "not here"));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * Responses should be returned in the order of the requests, with no more than the requested
+	 * number of requests in flight.
+	 * @throws IOException
+	 */
+	public void testOrderedResults() throws IOException {
+		RestClient client = new RestClient();
+		List<BatchRequest<String>> requests = new ArrayList<BatchRequest<String>>();
+		for (int i = 0; i < 12; ++i)
+			requests.add(new BatchRequest<String>(HttpMethod.GET, server.url("/item?" + i), RestClient.STRING_DESERIALIZER));
+		requests.add(new BatchRequest<String>(HttpMethod.GET, server.url("/missing"), RestClient.STRING_DESERIALIZER));
+		
+		Batch<String> batch = client.batch(requests, 3);
+		assertEquals(13, batch.size());
+		
+		List<AsyncResponse<String>> responses = batch.getResponses();
+		for (int i = 0; i < 12; ++i)
+			assertEquals(Integer.toString(i), responses.get(i).getContent());
+		
+		assertEquals(404, batch.get(12).getCode());
+		assertTrue(batch.get(12).isError());
+		assertTrue(batch.isDone());
+		assertEquals(3, maxConcurrent.get());
+	}
+	
+	/**
+	 * take() should return each response once as it completes.
+	 * @throws IOException
+	 */
+	public void testCompletionOrder() throws IOException {
+		RestClient client = new RestClient();
+		List<BatchRequest<String>> requests = new ArrayList<BatchRequest<String>>();
+		for (int i = 0; i < 10; ++i)
+			requests.add(new BatchRequest<String>(HttpMethod.GET, server.url("/item?" + i), RestClient.STRING_DESERIALIZER));
+		
+		Batch<String> batch = client.batch(requests);
+		Set<String> results = new HashSet<String>();
+		AsyncResponse<String> response;
+		while ((response = batch.take()) != null) {
+			assertTrue(response.isDone());
+			results.add(response.getContent());
+		}
+		
+		assertEquals(10, results.size());
+		assertNull(batch.take());
+		assertTrue(maxConcurrent.get() <= 5);
+	}
+	
+	/**
+	 * Cancelled requests that have not started should not be sent.
+	 * @throws IOException
+	 */
+	public void testCancel() throws IOException {
+		RestClient client = new RestClient();
+		List<BatchRequest<String>> requests = new ArrayList<BatchRequest<String>>();
+		for (int i = 0; i < 10; ++i)
+			requests.add(new BatchRequest<String>(HttpMethod.GET, server.url("/item?" + i), RestClient.STRING_DESERIALIZER));
+		
+		Batch<String> batch = client.batch(requests, 1);
+		batch.cancel(false);
+		
+		int cancelled = 0;
+		while (batch.take() != null)
+			cancelled++;
+		
+		assertEquals(10, cancelled);
+		assertTrue(batch.get(9).isCancelled());
+		assertTrue(maxConcurrent.get() <= 1);
+	}
+	
+	/**
+	 * Cancelling with interruption should stop a running request that waits for a connection.
+	 * @throws Exception
+	 */
+	public void testCancelRunning() throws Exception {
+		PooledConnectionProvider pool = new PooledConnectionProvider(1, 1, 10000);
+		RestClient client = new RestClient(pool);
+		InputStream held = client.callGet(server.url("/item?held"), RestClient.INPUTSTREAM_DESERIALIZER).getContent();
+		
+		List<BatchRequest<String>> requests = new ArrayList<BatchRequest<String>>();
+		requests.add(new BatchRequest<String>(HttpMethod.GET, server.url("/item?0"), RestClient.STRING_DESERIALIZER));
+		Batch<String> batch = client.batch(requests, 1);
+		
+		for (int i = 0; i < 100 && pool.getWaitingCount() == 0; ++i)
+			Thread.sleep(10);
+		assertEquals(1, pool.getWaitingCount());
+		
+		// The worker completes the response once it has stopped waiting, well before the wait timeout.
+		long start = System.currentTimeMillis();
+		batch.cancel(true);
+		assertNotNull(batch.take());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertTrue(batch.get(0).isCancelled());
+		assertEquals(0, pool.getWaitingCount());
+		
+		held.close();
+		assertEquals(0, pool.getActiveCount());
+	}
+}
@@ -0,0 +1,262 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.HttpCachePolicy;
+import org.touge.restclient.RestClient.LRUCache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for HTTP caching semantics.
+ *
+ */
+public class CachePolicyTestCase extends TestCase {
+
+	private LocalServer server;
+	private RestClient client;
+	private LRUCache cache;
+	private volatile int requests;
+	private volatile int notModified;
+	private volatile String version = "v1";
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/etag", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests++;
+				String etag = "\"" + version + "\"";
+				exchange.getResponseHeaders().add("ETag", etag);
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=0");
+				
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					notModified++;
+					LocalServer.respond(exchange, 304, null);
+				} else {
+					LocalServer.respond(exchange, 200, ("body " + version).getBytes());
+				}
+			}
+		});
+		server.handle("/maxage", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests++;
+				exchange.getResponseHeaders().add("Cache-Control", "public, max-age=3600");
+				LocalServer.respond(exchange, 200, "fresh".getBytes());
+			}
+		});
+		server.handle("/swr", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests++;
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=0, stale-while-revalidate=60");
+				LocalServer.respond(exchange, 200, ("body " + version).getBytes());
+			}
+		});
+		server.handle("/nostore", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests++;
+				exchange.getResponseHeaders().add("Cache-Control", "no-store");
+				LocalServer.respond(exchange, 200, "secret".getBytes());
+			}
+		});
+		
+		cache = new LRUCache(1024 * 1024);
+		client = new RestClient();
+		client.setCache(cache);
+		client.setCachePolicy(new HttpCachePolicy());
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * Responses should be served from the cache until max-age has passed.
+	 * @throws IOException
+	 */
+	public void testMaxAge() throws IOException {
+		assertEquals("fresh", client.callGet(server.url("/maxage")));
+		assertEquals("fresh", client.callGet(server.url("/maxage")));
+		assertEquals(1, requests);
+	}
+	
+	/**
+	 * Responses with no-store should not be cached.
+	 * @throws IOException
+	 */
+	public void testNoStore() throws IOException {
+		assertEquals("secret", client.callGet(server.url("/nostore")));
+		assertEquals("secret", client.callGet(server.url("/nostore")));
+		assertEquals(2, requests);
+		assertEquals(0, cache.size());
+	}
+	
+	/**
+	 * Stale responses should be revalidated, and a 304 should be served from the cache.
+	 * @throws IOException
+	 */
+	public void testRevalidation() throws IOException {
+		assertEquals("body v1", client.callGet(server.url("/etag")));
+		assertEquals("body v1", client.callGet(server.url("/etag")));
+		assertEquals(2, requests);
+		assertEquals(1, notModified);
+		
+		version = "v2";
+		assertEquals("body v2", client.callGet(server.url("/etag")));
+		assertEquals(3, requests);
+		assertEquals(1, notModified);
+		
+		assertEquals("body v2", client.callGet(server.url("/etag")));
+		assertEquals(2, notModified);
+	}
+	
+	/**
+	 * Stale responses within the stale-while-revalidate window should be served immediately and replaced by 
+	 * a background request.
+	 * @throws Exception
+	 */
+	public void testStaleWhileRevalidate() throws Exception {
+		assertEquals("body v1", client.callGet(server.url("/swr")));
+		assertEquals(1, requests);
+		
+		version = "v2";
+		assertEquals("body v1", client.callGet(server.url("/swr")));
+		
+		for (int i = 0; i < 100 && !"body v2".equals(new String(cache.get(server.url("/swr")).getContent())); ++i)
+			Thread.sleep(20);
+		assertEquals(2, requests);
+		
+		assertEquals("body v2", client.callGet(server.url("/swr")));
+	}
+	
+	/**
+	 * The stale-while-revalidate window should come from the response, or from the policy if the response has none.
+	 */
+	public void testStaleWindow() {
+		HttpCachePolicy policy = new HttpCachePolicy(0, 30000);
+		long now = System.currentTimeMillis();
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("Date", Collections.singletonList(HttpCachePolicyAccess.format(now - 10000)));
+		
+		assertEquals(30000, policy.getStaleWhileRevalidate(headers));
+		assertTrue(policy.canServeStale(new RestClient.BasicCacheEntry(new byte[0], headers, 200), now));
+		
+		headers.put("Cache-Control", Collections.singletonList("max-age=0, stale-while-revalidate=5"));
+		assertEquals(5000, policy.getStaleWhileRevalidate(headers));
+		assertFalse(policy.canServeStale(new RestClient.BasicCacheEntry(new byte[0], headers, 200), now));
+		
+		headers.put("Cache-Control", Collections.singletonList("max-age=0, must-revalidate"));
+		assertFalse(policy.canServeStale(new RestClient.BasicCacheEntry(new byte[0], headers, 200), now));
+		
+		assertFalse(new HttpCachePolicy().canServeStale(new RestClient.BasicCacheEntry(new byte[0], 
+				Collections.<String, List<String>>emptyMap(), 200), now));
+	}
+	
+	/**
+	 * Exposes the date formatting of HttpCachePolicy to tests.
+	 */
+	private static class HttpCachePolicyAccess extends HttpCachePolicy {
+		static String format(long time) {
+			return formatDate(time);
+		}
+	}
+	
+	/**
+	 * Freshness should be computed from Expires when max-age is absent.
+	 */
+	public void testExpires() {
+		HttpCachePolicy policy = new HttpCachePolicy();
+		long now = System.currentTimeMillis();
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("date", Collections.singletonList("Mon, 01 Jan 2024 00:00:00 GMT"));
+		headers.put("expires", Collections.singletonList("Mon, 01 Jan 2024 00:01:00 GMT"));
+		
+		assertEquals(60000, policy.getFreshnessLifetime(headers));
+		assertFalse(policy.isFresh(new RestClient.BasicCacheEntry(new byte[0], headers, 200), now));
+		
+		headers.put("expires", Collections.singletonList("0"));
+		assertEquals(0, policy.getFreshnessLifetime(headers));
+	}
+	
+	/**
+	 * no-cache should force revalidation regardless of its position relative to max-age.
+	 */
+	public void testNoCacheWithMaxAge() {
+		HttpCachePolicy policy = new HttpCachePolicy();
+		long now = System.currentTimeMillis();
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("date", Collections.singletonList(HttpCachePolicyAccess.format(now)));
+		
+		headers.put("cache-control", Collections.singletonList("max-age=600, no-cache"));
+		assertEquals(0, policy.getFreshnessLifetime(headers));
+		assertFalse(policy.isFresh(new RestClient.BasicCacheEntry(new byte[0], headers, 200), now));
+		
+		headers.put("cache-control", Collections.singletonList("no-cache, max-age=600"));
+		assertEquals(0, policy.getFreshnessLifetime(headers));
+		
+		headers.put("cache-control", Collections.singletonList("max-age=600"));
+		assertEquals(600000, policy.getFreshnessLifetime(headers));
+		assertTrue(policy.isFresh(new RestClient.BasicCacheEntry(new byte[0], headers, 200), now));
+	}
+	
+	/**
+	 * The age of a stored response should not depend on the clock of the server.
+	 */
+	public void testClockSkew() {
+		HttpCachePolicy policy = new HttpCachePolicy();
+		long now = System.currentTimeMillis();
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("Cache-Control", Collections.singletonList("max-age=60"));
+		
+		// Server clock an hour ahead: the age is the time since the response was received.
+		headers.put("Date", Collections.singletonList(HttpCachePolicyAccess.format(now + 3600000)));
+		RestClient.HttpGETCacheEntry entry = policy.createEntry(new byte[0], headers, 200);
+		assertEquals(headers.keySet(), entry.getHeaders().keySet());
+		assertTrue(policy.isFresh(entry, now + 30000));
+		assertFalse(policy.isFresh(entry, now + 90000));
+		
+		// Server clock an hour behind: the apparent age is kept, as the response may have been delayed.
+		headers.put("Date", Collections.singletonList(HttpCachePolicyAccess.format(now - 3600000)));
+		entry = policy.createEntry(new byte[0], headers, 200);
+		assertFalse(policy.isFresh(entry, now));
+		
+		// An Age from a shared cache on the way still counts.
+		headers.put("Age", Collections.singletonList("50"));
+		entry = policy.createEntry(new byte[0], headers, 200);
+		assertFalse(policy.isFresh(entry, now + 30000));
+	}
+	
+	/**
+	 * Directives should only match by their full name.
+	 */
+	public void testDirectiveNames() {
+		HttpCachePolicy policy = new HttpCachePolicy(60000);
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		
+		headers.put("Cache-Control", Collections.singletonList("no-cache-extension"));
+		assertEquals(60000, policy.getFreshnessLifetime(headers));
+		
+		headers.put("Cache-Control", Collections.singletonList("no-store-extension=1"));
+		assertTrue(policy.isStorable(200, headers));
+		
+		headers.put("Cache-Control", Collections.singletonList("No-Cache=\"Set-Cookie\""));
+		assertEquals(0, policy.getFreshnessLifetime(headers));
+	}
+}
@@ -0,0 +1,140 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.CircuitBreakerConnectionProvider;
+import org.touge.restclient.RestClient.CircuitBreakerConnectionProvider.State;
+import org.touge.restclient.RestClient.CircuitOpenException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for CircuitBreakerConnectionProvider.
+ *
+ */
+public class CircuitBreakerTestCase extends TestCase {
+	
+	private LocalServer server;
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile int code = 500;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/upstream", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int n = requests.incrementAndGet();
+				LocalServer.respond(exchange, code == -1 ? (n % 2 == 0 ? 500 : 200) : code, "response".getBytes());
+			}
+		});
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * @return host key of the local server
+	 */
+	private String host() {
+		return "http://127.0.0.1:" + server.getPort();
+	}
+	
+	/**
+	 * Consecutive failures should open the circuit, and a successful probe should close it again.
+	 * @throws Exception
+	 */
+	public void testConsecutiveFailures() throws Exception {
+		CircuitBreakerConnectionProvider breaker = new CircuitBreakerConnectionProvider(3, 200);
+		RestClient client = new RestClient(breaker);
+		
+		for (int i = 0; i < 3; ++i)
+			assertEquals(500, call(client));
+		assertEquals(State.OPEN, breaker.getState(host()));
+		
+		try {
+			call(client);
+			fail("CircuitOpenException expected.");
+		} catch (CircuitOpenException e) {
+			assertEquals(host(), e.getHost());
+		}
+		assertEquals(3, requests.get());
+		assertEquals(1, breaker.getRejectedCount());
+		
+		Thread.sleep(250);
+		assertEquals(500, call(client));
+		assertEquals(State.OPEN, breaker.getState(host()));
+		assertEquals(2, breaker.getOpenedCount());
+		
+		Thread.sleep(250);
+		code = 200;
+		assertEquals(200, call(client));
+		assertEquals(State.CLOSED, breaker.getState(host()));
+		assertEquals(200, call(client));
+	}
+	
+	/**
+	 * The circuit should open when the failure rate of the window reaches the threshold.
+	 * @throws IOException
+	 */
+	public void testFailureRate() throws IOException {
+		CircuitBreakerConnectionProvider breaker = new CircuitBreakerConnectionProvider(null, 100, 0.5, 10, 10000);
+		RestClient client = new RestClient(breaker);
+		code = -1;
+		
+		for (int i = 0; i < 9; ++i)
+			call(client);
+		assertEquals(State.CLOSED, breaker.getState(host()));
+		
+		call(client);
+		assertEquals(State.OPEN, breaker.getState(host()));
+	}
+	
+	/**
+	 * Connection failures should count as failures.
+	 * @throws IOException
+	 */
+	public void testConnectFailure() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		String url = "http://localhost:" + socket.getLocalPort() + "/";
+		socket.close();
+		
+		CircuitBreakerConnectionProvider breaker = new CircuitBreakerConnectionProvider(2, 10000);
+		RestClient client = new RestClient(breaker);
+		for (int i = 0; i < 2; ++i) {
+			try {
+				client.callGet(url);
+				fail("IOException expected.");
+			} catch (CircuitOpenException e) {
+				fail("Circuit should not be open yet.");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		
+		try {
+			client.callGet(url);
+			fail("CircuitOpenException expected.");
+		} catch (CircuitOpenException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * @param client client to call the upstream with
+	 * @return response code
+	 * @throws IOException on I/O error
+	 */
+	private int call(RestClient client) throws IOException {
+		return client.callGet(server.url("/upstream"), RestClient.HTTP_CODE_DESERIALIZER).getContent().intValue();
+	}
+}
@@ -0,0 +1,118 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for coalescing of concurrent GET requests.
+ *
+ */
+public class CoalescingTestCase extends TestCase {
+
+	private static final int CALLERS = 6;
+	
+	private LocalServer server;
+	private RestClient client;
+	private ExecutorService pool;
+	private final AtomicInteger requests = new AtomicInteger();
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/slow", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				LocalServer.respond(exchange, 200, "shared".getBytes());
+			}
+		});
+		
+		client = new RestClient();
+		pool = Executors.newFixedThreadPool(CALLERS);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		pool.shutdownNow();
+		server.stop();
+	}
+	
+	/**
+	 * Concurrent GETs of the same url should result in a single request to the server.
+	 * @throws Exception
+	 */
+	public void testCoalescing() throws Exception {
+		client.setRequestCoalescing(true);
+		
+		for (String body : callConcurrently(null))
+			assertEquals("shared", body);
+		assertEquals(1, requests.get());
+		
+		// Once the request has completed, the next GET goes to the server again.
+		assertEquals("shared", client.callGet(server.url("/slow")));
+		assertEquals(2, requests.get());
+	}
+	
+	/**
+	 * Without coalescing, or with per-request headers, each GET should reach the server.
+	 * @throws Exception
+	 */
+	public void testNotCoalesced() throws Exception {
+		for (String body : callConcurrently(null))
+			assertEquals("shared", body);
+		assertEquals(CALLERS, requests.get());
+		
+		client.setRequestCoalescing(true);
+		for (String body : callConcurrently("text/plain"))
+			assertEquals("shared", body);
+		assertEquals(CALLERS * 2, requests.get());
+	}
+	
+	/**
+	 * @param accept value of Accept header, or null to send no additional headers
+	 * @return response bodies
+	 * @throws Exception on failure
+	 */
+	private List<String> callConcurrently(final String accept) throws Exception {
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < CALLERS; ++i) {
+			futures.add(pool.submit(new Callable<String>() {
+				
+				@Override
+				public String call() throws Exception {
+					if (accept == null)
+						return client.callGet(server.url("/slow"));
+					
+					return client.callGet(server.url("/slow"), Collections.singletonMap("Accept", accept), 
+							RestClient.STRING_DESERIALIZER).getContent();
+				}
+			}));
+		}
+		
+		List<String> bodies = new ArrayList<String>();
+		for (Future<String> future : futures)
+			bodies.add(future.get());
+		
+		return bodies;
+	}
+}
@@ -0,0 +1,204 @@
+package org.touge.restclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.ErrorHandler;
+import org.touge.restclient.RestClient.HttpGETCacheEntry;
+import org.touge.restclient.RestClient.HttpMethod;
+import org.touge.restclient.RestClient.LRUCache;
+import org.touge.restclient.RestClient.ResponseDeserializer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for compressed responses.
+ *
+ */
+public class CompressionTestCase extends TestCase {
+	
+	private static final String BODY = "{\"items\": [1, 2, 3, 4, 5, 6, 7, 8, 9, 10]}";
+	
+	private LocalServer server;
+	private volatile String acceptEncoding;
+	private volatile String contentEncoding;
+	private volatile int received;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/gzip", new EncodingHandler(200, "gzip"));
+		server.handle("/deflate", new EncodingHandler(200, "deflate"));
+		server.handle("/rawdeflate", new EncodingHandler(200, "rawdeflate"));
+		server.handle("/error", new EncodingHandler(500, "gzip"));
+		server.handle("/upload", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+				byte[] body = LocalServer.readBody(exchange);
+				received = body.length;
+				if ("gzip".equals(contentEncoding))
+					body = RestClient.readStream(new GZIPInputStream(new ByteArrayInputStream(body)));
+				
+				LocalServer.respond(exchange, 200, body);
+			}
+		});
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * Compressed responses should only be requested when enabled, and decoded before deserialization.
+	 * @throws IOException
+	 */
+	public void testDecoding() throws IOException {
+		RestClient client = new RestClient();
+		assertEquals(BODY, client.callGet(server.url("/gzip")));
+		assertNull(acceptEncoding);
+		
+		client.setResponseCompression(true);
+		assertEquals(BODY, client.callGet(server.url("/gzip")));
+		assertEquals("gzip, deflate", acceptEncoding);
+		assertEquals(BODY, client.callGet(server.url("/deflate")));
+		assertEquals(BODY, client.callGet(server.url("/rawdeflate")));
+		
+		Map<String, List<String>> headers = client.callGet(server.url("/gzip"), new ResponseDeserializer<Map<String, List<String>>>() {
+			
+			@Override
+			public Map<String, List<String>> deserialize(InputStream input, int responseCode, 
+					Map<String, List<String>> headers) throws IOException {
+				RestClient.readStream(input);
+				return headers;
+			}
+		}).getContent();
+		for (String key : headers.keySet()) {
+			assertFalse("Content-Encoding".equalsIgnoreCase(key));
+			assertFalse("Content-Length".equalsIgnoreCase(key));
+		}
+		
+		assertEquals(200, client.callHead(server.url("/gzip")).getContent().intValue());
+		
+		final String[] message = new String[1];
+		client.setErrorHandler(new ErrorHandler() {
+			
+			@Override
+			public void handleError(int code, String m) throws IOException {
+				message[0] = m;
+			}
+		});
+		client.callGet(server.url("/error"));
+		assertEquals(BODY, message[0]);
+	}
+	
+	/**
+	 * Responses should be cached decoded by default, or as received if the client is set to cache them compressed.
+	 * @throws IOException
+	 */
+	public void testCache() throws IOException {
+		LRUCache cache = new LRUCache(1024 * 1024);
+		RestClient client = new RestClient();
+		client.setResponseCompression(true);
+		client.setCache(cache);
+		
+		assertEquals(BODY, client.callGet(server.url("/gzip")));
+		HttpGETCacheEntry entry = cache.get(server.url("/gzip"));
+		assertEquals(BODY, new String(entry.getContent()));
+		for (String key : entry.getHeaders().keySet())
+			assertFalse("Content-Encoding".equalsIgnoreCase(key));
+		assertEquals(BODY, client.callGet(server.url("/gzip")));
+		
+		cache.clear();
+		client.setCacheCompressed(true);
+		assertEquals(BODY, client.callGet(server.url("/gzip")));
+		entry = cache.get(server.url("/gzip"));
+		assertTrue(entry.getContent().length > 0 && entry.getContent()[0] == (byte) 0x1f);
+		assertEquals(BODY, client.callGet(server.url("/gzip")));
+	}
+	
+	/**
+	 * Request bodies should be compressed unless they are known to be small or already encoded.
+	 * @throws IOException
+	 */
+	public void testRequestCompression() throws IOException {
+		RestClient client = new RestClient();
+		client.setRequestCompression(true);
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; ++i)
+			sb.append(BODY);
+		String body = sb.toString();
+		
+		assertEquals(body, client.callPost(server.url("/upload"), new ByteArrayInputStream(body.getBytes()), 
+				RestClient.STRING_DESERIALIZER).getContent());
+		assertEquals("gzip", contentEncoding);
+		assertTrue(received < body.length() / 10);
+		
+		assertEquals(BODY, client.callPut(server.url("/upload"), new ByteArrayInputStream(BODY.getBytes()), 
+				RestClient.STRING_DESERIALIZER).getContent());
+		assertNull(contentEncoding);
+		
+		assertEquals(body, client.call(HttpMethod.POST, server.url("/upload"), RestClient.STRING_DESERIALIZER, 
+				new ByteArrayInputStream(body.getBytes()), RestClient.toMap("Content-Encoding", "identity")).getContent());
+		assertEquals("identity", contentEncoding);
+	}
+	
+	/**
+	 * Responds with BODY compressed according to the Accept-Encoding of the request.
+	 */
+	private class EncodingHandler implements HttpHandler {
+		private final int code;
+		private final String encoding;
+		
+		public EncodingHandler(int code, String encoding) {
+			this.code = code;
+			this.encoding = encoding;
+		}
+		
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			if (acceptEncoding == null) {
+				LocalServer.respond(exchange, code, BODY.getBytes());
+				return;
+			}
+			
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			OutputStream out;
+			if (encoding.equals("gzip"))
+				out = new GZIPOutputStream(baos);
+			else if (encoding.equals("deflate"))
+				out = new DeflaterOutputStream(baos);
+			else
+				out = new DeflaterOutputStream(baos, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+			out.write(BODY.getBytes());
+			out.close();
+			
+			exchange.getResponseHeaders().add("Content-Encoding", encoding.equals("gzip") ? "gzip" : "deflate");
+			exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+			if (exchange.getRequestMethod().equals("HEAD")) {
+				exchange.sendResponseHeaders(code, -1);
+				exchange.close();
+				return;
+			}
+			
+			LocalServer.respond(exchange, code, baos.toByteArray());
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package org.touge.restclient.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.BasicCacheEntry;
+import org.touge.restclient.RestClient.ByteBufferCacheEntry;
+import org.touge.restclient.RestClient.DiskCache;
+import org.touge.restclient.RestClient.HttpCachePolicy;
+import org.touge.restclient.RestClient.HttpGETCacheEntry;
+import org.touge.restclient.RestClient.TimedCacheEntry;
+
+/**
+ * Tests for the persistent, memory-mapped cache.
+ *
+ */
+public class DiskCacheTestCase extends TestCase {
+
+	private File directory;
+	
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("diskcache", "");
+		directory.delete();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+	
+	/**
+	 * Entries should be readable after the cache is reopened.
+	 * @throws IOException
+	 */
+	public void testPersistence() throws IOException {
+		Map<String, List<String>> headers = Collections.singletonMap("Content-Type", 
+				Collections.singletonList("text/plain"));
+		
+		DiskCache cache = new DiskCache(directory);
+		cache.put("http://localhost/a", new BasicCacheEntry("hello".getBytes(), headers, 200));
+		
+		cache = new DiskCache(directory);
+		HttpGETCacheEntry entry = cache.get("http://localhost/a");
+		assertNotNull(entry);
+		assertTrue(entry instanceof ByteBufferCacheEntry);
+		assertEquals("hello", new String(entry.getContent()));
+		assertEquals(5, ((ByteBufferCacheEntry) entry).getContentBuffer().remaining());
+		assertEquals(200, entry.getResponseCode());
+		assertEquals(Collections.singletonList("text/plain"), entry.getHeaders().get("Content-Type"));
+		assertEquals(cache.getSize(), new File(directory, directory.list()[0]).length());
+		
+		assertNull(cache.get("http://localhost/b"));
+		
+		HttpCachePolicy policy = new HttpCachePolicy();
+		Map<String, List<String>> cacheable = Collections.singletonMap("Cache-Control", 
+				Collections.singletonList("max-age=60"));
+		HttpGETCacheEntry timed = policy.createEntry("hello".getBytes(), cacheable, 200);
+		cache.put("http://localhost/t", timed);
+		entry = new DiskCache(directory).get("http://localhost/t");
+		assertTrue(entry instanceof TimedCacheEntry);
+		assertEquals(((TimedCacheEntry) timed).getResponseTime(), ((TimedCacheEntry) entry).getResponseTime());
+		cache.put("http://localhost/t", null);
+		
+		cache.put("http://localhost/a", null);
+		assertNull(cache.get("http://localhost/a"));
+		assertEquals(0, cache.getSize());
+	}
+	
+	/**
+	 * Least recently used entries should be deleted when the maximum size is exceeded.
+	 * @throws IOException
+	 */
+	public void testEviction() throws IOException {
+		Map<String, List<String>> headers = Collections.emptyMap();
+		DiskCache cache = new DiskCache(directory, 2500);
+		
+		cache.put("a", new BasicCacheEntry(new byte[1000], headers, 200));
+		cache.put("b", new BasicCacheEntry(new byte[1000], headers, 200));
+		
+		// File times have coarse resolution on some file systems, so age the entries explicitly.
+		for (File file : directory.listFiles())
+			file.setLastModified(System.currentTimeMillis() - 60000);
+		
+		assertNotNull(cache.get("a"));
+		cache.put("c", new BasicCacheEntry(new byte[1000], headers, 200));
+		
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertTrue(cache.getSize() <= 2500);
+	}
+	
+	/**
+	 * The use order of entries should be kept in memory, and loaded from the file times when the cache is reopened.
+	 * @throws IOException
+	 */
+	public void testUseOrder() throws IOException {
+		Map<String, List<String>> headers = Collections.emptyMap();
+		DiskCache cache = new DiskCache(directory, 2500);
+		
+		// Written within the resolution of file times, so only the in-memory order tells them apart.
+		cache.put("a", new BasicCacheEntry(new byte[1000], headers, 200));
+		cache.put("b", new BasicCacheEntry(new byte[1000], headers, 200));
+		assertNotNull(cache.get("a"));
+		cache.put("c", new BasicCacheEntry(new byte[1000], headers, 200));
+		
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		
+		long size = cache.getSize();
+		String oldest = directory.list()[0];
+		new File(directory, oldest).setLastModified(System.currentTimeMillis() - 60000);
+		
+		cache = new DiskCache(directory, 2500);
+		assertEquals(size, cache.getSize());
+		cache.put("d", new BasicCacheEntry(new byte[1000], headers, 200));
+		assertFalse(new File(directory, oldest).exists());
+		assertTrue(cache.getSize() <= 2500);
+	}
+	
+	/**
+	 * Cache hits should be served from the disk cache.
+	 * @throws IOException
+	 */
+	public void testClient() throws IOException {
+		LocalServer server = new LocalServer();
+		try {
+			LocalServer.FixedHandler handler = new LocalServer.FixedHandler(200, "cached body");
+			server.handle("/data", handler);
+			
+			RestClient client = new RestClient();
+			client.setCache(new DiskCache(directory));
+			
+			assertEquals("cached body", client.callGet(server.url("/data")));
+			assertEquals("cached body", client.callGet(server.url("/data")));
+			assertEquals(1, handler.getCount());
+			
+			InputStream in = client.callGet(server.url("/data"), RestClient.INPUTSTREAM_DESERIALIZER).getContent();
+			assertEquals(11, in.available());
+			assertEquals(1, handler.getCount());
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.HedgingPolicy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for hedged GET requests.
+ *
+ */
+public class HedgingTestCase extends TestCase {
+
+	private LocalServer server;
+	private LocalServer alternate;
+	private final AtomicInteger requests = new AtomicInteger();
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/first-slow", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (requests.incrementAndGet() == 1) {
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				LocalServer.respond(exchange, 200, ("response " + requests.get()).getBytes());
+			}
+		});
+		server.handle("/slow", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				LocalServer.respond(exchange, 200, "slow".getBytes());
+			}
+		});
+		server.handle("/data", new LocalServer.FixedHandler(200, "data"));
+		
+		alternate = new LocalServer();
+		alternate.handle("/first-slow", new LocalServer.FixedHandler(200, "alternate"));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+		alternate.stop();
+	}
+	
+	/**
+	 * A slow request should be hedged and the response of the hedged request returned.
+	 * @throws IOException
+	 */
+	public void testHedge() throws IOException {
+		HedgingPolicy policy = new HedgingPolicy(100);
+		RestClient client = new RestClient();
+		client.setHedgingPolicy(policy);
+		
+		long start = System.nanoTime();
+		assertEquals("response 2", client.callGet(server.url("/first-slow")));
+		assertTrue((System.nanoTime() - start) / 1000000 < 900);
+		
+		assertEquals(1, policy.getHedgedCount());
+		assertEquals(1, policy.getWonCount());
+	}
+	
+	/**
+	 * Requests answered within the delay should not be hedged.
+	 * @throws IOException
+	 */
+	public void testNoHedge() throws IOException {
+		HedgingPolicy policy = new HedgingPolicy(50, 200, 1000);
+		RestClient client = new RestClient();
+		client.setHedgingPolicy(policy);
+		
+		for (int i = 0; i < 25; ++i)
+			assertEquals("data", client.callGet(server.url("/data")));
+		
+		assertEquals(0, policy.getHedgedCount());
+		assertEquals(25, policy.getLatency().getCount());
+		
+		assertEquals(200, client.callPost(server.url("/data"), "body").getContent().intValue());
+		assertEquals(0, policy.getHedgedCount());
+	}
+	
+	/**
+	 * Hedged requests should be sent to the alternate server.
+	 * @throws IOException
+	 */
+	public void testAlternate() throws IOException {
+		HedgingPolicy policy = new HedgingPolicy(100);
+		policy.addAlternate(server.url(""), alternate.url(""));
+		RestClient client = new RestClient();
+		client.setHedgingPolicy(policy);
+		
+		assertEquals("alternate", client.callGet(server.url("/first-slow")));
+		assertEquals(1, policy.getWonCount());
+	}
+	
+	/**
+	 * A hedged call running on a bounded executor of the client should not wait for threads of that executor.
+	 * @throws Exception
+	 */
+	public void testBoundedExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		
+		try {
+			HedgingPolicy policy = new HedgingPolicy(50);
+			RestClient client = new RestClient();
+			client.setExecutor(executor);
+			client.setHedgingPolicy(policy);
+			
+			String content = client.callGetAsync(server.url("/first-slow"), RestClient.STRING_DESERIALIZER)
+					.toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+			assertEquals("response 2", content);
+			assertEquals(1, policy.getHedgedCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * A call should fail once neither request has been answered within the timeout of the policy.
+	 * @throws IOException
+	 */
+	public void testTimeout() throws IOException {
+		HedgingPolicy policy = new HedgingPolicy(50);
+		policy.setTimeout(200);
+		RestClient client = new RestClient();
+		client.setHedgingPolicy(policy);
+		
+		try {
+			client.callGet(server.url("/slow"));
+			fail("Call should time out.");
+		} catch (SocketTimeoutException e) {
+			// Expected.
+		}
+	}
+	
+	/**
+	 * Only URLs below the base URL of an alternate should be sent to it, not URLs of look-alike hosts.
+	 * @throws IOException
+	 */
+	public void testLookAlikeHost() throws IOException {
+		requests.set(0);
+		HedgingPolicy policy = new HedgingPolicy(100);
+		// A base URL with the port of the server truncated is a prefix of its URLs, but a different server.
+		policy.addAlternate(server.url("").substring(0, server.url("").length() - 1), alternate.url(""));
+		RestClient client = new RestClient();
+		client.setHedgingPolicy(policy);
+		
+		assertEquals("response 2", client.callGet(server.url("/first-slow")));
+		assertEquals(1, policy.getHedgedCount());
+	}
+}
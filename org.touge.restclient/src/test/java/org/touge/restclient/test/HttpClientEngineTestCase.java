@@ -0,0 +1,162 @@
+package org.touge.restclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.HttpCachePolicy;
+import org.touge.restclient.RestClient.HttpClientConnectionProvider;
+import org.touge.restclient.RestClient.LRUCache;
+import org.touge.restclient.RestClient.Response;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for requests sent with HttpClientConnectionProvider.
+ *
+ */
+public class HttpClientEngineTestCase extends TestCase {
+	
+	private LocalServer server;
+	private RestClient client;
+	private volatile String contentLength;
+	private volatile String transferEncoding;
+	private volatile String header;
+	private volatile int requests;
+	private final CompletableFuture<Boolean> aborted = new CompletableFuture<Boolean>();
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/echo", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests++;
+				contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+				transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+				header = exchange.getRequestHeaders().getFirst("X-Test");
+				byte[] body = LocalServer.readBody(exchange);
+				
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				LocalServer.respond(exchange, 200, 
+						(exchange.getRequestMethod() + " " + new String(body, "UTF-8")).getBytes("UTF-8"));
+			}
+		});
+		server.handle("/missing", new LocalServer.FixedHandler(404, "not here"));
+		server.handle("/endless", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					byte[] chunk = new byte[8192];
+					for (long i = 0; i < 1000000 && !aborted.isDone(); ++i)
+						out.write(chunk);
+				} catch (IOException e) {
+					aborted.complete(Boolean.TRUE);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		
+		client = new RestClient(new HttpClientConnectionProvider());
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		aborted.complete(Boolean.FALSE);
+		server.stop();
+	}
+	
+	/**
+	 * Response messages should be the standard reason phrases, and disconnect() should release an exchange 
+	 * whose response body has not been read.
+	 * @throws Exception
+	 */
+	public void testDisconnect() throws Exception {
+		HttpClientConnectionProvider provider = new HttpClientConnectionProvider();
+		
+		HttpURLConnection missing = provider.getConnection(server.url("/missing"));
+		assertEquals(404, missing.getResponseCode());
+		assertEquals("Not Found", missing.getResponseMessage());
+		missing.disconnect();
+		
+		HttpURLConnection endless = provider.getConnection(server.url("/endless"));
+		assertEquals(200, endless.getResponseCode());
+		endless.disconnect();
+		assertTrue(aborted.get(10, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Methods, headers and buffered bodies should be passed to the HttpClient.
+	 * @throws IOException
+	 */
+	public void testRequests() throws IOException {
+		assertEquals("GET ", client.callGet(server.url("/echo"), 
+				RestClient.toMap("X-Test", "value"), RestClient.STRING_DESERIALIZER).getContent());
+		assertEquals("value", header);
+		
+		assertEquals("POST body", client.callPost(server.url("/echo"), 
+				new ByteArrayInputStream("body".getBytes()), RestClient.STRING_DESERIALIZER).getContent());
+		assertEquals("4", contentLength);
+		assertEquals("PUT data", client.callPut(server.url("/echo"), new ByteArrayInputStream("data".getBytes()), 
+				RestClient.STRING_DESERIALIZER).getContent());
+		assertEquals("DELETE ", client.callDelete(server.url("/echo"), RestClient.STRING_DESERIALIZER).getContent());
+		assertEquals(200, client.callHead(server.url("/echo")).getContent().intValue());
+		
+		assertEquals(404, client.callGet(server.url("/missing"), RestClient.HTTP_CODE_DESERIALIZER).getContent().intValue());
+		
+		Response<InputStream> response = client.callGet(server.url("/missing"), RestClient.INPUTSTREAM_DESERIALIZER);
+		assertEquals(404, response.getCode());
+		assertEquals("not here", new String(RestClient.readStream(response.getConnection().getErrorStream())));
+	}
+	
+	/**
+	 * Streamed bodies should be sent while they are written, chunked or with a fixed length.
+	 * @throws IOException
+	 */
+	public void testStreamingBody() throws IOException {
+		client.setStreamingMode(true);
+		
+		byte[] body = new byte[1024 * 1024];
+		InputStream in = new ByteArrayInputStream(body);
+		String response = client.callPost(server.url("/echo"), in, RestClient.STRING_DESERIALIZER).getContent();
+		assertEquals(5 + body.length, response.length());
+		assertEquals(Integer.toString(body.length), contentLength);
+		
+		response = client.callPost(server.url("/echo"), new InputStream() {
+			private int remaining = 100000;
+			
+			@Override
+			public int read() throws IOException {
+				return remaining-- > 0 ? 'x' : -1;
+			}
+		}, RestClient.STRING_DESERIALIZER).getContent();
+		assertEquals(5 + 100000, response.length());
+		assertEquals("chunked", transferEncoding);
+	}
+	
+	/**
+	 * Responses should be cached as with the default connections.
+	 * @throws IOException
+	 */
+	public void testCache() throws IOException {
+		client.setCache(new LRUCache(1024 * 1024));
+		client.setCachePolicy(new HttpCachePolicy());
+		
+		assertEquals("GET ", client.callGet(server.url("/echo")));
+		assertEquals("GET ", client.callGet(server.url("/echo")));
+		assertEquals(1, requests);
+	}
+}
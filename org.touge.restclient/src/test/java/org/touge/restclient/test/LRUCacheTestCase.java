@@ -0,0 +1,117 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.BasicCacheEntry;
+import org.touge.restclient.RestClient.LRUCache;
+
+/**
+ * Tests for the bounded LRU cache.
+ *
+ */
+public class LRUCacheTestCase extends TestCase {
+
+	private static final Map<String, List<String>> NO_HEADERS = Collections.emptyMap();
+	
+	/**
+	 * Least recently used entries should be evicted when the weight limit is reached.
+	 */
+	public void testEviction() {
+		LRUCache cache = new LRUCache(30);
+		
+		cache.put("a", new BasicCacheEntry(new byte[10], NO_HEADERS, 200));
+		cache.put("b", new BasicCacheEntry(new byte[10], NO_HEADERS, 200));
+		cache.put("c", new BasicCacheEntry(new byte[10], NO_HEADERS, 200));
+		assertEquals(30, cache.getWeight());
+		
+		// Touch a so that b is the eldest.
+		assertNotNull(cache.get("a"));
+		cache.put("d", new BasicCacheEntry(new byte[10], NO_HEADERS, 200));
+		
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertNotNull(cache.get("d"));
+		assertEquals(30, cache.getWeight());
+		assertEquals(1, cache.getEvictionCount());
+		
+		// Replacing an entry adjusts the weight.
+		cache.put("a", new BasicCacheEntry(new byte[5], NO_HEADERS, 200));
+		assertEquals(25, cache.getWeight());
+		
+		// Entries larger than the cache are not stored.
+		cache.put("big", new BasicCacheEntry(new byte[31], NO_HEADERS, 200));
+		assertNull(cache.get("big"));
+		assertEquals(3, cache.size());
+		
+		// Null removes.
+		cache.put("a", null);
+		assertNull(cache.get("a"));
+		assertEquals(20, cache.getWeight());
+	}
+	
+	/**
+	 * Concurrent access should never exceed the weight limit.
+	 * @throws InterruptedException 
+	 */
+	public void testConcurrentAccess() throws InterruptedException {
+		final LRUCache cache = new LRUCache(1000);
+		List<Thread> threads = new ArrayList<Thread>();
+		
+		for (int t = 0; t < 8; ++t) {
+			final int seed = t;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 5000; ++i) {
+						String key = Integer.toString((i * 31 + seed) % 200);
+						if (cache.get(key) == null)
+							cache.put(key, new BasicCacheEntry(new byte[i % 50], NO_HEADERS, 200));
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		
+		for (Thread thread : threads)
+			thread.join();
+		
+		assertTrue(cache.getWeight() <= cache.getMaxWeight());
+		assertEquals(8 * 5000, cache.getHitCount() + cache.getMissCount());
+	}
+	
+	/**
+	 * GETs should be served from the cache after the first request.
+	 * @throws IOException
+	 */
+	public void testClientCache() throws IOException {
+		LocalServer server = new LocalServer();
+		LocalServer.FixedHandler handler = new LocalServer.FixedHandler(200, "cached body");
+		server.handle("/resource", handler);
+		
+		try {
+			RestClient client = new RestClient();
+			client.setCache(new LRUCache(1024 * 1024));
+			
+			assertEquals("cached body", client.callGet(server.url("/resource")));
+			assertEquals("cached body", client.callGet(server.url("/resource")));
+			assertEquals(1, handler.getCount());
+			
+			// POST responses are not cached.
+			client.callPost(server.url("/resource"), "x").getContent();
+			assertEquals(2, handler.getCount());
+			assertEquals("cached body", client.callGet(server.url("/resource")));
+			assertEquals(2, handler.getCount());
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.LoadBalancingConnectionProvider;
+import org.touge.restclient.RestClient.LoadBalancingConnectionProvider.Strategy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for spreading requests over endpoints with LoadBalancingConnectionProvider.
+ *
+ */
+public class LoadBalancingTestCase extends TestCase {
+
+	private LocalServer a;
+	private LocalServer b;
+	
+	@Override
+	protected void setUp() throws Exception {
+		a = new LocalServer();
+		a.handle("/name", new LocalServer.FixedHandler(200, "a"));
+		a.handle("/slow", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				LocalServer.respond(exchange, 200, "slow".getBytes());
+			}
+		});
+		
+		b = new LocalServer();
+		b.handle("/name", new LocalServer.FixedHandler(200, "b"));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		a.stop();
+		b.stop();
+	}
+	
+	/**
+	 * Requests to the base URL should be sent to each endpoint in turn, others passed through.
+	 * @throws IOException
+	 */
+	public void testRoundRobin() throws IOException {
+		RestClient client = new RestClient(new LoadBalancingConnectionProvider("http://backend", 
+				Arrays.asList(a.url(""), b.url("")), Strategy.ROUND_ROBIN));
+		
+		assertEquals("a", client.callGet(client.buildURL("backend", "name")));
+		assertEquals("b", client.callGet(client.buildURL("backend", "name")));
+		assertEquals("a", client.callGet(client.buildURL("backend", "name")));
+		assertEquals("b", client.callGet(b.url("/name")));
+		assertEquals("b", client.callGet(client.buildURL("backend", "name")));
+	}
+	
+	/**
+	 * URLs of look-alike hosts and ports should be passed through rather than rewritten.
+	 * @throws IOException
+	 */
+	public void testLookAlikeHost() throws IOException {
+		String base = "http://127.0.0.1:" + String.valueOf(a.getPort()).substring(0, 2);
+		RestClient client = new RestClient(new LoadBalancingConnectionProvider(base, 
+				Arrays.asList(b.url("")), Strategy.ROUND_ROBIN));
+		
+		assertEquals("a", client.callGet(a.url("/name")));
+		
+		client = new RestClient(new LoadBalancingConnectionProvider("http://localhost", 
+				Arrays.asList(b.url("")), Strategy.ROUND_ROBIN));
+		assertEquals("a", client.callGet(a.url("/name").replace("127.0.0.1", "localhost")));
+		assertEquals("b", client.callGet("http://LOCALHOST/name"));
+	}
+	
+	/**
+	 * An endpoint that fails should be ejected.
+	 * @throws IOException
+	 */
+	public void testEjection() throws IOException {
+		LocalServer dead = new LocalServer();
+		String deadUrl = dead.url("");
+		dead.stop();
+		
+		LoadBalancingConnectionProvider provider = new LoadBalancingConnectionProvider("http://backend", 
+				Arrays.asList(a.url(""), deadUrl), Strategy.ROUND_ROBIN);
+		provider.setEjection(1, 60000);
+		RestClient client = new RestClient(provider);
+		
+		assertEquals("a", client.callGet("http://backend/name"));
+		try {
+			client.callGet("http://backend/name");
+			fail("Request to a stopped endpoint should fail.");
+		} catch (IOException e) {
+			assertTrue(provider.isEjected(deadUrl));
+		}
+		
+		for (int i = 0; i < 4; ++i)
+			assertEquals("a", client.callGet("http://backend/name"));
+		
+		assertEquals(1, provider.getEjectedCount());
+		assertEquals(0, provider.getOutstanding(deadUrl));
+		assertEquals(0, provider.getOutstanding(a.url("")));
+	}
+	
+	/**
+	 * Requests should avoid an endpoint that is busy with a slow request.
+	 * @throws Exception
+	 */
+	public void testLeastOutstanding() throws Exception {
+		b.handle("/slow", new LocalServer.FixedHandler(200, "fast"));
+		final LoadBalancingConnectionProvider provider = new LoadBalancingConnectionProvider("http://backend", 
+				Arrays.asList(a.url(""), b.url("")), Strategy.LEAST_OUTSTANDING);
+		final RestClient client = new RestClient(provider);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		
+		try {
+			Future<String> slow = executor.submit(new Callable<String>() {
+				
+				@Override
+				public String call() throws Exception {
+					return client.callGet("http://backend/slow");
+				}
+			});
+			
+			while (provider.getOutstanding(a.url("")) == 0)
+				Thread.sleep(10);
+			
+			for (int i = 0; i < 3; ++i)
+				assertEquals("fast", client.callGet("http://backend/slow"));
+			
+			assertEquals("slow", slow.get());
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		assertEquals(0, provider.getOutstanding(a.url("")));
+	}
+}
@@ -0,0 +1,128 @@
+package org.touge.restclient.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server for tests that should not depend on external hosts.
+ *
+ */
+public class LocalServer {
+
+	private final HttpServer server;
+
+	/**
+	 * Start a server on a free port of the loopback interface.
+	 * @throws IOException on I/O error
+	 */
+	public LocalServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+	
+	/**
+	 * @param path context path
+	 * @param handler handler for requests to path
+	 * @return this
+	 */
+	public LocalServer handle(String path, HttpHandler handler) {
+		server.createContext(path, handler);
+		return this;
+	}
+	
+	/**
+	 * @param path path of resource
+	 * @return absolute URL of resource on this server
+	 */
+	public String url(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+	
+	/**
+	 * @return port the server is listening on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	public void stop() {
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+	
+	/**
+	 * Send a complete response.
+	 * 
+	 * @param exchange exchange to respond to
+	 * @param code HTTP response code
+	 * @param body response body, may be null
+	 * @throws IOException on I/O error
+	 */
+	public static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+		if (body == null || body.length == 0) {
+			exchange.sendResponseHeaders(code, -1);
+		} else {
+			exchange.sendResponseHeaders(code, body.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(body);
+			os.close();
+		}
+		exchange.close();
+	}
+	
+	/**
+	 * Read the complete request body.
+	 * 
+	 * @param exchange exchange to read from
+	 * @return request body
+	 * @throws IOException on I/O error
+	 */
+	public static byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buff = new byte[8192];
+		int read;
+		while ((read = in.read(buff)) > 0)
+			baos.write(buff, 0, read);
+		
+		return baos.toByteArray();
+	}
+	
+	/**
+	 * A handler that always sends the same response.
+	 */
+	public static class FixedHandler implements HttpHandler {
+		private final int code;
+		private final byte[] body;
+		private volatile int count;
+
+		public FixedHandler(int code, String body) {
+			this.code = code;
+			this.body = body == null ? null : body.getBytes();
+		}
+		
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			count++;
+			readBody(exchange);
+			respond(exchange, code, body);
+		}
+		
+		/**
+		 * @return number of requests handled
+		 */
+		public int getCount() {
+			return count;
+		}
+	}
+}
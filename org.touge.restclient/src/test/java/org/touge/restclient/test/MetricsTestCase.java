@@ -0,0 +1,138 @@
+package org.touge.restclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.CacheStatus;
+import org.touge.restclient.RestClient.HttpMethod;
+import org.touge.restclient.RestClient.LRUCache;
+import org.touge.restclient.RestClient.RequestEvent;
+import org.touge.restclient.RestClient.RequestListener;
+import org.touge.restclient.RestClient.RequestMetrics;
+import org.touge.restclient.RestClient.RequestStatistics;
+import org.touge.restclient.RestClient.ResolvingConnectionProvider;
+import org.touge.restclient.RestClient.StaticHostResolver;
+
+/**
+ * Tests for request events and metrics.
+ *
+ */
+public class MetricsTestCase extends TestCase {
+
+	private LocalServer server;
+	private RestClient client;
+	private RequestStatistics statistics;
+	private final List<RequestEvent> events = new ArrayList<RequestEvent>();
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/data", new LocalServer.FixedHandler(200, "0123456789"));
+		server.handle("/missing", new LocalServer.FixedHandler(404, "not here"));
+		server.handle("/upload", new LocalServer.FixedHandler(200, null));
+		
+		statistics = new RequestStatistics();
+		client = new RestClient();
+		client.setRequestListener(new RequestListener() {
+			
+			@Override
+			public void requestCompleted(RequestEvent event) {
+				events.add(event);
+				statistics.requestCompleted(event);
+			}
+		});
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * A GET should report its timings, size and response code, and cache hits should be counted.
+	 * @throws IOException
+	 */
+	public void testGet() throws IOException {
+		client.setCache(new LRUCache(1024));
+		
+		assertEquals("0123456789", client.callGet(server.url("/data")));
+		assertEquals("0123456789", client.callGet(server.url("/data")));
+		assertEquals(2, events.size());
+		
+		RequestEvent miss = events.get(0);
+		assertEquals("127.0.0.1", miss.getHost());
+		assertEquals(HttpMethod.GET, miss.getMethod());
+		assertEquals(200, miss.getResponseCode());
+		assertEquals(CacheStatus.MISS, miss.getCacheStatus());
+		assertEquals(10, miss.getBytesReceived());
+		assertEquals(-1, miss.getDnsNanos());
+		assertTrue(miss.getConnectNanos() >= 0);
+		assertTrue(miss.getFirstByteNanos() >= miss.getConnectNanos());
+		assertTrue(miss.getTotalNanos() >= miss.getFirstByteNanos());
+		assertNull(miss.getFailure());
+		
+		RequestEvent hit = events.get(1);
+		assertEquals(CacheStatus.HIT, hit.getCacheStatus());
+		assertEquals(-1, hit.getConnectNanos());
+		assertEquals(0, hit.getBytesReceived());
+		
+		RequestMetrics metrics = statistics.getMetrics("127.0.0.1", HttpMethod.GET);
+		assertEquals(2, metrics.getRequestCount());
+		assertEquals(1, metrics.getCacheHitCount());
+		assertEquals(1, metrics.getCacheMissCount());
+		assertEquals(2, metrics.getResponseCodeCount(200));
+		assertEquals(10, metrics.getBytesReceived());
+		assertEquals(1, metrics.getConnectLatency().getCount());
+		assertEquals(2, metrics.getTotalLatency().getCount());
+		assertTrue(metrics.getTotalLatency().getPercentile(99) >= metrics.getTotalLatency().getPercentile(50));
+		assertTrue(metrics.getTotalLatency().getPercentile(100) <= metrics.getTotalLatency().getMax());
+	}
+	
+	/**
+	 * Bytes sent, error codes and failures should be recorded.
+	 * @throws IOException
+	 */
+	public void testPostAndErrors() throws IOException {
+		assertEquals(200, client.callPost(server.url("/upload"), new ByteArrayInputStream(new byte[100])).getContent().intValue());
+		assertEquals(100, events.get(0).getBytesSent());
+		assertEquals(CacheStatus.NONE, events.get(0).getCacheStatus());
+		
+		client.callGet(server.url("/missing"));
+		assertEquals(404, events.get(1).getResponseCode());
+		assertEquals(1, statistics.getMetrics("127.0.0.1", HttpMethod.GET).getResponseCodeCount(404));
+		
+		int port = server.getPort();
+		server.stop();
+		try {
+			client.callGet("http://127.0.0.1:" + port + "/data");
+			fail("Connection should be refused.");
+		} catch (IOException e) {
+			assertSame(e, events.get(2).getFailure());
+			assertEquals(-1, events.get(2).getResponseCode());
+		}
+		
+		assertEquals(1, statistics.getMetrics("127.0.0.1", HttpMethod.GET).getFailureCount());
+		assertEquals(2, statistics.getMetrics().size());
+		server = new LocalServer();
+	}
+	
+	/**
+	 * The DNS time should be that of the resolver of a ResolvingConnectionProvider.
+	 * @throws IOException
+	 */
+	public void testResolvedHost() throws IOException {
+		StaticHostResolver resolver = new StaticHostResolver();
+		resolver.add("service", "127.0.0.1");
+		client.setConnectionProvider(new ResolvingConnectionProvider(resolver));
+		
+		assertEquals("0123456789", client.callGet("http://service:" + server.getPort() + "/data"));
+		assertEquals("service", events.get(0).getHost());
+		assertTrue(events.get(0).getDnsNanos() >= 0);
+		assertEquals(1, statistics.getMetrics("service", HttpMethod.GET).getDnsLatency().getCount());
+	}
+}
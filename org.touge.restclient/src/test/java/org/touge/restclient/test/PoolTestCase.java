@@ -0,0 +1,190 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.PooledConnectionProvider;
+import org.touge.restclient.RestClient.RequestRejectedException;
+import org.touge.restclient.RestClient.Response;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for the connection limits of PooledConnectionProvider.
+ *
+ */
+public class PoolTestCase extends TestCase {
+
+	private LocalServer server;
+	private final AtomicInteger concurrent = new AtomicInteger();
+	private final AtomicInteger maxConcurrent = new AtomicInteger();
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/slow", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int current = concurrent.incrementAndGet();
+				synchronized (maxConcurrent) {
+					maxConcurrent.set(Math.max(maxConcurrent.get(), current));
+				}
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					concurrent.decrementAndGet();
+				}
+				LocalServer.respond(exchange, 200, "slow".getBytes());
+			}
+		});
+		server.handle("/data", new LocalServer.FixedHandler(200, "data"));
+		server.handle("/missing", new LocalServer.FixedHandler(404, "not here"));
+		server.handle("/empty", new LocalServer.FixedHandler(404, null));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * Requests beyond the per-host limit should wait for a connection to be released.
+	 * @throws Exception
+	 */
+	public void testPerHostLimit() throws Exception {
+		final PooledConnectionProvider pool = new PooledConnectionProvider(2, 10, 5000);
+		final RestClient client = new RestClient(pool);
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 6; ++i) {
+				results.add(executor.submit(new Callable<String>() {
+					
+					@Override
+					public String call() throws Exception {
+						return client.callGet(server.url("/slow"));
+					}
+				}));
+			}
+			
+			for (Future<String> result : results)
+				assertEquals("slow", result.get());
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		assertEquals(2, maxConcurrent.get());
+		assertEquals(0, pool.getActiveCount());
+		assertEquals(6, pool.getAcquiredCount());
+		assertEquals(0, pool.getRejectedCount());
+	}
+	
+	/**
+	 * A request should be rejected if no connection is released within the wait timeout, and streams
+	 * returned to the caller should hold their connection until closed.
+	 * @throws IOException
+	 */
+	public void testRejection() throws IOException {
+		PooledConnectionProvider pool = new PooledConnectionProvider(1, 10, 100);
+		RestClient client = new RestClient(pool);
+		
+		InputStream held = client.callGet(server.url("/data"), RestClient.INPUTSTREAM_DESERIALIZER).getContent();
+		assertEquals(1, pool.getActiveCount());
+		
+		try {
+			client.callGet(server.url("/data"));
+			fail("Request should be rejected.");
+		} catch (RequestRejectedException e) {
+			assertEquals(1, pool.getRejectedCount());
+		}
+		
+		held.close();
+		assertEquals(0, pool.getActiveCount());
+		assertEquals("data", client.callGet(server.url("/data")));
+	}
+	
+	/**
+	 * Connections should be released after HEAD, POST and error responses, and idle hosts evicted.
+	 * @throws IOException
+	 */
+	public void testRelease() throws IOException {
+		PooledConnectionProvider pool = new PooledConnectionProvider(1, 1, 100);
+		RestClient client = new RestClient(pool);
+		
+		assertEquals(200, client.callHead(server.url("/data")).getContent().intValue());
+		assertEquals(0, pool.getActiveCount());
+		
+		assertEquals(200, client.callPost(server.url("/data"), "body").getContent().intValue());
+		assertEquals(0, pool.getActiveCount());
+		
+		client.callGet(server.url("/missing"));
+		assertEquals(0, pool.getActiveCount());
+		
+		assertEquals(404, client.callGet(server.url("/missing"), RestClient.HTTP_CODE_DESERIALIZER).getContent().intValue());
+		assertEquals(0, pool.getActiveCount());
+		
+		assertEquals(1, pool.getHostCount());
+		pool.setIdleTimeout(0);
+		pool.evictIdle();
+		assertEquals(0, pool.getHostCount());
+	}
+	
+	/**
+	 * Connections should be released after error responses without a body.
+	 * @throws IOException
+	 */
+	public void testReleaseEmptyError() throws IOException {
+		PooledConnectionProvider pool = new PooledConnectionProvider(1, 1, 200);
+		RestClient client = new RestClient(pool);
+		
+		client.callGet(server.url("/empty"));
+		assertEquals(0, pool.getActiveCount());
+		
+		assertEquals(404, client.callGet(server.url("/empty"), RestClient.HTTP_CODE_DESERIALIZER).getContent().intValue());
+		assertEquals(0, pool.getActiveCount());
+		
+		assertEquals("data", client.callGet(server.url("/data")));
+		assertEquals(0, pool.getRejectedCount());
+	}
+	
+	/**
+	 * Checking the response code of the short-form calls should release the connection without reading the content.
+	 * @throws IOException
+	 */
+	public void testResponseCodeOnly() throws IOException {
+		PooledConnectionProvider pool = new PooledConnectionProvider(1, 1, 300);
+		RestClient client = new RestClient(pool);
+		
+		for (int i = 0; i < 2; ++i) {
+			Response<Integer> rc = client.callPost(server.url("/data"), "My POST content");
+			assertFalse(rc.isError());
+		}
+		
+		for (int i = 0; i < 2; ++i) {
+			Response<Integer> rc = client.callDelete(server.url("/missing"));
+			assertTrue(rc.isError());
+			assertEquals("not here", rc.getErrorMessage());
+		}
+		
+		for (int i = 0; i < 2; ++i)
+			assertFalse(client.callHead(server.url("/data")).isError());
+		
+		assertEquals(0, pool.getActiveCount());
+		assertEquals(0, pool.getRejectedCount());
+	}
+}
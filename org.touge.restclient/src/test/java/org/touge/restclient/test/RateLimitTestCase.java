@@ -0,0 +1,108 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.PooledConnectionProvider;
+import org.touge.restclient.RestClient.RateLimitingConnectionProvider;
+import org.touge.restclient.RestClient.RequestRejectedException;
+
+/**
+ * Tests for the token buckets of RateLimitingConnectionProvider.
+ *
+ */
+public class RateLimitTestCase extends TestCase {
+
+	private LocalServer server;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/data", new LocalServer.FixedHandler(200, "data"));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * Requests beyond the burst should wait for the bucket to refill.
+	 * @throws IOException
+	 */
+	public void testPacing() throws IOException {
+		// A permit every 200ms, longer than a local request takes even on a cold JVM.
+		RateLimitingConnectionProvider limiter = new RateLimitingConnectionProvider(5, 1, 1000);
+		RestClient client = new RestClient(limiter);
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < 4; ++i)
+			assertEquals("data", client.callGet(server.url("/data")));
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		
+		assertTrue("Requests were not paced: " + elapsed + "ms", elapsed >= 580);
+		assertEquals(4, limiter.getAcquiredCount());
+		assertEquals(3, limiter.getDelayedCount());
+		assertEquals(0, limiter.getRejectedCount());
+	}
+	
+	/**
+	 * Requests beyond the burst should be rejected immediately without a maximum wait.
+	 * @throws IOException
+	 */
+	public void testRejection() throws IOException {
+		RateLimitingConnectionProvider limiter = new RateLimitingConnectionProvider(1, 2, 0);
+		RestClient client = new RestClient(limiter);
+		
+		assertEquals("data", client.callGet(server.url("/data")));
+		assertEquals("data", client.callGet(server.url("/data")));
+		
+		try {
+			client.callGet(server.url("/data"));
+			fail("Request should be rejected.");
+		} catch (RequestRejectedException e) {
+			assertEquals(1, limiter.getRejectedCount());
+		}
+	}
+	
+	/**
+	 * A host limit should apply to its host only, and a host rejection should not consume a client permit.
+	 * @throws IOException
+	 */
+	public void testHostLimit() throws IOException {
+		RateLimitingConnectionProvider limiter = new RateLimitingConnectionProvider(1, 3, 0);
+		limiter.setHostLimit("http://127.0.0.1:" + server.getPort(), 1, 1);
+		RestClient client = new RestClient(limiter);
+		
+		assertEquals("data", client.callGet(server.url("/data")));
+		
+		try {
+			client.callGet(server.url("/data"));
+			fail("Request should be rejected.");
+		} catch (RequestRejectedException e) {
+			assertEquals(1, limiter.getRejectedCount());
+		}
+		
+		String other = server.url("/data").replace("127.0.0.1", "localhost");
+		assertEquals("data", client.callGet(other));
+		assertEquals("data", client.callGet(other));
+		assertEquals(3, limiter.getAcquiredCount());
+	}
+	
+	/**
+	 * A bulkhead of a pool should admit requests again once their response code has been checked.
+	 * @throws IOException
+	 */
+	public void testBulkhead() throws IOException {
+		PooledConnectionProvider pool = new PooledConnectionProvider(1, 1, 0);
+		RestClient client = new RestClient(new RateLimitingConnectionProvider(pool, 1000, 100, 1000));
+		
+		for (int i = 0; i < 5; ++i)
+			assertFalse(client.callPost(server.url("/data"), "body").isError());
+		
+		assertEquals(0, pool.getActiveCount());
+		assertEquals(0, pool.getRejectedCount());
+	}
+}
@@ -0,0 +1,116 @@
+package org.touge.restclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+
+/**
+ * Tests for reading streams.
+ *
+ */
+public class ReadStreamTestCase extends TestCase {
+	
+	/**
+	 * Content should be read completely whether the expected length is right, too small, too large or unknown.
+	 * @throws IOException
+	 */
+	public void testExpectedLength() throws IOException {
+		byte[] content = createContent(100000);
+		
+		assertTrue(Arrays.equals(content, RestClient.readStream(trickle(content), content.length)));
+		assertTrue(Arrays.equals(content, RestClient.readStream(trickle(content), 10)));
+		assertTrue(Arrays.equals(content, RestClient.readStream(trickle(content), 0)));
+		assertTrue(Arrays.equals(content, RestClient.readStream(trickle(content), 200000)));
+		assertTrue(Arrays.equals(content, RestClient.readStream(trickle(content), -1)));
+		assertTrue(Arrays.equals(content, RestClient.readStream(new ByteArrayInputStream(content))));
+		
+		assertEquals(0, RestClient.readStream(trickle(new byte[0]), 5).length);
+		assertEquals(0, RestClient.readStream(trickle(new byte[0]), -1).length);
+		assertNull(RestClient.readStream(null));
+	}
+	
+	/**
+	 * Content of unknown length should be read completely around the size of the pooled buffer, and the returned
+	 * arrays should not share the pooled buffer.
+	 * @throws IOException
+	 */
+	public void testUnknownLength() throws IOException {
+		int[] sizes = { 1, 16383, 16384, 16385, 32768, 50000 };
+		byte[][] results = new byte[sizes.length][];
+		
+		for (int i = 0; i < sizes.length; ++i) {
+			byte[] content = createContent(sizes[i]);
+			results[i] = RestClient.readStream(trickle(content), -1);
+			assertTrue(Arrays.equals(content, results[i]));
+		}
+		
+		for (int i = 0; i < sizes.length; ++i)
+			assertTrue(Arrays.equals(createContent(sizes[i]), results[i]));
+	}
+	
+	/**
+	 * Concurrent reads should not share buffers.
+	 * @throws Exception
+	 */
+	public void testConcurrentRead() throws Exception {
+		Thread[] threads = new Thread[8];
+		final boolean[] ok = new boolean[threads.length];
+		for (int i = 0; i < threads.length; ++i) {
+			final int index = i;
+			threads[i] = new Thread() {
+				
+				@Override
+				public void run() {
+					try {
+						for (int n = 0; n < 50; ++n) {
+							byte[] content = createContent(20000 + index * 1000 + n);
+							if (!Arrays.equals(content, RestClient.readStream(trickle(content), -1)))
+								return;
+						}
+						ok[index] = true;
+					} catch (IOException e) {
+						// Reported as not ok.
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i].join();
+			assertTrue(ok[i]);
+		}
+	}
+	
+	/**
+	 * @param size size of content
+	 * @return content that differs at every position within a buffer
+	 */
+	private static byte[] createContent(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; ++i)
+			content[i] = (byte) (i * 31 + size);
+		
+		return content;
+	}
+	
+	/**
+	 * @param content content of stream
+	 * @return stream that returns at most 1000 bytes per read, like a network stream
+	 */
+	private static InputStream trickle(byte[] content) {
+		return new FilterInputStream(new ByteArrayInputStream(content)) {
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 1000));
+			}
+		};
+	}
+}
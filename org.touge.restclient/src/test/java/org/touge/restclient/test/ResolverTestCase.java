@@ -0,0 +1,165 @@
+package org.touge.restclient.test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.CachingHostResolver;
+import org.touge.restclient.RestClient.ConnectionProvider;
+import org.touge.restclient.RestClient.DelegatingConnection;
+import org.touge.restclient.RestClient.HostResolver;
+import org.touge.restclient.RestClient.HttpClientConnectionProvider;
+import org.touge.restclient.RestClient.PooledConnectionProvider;
+import org.touge.restclient.RestClient.ResolvingConnectionProvider;
+import org.touge.restclient.RestClient.StaticHostResolver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for host resolution with ResolvingConnectionProvider and CachingHostResolver.
+ *
+ */
+public class ResolverTestCase extends TestCase {
+
+	private LocalServer server;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/data", new LocalServer.FixedHandler(200, "data"));
+		server.handle("/host", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				LocalServer.respond(exchange, 200, exchange.getRequestHeaders().getFirst("Host").getBytes());
+			}
+		});
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * A host name should be resolved by the resolver, and the next address tried when connecting fails.
+	 * @throws IOException
+	 */
+	public void testFailover() throws IOException {
+		StaticHostResolver resolver = new StaticHostResolver();
+		// The server only listens on 127.0.0.1, so connections to 127.0.0.2 are refused.
+		resolver.add("service", "127.0.0.2", "127.0.0.1");
+		ResolvingConnectionProvider provider = new ResolvingConnectionProvider(resolver);
+		RestClient client = new RestClient(provider);
+		
+		assertEquals("data", client.callGet("http://service:" + server.getPort() + "/data"));
+		assertEquals(1, provider.getFailoverCount());
+		
+		assertEquals(200, client.callPost("http://service:" + server.getPort() + "/data", "body").getContent().intValue());
+		assertEquals(2, provider.getFailoverCount());
+		
+		assertEquals("service:" + server.getPort(), client.callGet("http://service:" + server.getPort() + "/host"));
+		assertEquals(0, provider.getPassedThroughCount());
+		
+		try {
+			client.callGet("http://unknown:" + server.getPort() + "/data");
+			fail("Unknown host should not be resolved.");
+		} catch (UnknownHostException e) {
+			// Expected.
+		}
+	}
+	
+	/**
+	 * Requests whose connection drops the Host header should be passed through rather than sent with the address
+	 * as the Host.
+	 * @throws IOException
+	 */
+	public void testHostHeaderDropped() throws IOException {
+		StaticHostResolver resolver = new StaticHostResolver();
+		resolver.add("localhost", "127.0.0.2");
+		PooledConnectionProvider pool = new PooledConnectionProvider(new ConnectionProvider() {
+			
+			@Override
+			public HttpURLConnection getConnection(String urlStr) throws IOException {
+				// Behaves like HttpURLConnection without sun.net.http.allowRestrictedHeaders.
+				return new DelegatingConnection((HttpURLConnection) new URL(urlStr).openConnection()) {
+					
+					@Override
+					public void setRequestProperty(String key, String value) {
+						if (!key.equalsIgnoreCase("Host"))
+							super.setRequestProperty(key, value);
+					}
+				};
+			}
+		}, 1, 1, 200);
+		ResolvingConnectionProvider provider = new ResolvingConnectionProvider(pool, resolver);
+		RestClient client = new RestClient(provider);
+		
+		// The connection to the address must be given back to the pool, or the second request times out.
+		assertEquals("localhost:" + server.getPort(), client.callGet("http://localhost:" + server.getPort() + "/host"));
+		assertEquals("localhost:" + server.getPort(), client.callGet("http://localhost:" + server.getPort() + "/host"));
+		assertEquals(2, provider.getPassedThroughCount());
+		assertEquals(0, provider.getFailoverCount());
+		assertEquals(0, pool.getActiveCount());
+		assertEquals(3, pool.getAcquiredCount());
+	}
+	
+	/**
+	 * Requests over HttpClient should be passed through, as it does not send a Host header set by the application.
+	 * @throws IOException
+	 */
+	public void testHttpClientPassedThrough() throws IOException {
+		StaticHostResolver resolver = new StaticHostResolver();
+		resolver.add("localhost", "127.0.0.2");
+		ResolvingConnectionProvider provider = new ResolvingConnectionProvider(new HttpClientConnectionProvider(), resolver);
+		RestClient client = new RestClient(provider);
+		
+		assertEquals("localhost:" + server.getPort(), client.callGet("http://localhost:" + server.getPort() + "/host"));
+		assertEquals(1, provider.getPassedThroughCount());
+	}
+	
+	/**
+	 * Lookups should be cached for the TTL, and expired addresses used if a lookup fails.
+	 * @throws IOException
+	 */
+	public void testCaching() throws IOException {
+		final AtomicInteger lookups = new AtomicInteger();
+		HostResolver failing = new HostResolver() {
+			
+			@Override
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				if (lookups.incrementAndGet() > 1)
+					throw new UnknownHostException(host);
+				
+				return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 127, 0, 0, 1 }) };
+			}
+		};
+		
+		CachingHostResolver cached = new CachingHostResolver(failing, 60000);
+		assertEquals("127.0.0.1", cached.resolve("service")[0].getHostAddress());
+		assertEquals("127.0.0.1", cached.resolve("service")[0].getHostAddress());
+		assertEquals(1, lookups.get());
+		
+		CachingHostResolver expired = new CachingHostResolver(failing, 0);
+		lookups.set(0);
+		RestClient client = new RestClient(new ResolvingConnectionProvider(expired));
+		assertEquals("data", client.callGet("http://service:" + server.getPort() + "/data"));
+		assertEquals("data", client.callGet("http://service:" + server.getPort() + "/data"));
+		assertEquals(2, expired.getLookupCount());
+		
+		expired.clear();
+		try {
+			expired.resolve("service");
+			fail("Failed lookup without cached addresses should fail.");
+		} catch (UnknownHostException e) {
+			// Expected.
+		}
+	}
+}
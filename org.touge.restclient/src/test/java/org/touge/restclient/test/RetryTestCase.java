@@ -0,0 +1,190 @@
+package org.touge.restclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.RetryPolicy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for retrying failed requests.
+ *
+ */
+public class RetryTestCase extends TestCase {
+	
+	private LocalServer server;
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile int failures;
+	private volatile int failureCode;
+	private volatile String retryAfter;
+	private RestClient client;
+	private RetryPolicy policy;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/flaky", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = LocalServer.readBody(exchange);
+				if (requests.incrementAndGet() <= failures) {
+					if (retryAfter != null)
+						exchange.getResponseHeaders().add("Retry-After", retryAfter);
+					LocalServer.respond(exchange, failureCode, "unavailable".getBytes());
+					return;
+				}
+				
+				LocalServer.respond(exchange, 200, ("ok " + body.length).getBytes());
+			}
+		});
+		
+		policy = new RetryPolicy(3, 10, 100);
+		client = new RestClient();
+		client.setRetryPolicy(policy);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * Retryable responses should be retried until the request succeeds or no attempts are left.
+	 * @throws IOException
+	 */
+	public void testRetryableResponses() throws IOException {
+		failures = 2;
+		failureCode = 503;
+		assertEquals("ok 0", client.callGet(server.url("/flaky")));
+		assertEquals(3, requests.get());
+		assertEquals(2, policy.getRetryCount());
+		assertEquals(1, policy.getRecoveredCount());
+		
+		requests.set(0);
+		failures = 5;
+		assertEquals(503, client.callGet(server.url("/flaky"), RestClient.HTTP_CODE_DESERIALIZER).getContent().intValue());
+		assertEquals(3, requests.get());
+		assertEquals(1, policy.getExhaustedCount());
+	}
+	
+	/**
+	 * POSTs should only be retried if the server did not process them, and their body should be resent.
+	 * @throws IOException
+	 */
+	public void testIdempotency() throws IOException {
+		failures = 1;
+		failureCode = 502;
+		assertEquals(502, client.callPost(server.url("/flaky"), "body").getContent().intValue());
+		assertEquals(1, requests.get());
+		
+		requests.set(0);
+		failureCode = 429;
+		assertEquals("ok 4", client.callPost(server.url("/flaky"), new ByteArrayInputStream("body".getBytes()), 
+				RestClient.STRING_DESERIALIZER).getContent());
+		assertEquals(2, requests.get());
+		
+		requests.set(0);
+		failureCode = 502;
+		assertEquals("ok 4", client.callPut(server.url("/flaky"), new ByteArrayInputStream("body".getBytes()), 
+				RestClient.STRING_DESERIALIZER).getContent());
+		assertEquals(2, requests.get());
+	}
+	
+	/**
+	 * Multi-part bodies should be rebuilt for each attempt, and large bodies should not be buffered to be retried.
+	 * @throws IOException
+	 */
+	public void testLargeBodies() throws IOException {
+		failures = 1;
+		failureCode = 503;
+		Map<String, Object> content = new LinkedHashMap<String, Object>();
+		content.put("key", "value");
+		assertEquals(200, client.callPostMultipart(server.url("/flaky"), content).getContent().intValue());
+		assertEquals(2, requests.get());
+		
+		requests.set(0);
+		content.put("stream", new RestClient.FormInputStream(new ByteArrayInputStream("abc".getBytes()), "s.txt", "text/plain"));
+		assertEquals(503, client.callPostMultipart(server.url("/flaky"), content).getContent().intValue());
+		assertEquals(1, requests.get());
+		
+		requests.set(0);
+		long size = 32L * 1024 * 1024;
+		InputStream large = new RestClient.SizedInputStream(new ByteArrayInputStream(new byte[0]), size) {
+			private long remaining = size;
+			
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (remaining == 0)
+					return -1;
+				
+				int read = (int) Math.min(len, remaining);
+				remaining -= read;
+				
+				return read;
+			}
+		};
+		assertEquals(503, client.callPut(server.url("/flaky"), large, RestClient.HTTP_CODE_DESERIALIZER).getContent().intValue());
+		assertEquals(1, requests.get());
+	}
+	
+	/**
+	 * Retry-After should be used as the delay, and a delay beyond the maximum should not be waited for.
+	 * @throws IOException
+	 */
+	public void testRetryAfter() throws IOException {
+		failures = 1;
+		failureCode = 503;
+		retryAfter = "0";
+		assertEquals("ok 0", client.callGet(server.url("/flaky")));
+		assertEquals(2, requests.get());
+		
+		requests.set(0);
+		retryAfter = "5";
+		long start = System.currentTimeMillis();
+		assertEquals(503, client.callGet(server.url("/flaky"), RestClient.HTTP_CODE_DESERIALIZER).getContent().intValue());
+		assertEquals(1, requests.get());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+	
+	/**
+	 * Connection failures should be retried, and the budget of the host should limit retries.
+	 * @throws IOException
+	 */
+	public void testConnectFailureAndBudget() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		String url = "http://localhost:" + socket.getLocalPort() + "/";
+		socket.close();
+		
+		policy.setBudget(4, 0);
+		try {
+			client.callPost(url, "body");
+			fail("ConnectException expected.");
+		} catch (ConnectException e) {
+			// expected
+		}
+		assertEquals(2, policy.getRetryCount());
+		assertEquals(1, policy.getExhaustedCount());
+		
+		try {
+			client.callGet(url);
+			fail("ConnectException expected.");
+		} catch (ConnectException e) {
+			// expected
+		}
+		assertEquals(2, policy.getRetryCount());
+		assertEquals(1, policy.getThrottledCount());
+		assertEquals(2.0, policy.getBudget("localhost"));
+	}
+}
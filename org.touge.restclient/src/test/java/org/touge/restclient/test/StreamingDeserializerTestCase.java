@@ -0,0 +1,116 @@
+package org.touge.restclient.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+import org.touge.restclient.RestClient.DiskCache;
+import org.touge.restclient.RestClient.LineDeserializer;
+import org.touge.restclient.RestClient.StreamingDeserializerAdapter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for deserializers receiving the response in chunks.
+ *
+ */
+public class StreamingDeserializerTestCase extends TestCase {
+	
+	private static final int RECORDS = 100000;
+	
+	private LocalServer server;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/export", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream os = exchange.getResponseBody();
+				for (int i = 0; i < RECORDS; ++i)
+					os.write(("{\"id\": " + i + "}\n").getBytes());
+				os.close();
+				exchange.close();
+			}
+		});
+		server.handle("/lines", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				LocalServer.respond(exchange, 200, "first\r\n\r\nsecond \u00e9\nthird".getBytes("UTF-8"));
+			}
+		});
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * Every record of a large chunked response should be passed to the handler once.
+	 * @throws IOException
+	 */
+	public void testRecords() throws IOException {
+		final long[] sum = new long[1];
+		LineDeserializer lines = new LineDeserializer(new LineDeserializer.LineHandler() {
+			
+			@Override
+			public void line(String line) throws IOException {
+				sum[0] += Integer.parseInt(line.substring(7, line.length() - 1));
+			}
+		});
+		
+		Long count = new RestClient().callGet(server.url("/export"), 
+				new StreamingDeserializerAdapter<Long>(lines)).getContent();
+		
+		assertEquals(RECORDS, count.intValue());
+		assertEquals((long) RECORDS * (RECORDS - 1) / 2, sum[0]);
+	}
+	
+	/**
+	 * Lines split across chunks, CRLF endings, empty lines and a final line without ending should be handled,
+	 * both from the network and from a cache entry passed as a single buffer.
+	 * @throws IOException
+	 */
+	public void testLineBoundaries() throws IOException {
+		final List<String> received = new ArrayList<String>();
+		LineDeserializer lines = new LineDeserializer(new LineDeserializer.LineHandler() {
+			
+			@Override
+			public void line(String line) throws IOException {
+				received.add(line);
+			}
+		});
+		
+		File directory = File.createTempFile("linecache", "");
+		directory.delete();
+		DiskCache cache = new DiskCache(directory);
+		RestClient client = new RestClient();
+		client.setCache(cache);
+		
+		try {
+			for (int i = 0; i < 2; ++i) {
+				received.clear();
+				Long count = client.callGet(server.url("/lines"), 
+						new StreamingDeserializerAdapter<Long>(lines, 3)).getContent();
+				
+				assertEquals(3, count.intValue());
+				assertEquals("first", received.get(0));
+				assertEquals("second \u00e9", received.get(1));
+				assertEquals("third", received.get(2));
+			}
+		} finally {
+			cache.clear();
+			directory.delete();
+		}
+	}
+}
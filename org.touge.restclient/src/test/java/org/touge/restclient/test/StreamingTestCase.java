@@ -0,0 +1,210 @@
+package org.touge.restclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.touge.restclient.RestClient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tests for streamed request bodies.
+ *
+ */
+public class StreamingTestCase extends TestCase {
+
+	private LocalServer server;
+	private volatile String contentLength;
+	private volatile String transferEncoding;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LocalServer();
+		server.handle("/count", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+				transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+				
+				InputStream in = exchange.getRequestBody();
+				byte[] buff = new byte[8192];
+				long total = 0;
+				int read;
+				while ((read = in.read(buff)) > 0)
+					total += read;
+				
+				LocalServer.respond(exchange, 200, Long.toString(total).getBytes());
+			}
+		});
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	/**
+	 * A body of unknown length should be sent chunked.
+	 * @throws IOException
+	 */
+	public void testChunkedBody() throws IOException {
+		RestClient client = new RestClient();
+		client.setStreamingMode(true);
+		
+		long size = 16L * 1024 * 1024;
+		String count = client.callPost(server.url("/count"), new GeneratedInputStream(size), 
+				RestClient.STRING_DESERIALIZER).getContent();
+		
+		assertEquals(Long.toString(size), count);
+		assertEquals("chunked", transferEncoding);
+		assertNull(contentLength);
+	}
+	
+	/**
+	 * A body of known length should be sent with a fixed Content-Length.
+	 * @throws IOException
+	 */
+	public void testFixedLengthBody() throws IOException {
+		RestClient client = new RestClient();
+		client.setStreamingMode(true);
+		
+		long size = 3L * 1024 * 1024 + 17;
+		String count = client.callPut(server.url("/count"), 
+				new RestClient.SizedInputStream(new GeneratedInputStream(size), size), 
+				RestClient.STRING_DESERIALIZER).getContent();
+		
+		assertEquals(Long.toString(size), count);
+		assertEquals(Long.toString(size), contentLength);
+		
+		count = client.callPost(server.url("/count"), new ByteArrayInputStream("hello".getBytes()), 
+				RestClient.STRING_DESERIALIZER).getContent();
+		
+		assertEquals("5", count);
+		assertEquals("5", contentLength);
+	}
+	
+	/**
+	 * Multi-part bodies should be encoded lazily with a length computed from the parts.
+	 * @throws IOException
+	 */
+	public void testMultipartBody() throws IOException {
+		File file = File.createTempFile("multipart", ".txt");
+		file.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write("file content".getBytes());
+		fos.close();
+		
+		Map<String, Object> content = new LinkedHashMap<String, Object>();
+		content.put("key", "value");
+		content.put("upload", new RestClient.FormFile(file.getPath(), "text/plain"));
+		
+		InputStream body = RestClient.createMultipartPostBody("BOUNDARY", content);
+		String expected = "--BOUNDARY\r\nContent-Disposition: form-data; name=\"key\"\r\n\r\nvalue\r\n"
+			+ "--BOUNDARY\r\nContent-Disposition: form-data; name=\"upload\"; filename=\"" + file.getName() + "\"\r\n"
+			+ "Content-Type: text/plain;\r\n\r\nfile content\r\n";
+		
+		assertTrue(body instanceof RestClient.SizedContent);
+		assertEquals(expected.length(), ((RestClient.SizedContent) body).getContentLength());
+		assertEquals(expected, new String(RestClient.readStream(body)));
+		
+		content.put("stream", new RestClient.FormInputStream(new ByteArrayInputStream("abc".getBytes()), "s.txt", "text/plain"));
+		body = RestClient.createMultipartPostBody("BOUNDARY", content);
+		assertEquals(-1, ((RestClient.SizedContent) body).getContentLength());
+		
+		// Multi-part bodies are streamed without streaming mode: chunked if their length is unknown.
+		RestClient client = new RestClient();
+		Integer code = client.callPostMultipart(server.url("/count"), content).getContent();
+		assertEquals(200, code.intValue());
+		assertEquals("chunked", transferEncoding);
+		
+		content.remove("stream");
+		code = client.callPostMultipart(server.url("/count"), content).getContent();
+		assertEquals(200, code.intValue());
+		assertNull(transferEncoding);
+		assertNotNull(contentLength);
+		assertTrue(Integer.parseInt(contentLength) > expected.length());
+		
+		content.put("missing", new RestClient.FormFile(file.getPath() + ".missing", "text/plain"));
+		try {
+			RestClient.createMultipartPostBody("BOUNDARY", content);
+			fail("FileNotFoundException expected.");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * File bodies should always be sent with a fixed Content-Length.
+	 * @throws IOException
+	 */
+	public void testFileBody() throws IOException {
+		File file = File.createTempFile("upload", ".bin");
+		file.deleteOnExit();
+		long size = 5L * 1024 * 1024 + 3;
+		FileOutputStream fos = new FileOutputStream(file);
+		InputStream in = new GeneratedInputStream(size);
+		byte[] buff = new byte[8192];
+		int read;
+		while ((read = in.read(buff)) > 0)
+			fos.write(buff, 0, read);
+		fos.close();
+		
+		RestClient client = new RestClient();
+		
+		String count = client.callPut(server.url("/count"), file, RestClient.STRING_DESERIALIZER).getContent();
+		assertEquals(Long.toString(size), count);
+		assertEquals(Long.toString(size), contentLength);
+		
+		count = client.callPost(server.url("/count"), file, RestClient.STRING_DESERIALIZER).getContent();
+		assertEquals(Long.toString(size), count);
+		
+		try {
+			client.callPut(server.url("/count"), new File(file.getPath() + ".missing"));
+			fail("FileNotFoundException expected.");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * Produces a number of bytes without holding them in memory.
+	 */
+	private static class GeneratedInputStream extends InputStream {
+		private long remaining;
+
+		public GeneratedInputStream(long size) {
+			this.remaining = size;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (remaining == 0)
+				return -1;
+			
+			remaining--;
+			return 'x';
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			
+			int count = (int) Math.min(len, remaining);
+			for (int i = 0; i < count; ++i)
+				b[off + i] = 'x';
+			remaining -= count;
+			
+			return count;
+		}
+	}
+}